@@ -0,0 +1,467 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static android.media.MediaCodec.CONFIGURE_FLAG_ENCODE;
+import static android.media.MediaFormat.MIMETYPE_VIDEO_AVC;
+
+/**
+ * {@link MediaBackend} on the framework's MediaExtractor, MediaCodec and MediaMuxer.
+ */
+public class AndroidMediaBackend implements MediaBackend {
+    private static final String TAG = "AndroidMediaBackend";
+    private static final String ENCODE_MIME_TYPE = MIMETYPE_VIDEO_AVC;
+    private static final int DECODE_COLOR_FORMAT = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
+    private static final int DEFAULT_OUTPUT_BUFFERS = 16;
+
+    @Override
+    public VideoExtractor createExtractor(String path) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+        } catch (IOException e) {
+            extractor.release();
+            throw e;
+        }
+        return new AndroidExtractor(extractor);
+    }
+
+    @Override
+    public VideoCodec createDecoder(VideoTrack track) throws IOException {
+        MediaFormat mediaFormat = (MediaFormat) track.platformFormat;
+        MediaCodec decoder = MediaCodec.createDecoderByType(track.mime);
+        MediaCodecInfo.CodecCapabilities caps = decoder.getCodecInfo().getCapabilitiesForType(track.mime);
+        for (int format : caps.colorFormats) {
+            // Get the frame format supported by the decoder supporting video/avc
+            // 2135033992：  COLOR_FormatYUV420Flexible
+            // 21：          COLOR_FormatYUV420SemiPlanar
+            if (format > 100)
+                Log.d(TAG, "Supported format: " + Integer.toHexString(format));
+            else
+                Log.d(TAG, "Supported format: 0x" + format);
+        }
+        if (isColorFormatSupported(DECODE_COLOR_FORMAT, caps)) {
+            // Specified frame format
+            mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, DECODE_COLOR_FORMAT);
+            Log.d(TAG, "set decode color format to type " + DECODE_COLOR_FORMAT);
+        } else {
+            Log.d(TAG, "unable to set decode color format, color format type " + DECODE_COLOR_FORMAT + " not supported");
+        }
+        return new AndroidCodec(decoder, mediaFormat, 0);
+    }
+
+    @Override
+    public VideoCodec createEncoder(int width, int height, int frameRate, int bitRate) throws IOException {
+//        getCodecName();
+//        codec = MediaCodec.createByCodecName(CODEC_ENCODE_NAME);
+        MediaCodec codec = MediaCodec.createEncoderByType(ENCODE_MIME_TYPE);
+        // Pick an input layout the encoder accepts, frames are converted to it
+        int colorFormat = YuvConverter.selectCodecColorFormat(
+                codec.getCodecInfo().getCapabilitiesForType(ENCODE_MIME_TYPE).colorFormats);
+        if (colorFormat < 0) {
+            Log.w(TAG, "No ByteBuffer input format supported by " + codec.getName() + ", trying YUV420SemiPlanar");
+            colorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+        }
+        return new AndroidCodec(codec, createEncodeMediaFormat(width, height, frameRate, bitRate, colorFormat), CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public int getMaxCodecInstances(VideoTrack track) {
+        // Looked up in the codec list, instantiating the codecs would take one of their instances
+        MediaCodecList codecs = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        int decoders = getMaxSupportedInstances(codecs,
+                codecs.findDecoderForFormat(MediaFormat.createVideoFormat(track.mime, track.width, track.height)), track.mime);
+        int encoders = getMaxSupportedInstances(codecs,
+                codecs.findEncoderForFormat(MediaFormat.createVideoFormat(ENCODE_MIME_TYPE, track.width, track.height)), ENCODE_MIME_TYPE);
+        return Math.max(1, Math.min(decoders, encoders));
+    }
+
+    @Override
+    public SampleMuxer createMuxer(String path) throws IOException {
+        return new AndroidMuxer(new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4));
+    }
+
+    /**
+     * @return 1 if no codec named {@code name} handles {@code mime}
+     */
+    private static int getMaxSupportedInstances(MediaCodecList codecs, String name, String mime) {
+        if (name != null) {
+            for (MediaCodecInfo info : codecs.getCodecInfos()) {
+                if (info.getName().equals(name)) {
+                    return info.getCapabilitiesForType(mime).getMaxSupportedInstances();
+                }
+            }
+        }
+        return 1;
+    }
+
+    private static boolean isColorFormatSupported(int colorFormat, MediaCodecInfo.CodecCapabilities caps) {
+        for (int format : caps.colorFormats) {
+            if (format == colorFormat) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * KEY_FRAME_RATE is an integer in most containers but a float in some.
+     */
+    private static int getFrameRate(MediaFormat format) {
+        if (!format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            return 0;
+        }
+        try {
+            return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            return Math.round(format.getFloat(MediaFormat.KEY_FRAME_RATE));
+        }
+    }
+
+    private static VideoTrack toVideoTrack(MediaFormat format) {
+        VideoTrack track = new VideoTrack(format.getString(MediaFormat.KEY_MIME),
+                format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT));
+        track.frameRate = getFrameRate(format);
+        if (format.containsKey(MediaFormat.KEY_ROTATION)) {
+            track.rotation = format.getInteger(MediaFormat.KEY_ROTATION);
+        }
+        if (format.containsKey(MediaFormat.KEY_DURATION)) {
+            track.durationUs = format.getLong(MediaFormat.KEY_DURATION);
+        }
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            track.maxInputSize = format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        }
+        List<ByteBuffer> codecConfig = new ArrayList<>();
+        for (int i = 0; format.containsKey("csd-" + i); i++) {
+            codecConfig.add(format.getByteBuffer("csd-" + i));
+        }
+        track.codecConfig = codecConfig.toArray(new ByteBuffer[codecConfig.size()]);
+        track.platformFormat = format;
+        return track;
+    }
+
+    private static MediaFormat createEncodeMediaFormat(int width, int height, int fps, int bitRate, int colorFormat) {
+    /* Another way to create mediaFormat
+    MediaFormat mediaFormat = new MediaFormat();
+    // Use H264 encoding
+    mediaFormat.setString(MediaFormat.KEY_MIME, ENCODE_MIME_TYPE);
+    mediaFormat.setInteger(MediaFormat.KEY_WIDTH, width);
+    mediaFormat.setInteger(MediaFormat.KEY_HEIGHT, height);
+    */
+
+        // Use H264 encoding
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(ENCODE_MIME_TYPE, width, height);
+        // Set the video input color format, picked from what the encoder supports
+        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        // Set the video bit rate
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate > 0 ? bitRate : width * height * fps * 300);
+        // Set video fps
+        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+        // Set video I frame interval
+        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            /**
+             * Optional configuration, set the rate mode
+             * BITRATE_MODE_VBR：Constant mass
+             * BITRATE_MODE_VBR：Variable bit rate
+             * BITRATE_MODE_CBR：Constant bit rate
+             */
+            // A bit rate asked for is kept to, on average
+            mediaFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, bitRate > 0
+                    ? MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR : MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ);
+            /**
+             * Optional configuration, set H264 Profile
+             * Need to do compatibility check
+             */
+            mediaFormat.setInteger(MediaFormat.KEY_PROFILE, MediaCodecInfo.CodecProfileLevel.AVCProfileHigh);
+            /**
+             * Optional configuration, setting H264 Level
+             * Need to do compatibility check
+             */
+            mediaFormat.setInteger(MediaFormat.KEY_LEVEL, MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel31);
+        }
+
+        return mediaFormat;
+    }
+
+    private static class AndroidExtractor implements VideoExtractor {
+        private final MediaExtractor mExtractor;
+        private final VideoTrack mTrack;
+
+        AndroidExtractor(MediaExtractor extractor) {
+            mExtractor = extractor;
+            int trackIndex = selectTrack(extractor);
+            if (trackIndex >= 0) {
+                extractor.selectTrack(trackIndex);
+                mTrack = toVideoTrack(extractor.getTrackFormat(trackIndex));     // Get the encoded information of the video
+            } else {
+                mTrack = null;
+            }
+        }
+
+        // Get the track number where the video is located
+        private static int selectTrack(MediaExtractor extractor) {
+            int numTracks = extractor.getTrackCount();
+            for (int i = 0; i < numTracks; i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime.startsWith("video/")) {
+                    Log.d(TAG, "Extractor selected track " + i + " (" + mime + "): " + format);
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public VideoTrack getVideoTrack() {
+            return mTrack;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            return mExtractor.readSampleData(buffer, offset);
+        }
+
+        @Override
+        public long getSampleTime() {
+            return mExtractor.getSampleTime();
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return mExtractor.getSampleFlags();
+        }
+
+        @Override
+        public boolean advance() {
+            return mExtractor.advance();
+        }
+
+        @Override
+        public void seekTo(long timeUs) {
+            mExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+
+        @Override
+        public void release() {
+            mExtractor.release();
+        }
+    }
+
+    private static class AndroidCodec implements VideoCodec {
+        private final MediaCodec mCodec;
+        private final MediaFormat mFormat;
+        private final int mConfigureFlags;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        // The image of each output buffer handed out, closed when the buffer is released
+        private Image[] mOutputImages = new Image[DEFAULT_OUTPUT_BUFFERS];
+        private HandlerThread mCallbackThread;
+        private int mInputColorFormat;
+        private int mInputStride;
+        private int mInputSliceHeight;
+
+        AndroidCodec(MediaCodec codec, MediaFormat format, int configureFlags) {
+            mCodec = codec;
+            mFormat = format;
+            mConfigureFlags = configureFlags;
+        }
+
+        @Override
+        public String getName() {
+            return mCodec.getName();
+        }
+
+        @Override
+        public void setCallback(final Callback callback) {
+            mCallbackThread = new HandlerThread(TAG + "-" + mCodec.getName());
+            mCallbackThread.start();
+            mCodec.setCallback(new MediaCodec.Callback() {
+                private final BufferInfo mCallbackInfo = new BufferInfo();
+
+                @Override
+                public void onInputBufferAvailable(MediaCodec codec, int index) {
+                    callback.onInputBufferAvailable(AndroidCodec.this, index);
+                }
+
+                @Override
+                public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                    mCallbackInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                    callback.onOutputBufferAvailable(AndroidCodec.this, index, mCallbackInfo);
+                }
+
+                @Override
+                public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                    callback.onError(AndroidCodec.this, e);
+                }
+
+                @Override
+                public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                    Log.d(TAG, codec.getName() + " output format " + format);
+                    callback.onOutputFormatChanged(AndroidCodec.this);
+                }
+            }, new Handler(mCallbackThread.getLooper()));
+        }
+
+        @Override
+        public void start() {
+            mCodec.configure(mFormat, null, null, mConfigureFlags);
+            mCodec.start();
+            if (mConfigureFlags == CONFIGURE_FLAG_ENCODE) {
+                MediaFormat inputFormat = mCodec.getInputFormat();
+                int width = mFormat.getInteger(MediaFormat.KEY_WIDTH);
+                int height = mFormat.getInteger(MediaFormat.KEY_HEIGHT);
+                mInputColorFormat = inputFormat.containsKey(MediaFormat.KEY_COLOR_FORMAT)
+                        ? inputFormat.getInteger(MediaFormat.KEY_COLOR_FORMAT) : mFormat.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+                mInputStride = inputFormat.containsKey(MediaFormat.KEY_STRIDE)
+                        ? Math.max(inputFormat.getInteger(MediaFormat.KEY_STRIDE), width) : width;
+                mInputSliceHeight = inputFormat.containsKey(MediaFormat.KEY_SLICE_HEIGHT)
+                        ? Math.max(inputFormat.getInteger(MediaFormat.KEY_SLICE_HEIGHT), height) : height;
+            }
+        }
+
+        @Override
+        public int getInputColorFormat() {
+            return mInputColorFormat;
+        }
+
+        @Override
+        public int getInputStride() {
+            return mInputStride;
+        }
+
+        @Override
+        public int getInputSliceHeight() {
+            return mInputSliceHeight;
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            return mCodec.dequeueInputBuffer(timeoutUs);
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return mCodec.getInputBuffer(index);
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+            int index = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+            if (index >= 0) {
+                info.set(mInfo.offset, mInfo.size, mInfo.presentationTimeUs, mInfo.flags);
+            }
+            return index;
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return mCodec.getOutputBuffer(index);
+        }
+
+        @Override
+        public YuvPlanes getOutputPlanes(int index, YuvPlanes planes) {
+            Image image = mCodec.getOutputImage(index);
+            assert image != null;
+            if (index >= mOutputImages.length) {
+                mOutputImages = Arrays.copyOf(mOutputImages, Math.max(index + 1, mOutputImages.length * 2));
+            }
+            mOutputImages[index] = image;
+            return planes.set(image);
+        }
+
+        @Override
+        public VideoTrack getOutputTrack() {
+            return toVideoTrack(mCodec.getOutputFormat());
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            Image image = index < mOutputImages.length ? mOutputImages[index] : null;
+            if (image != null) {
+                image.close();
+                mOutputImages[index] = null;
+            }
+            mCodec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void stop() {
+            mCodec.stop();
+        }
+
+        @Override
+        public void release() {
+            mCodec.release();
+            if (mCallbackThread != null) {
+                mCallbackThread.quitSafely();
+            }
+        }
+    }
+
+    private static class AndroidMuxer implements SampleMuxer {
+        private final MediaMuxer mMuxer;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        AndroidMuxer(MediaMuxer muxer) {
+            mMuxer = muxer;
+        }
+
+        @Override
+        public void setOrientationHint(int degrees) {
+            mMuxer.setOrientationHint(degrees);
+        }
+
+        @Override
+        public int addTrack(VideoTrack track) {
+            MediaFormat format = (MediaFormat) track.platformFormat;
+            if (track.frameRate > 0) {
+                format.setInteger(MediaFormat.KEY_FRAME_RATE, track.frameRate);
+            }
+            return mMuxer.addTrack(format);
+        }
+
+        @Override
+        public void start() {
+            mMuxer.start();
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer buffer, VideoCodec.BufferInfo info) {
+            mInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+            mMuxer.writeSampleData(trackIndex, buffer, mInfo);
+        }
+
+        @Override
+        public void stop() {
+            mMuxer.stop();
+        }
+
+        @Override
+        public void release() {
+            mMuxer.release();
+        }
+    }
+}
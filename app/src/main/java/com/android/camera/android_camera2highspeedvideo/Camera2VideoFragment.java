@@ -47,6 +47,7 @@ import android.widget.Chronometer;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -70,6 +71,25 @@ public class Camera2VideoFragment extends Fragment
     private static final String TAG = "Camera2VideoFragment";
     private static final int REQUEST_VIDEO_PERMISSIONS = 1;
     private static final String FRAGMENT_DIALOG = "dialog";
+    // Process frames while they are captured instead of recording video.mp4 and decoding it
+    // afterwards, see ImageReaderFrameSource for the devices this doesn't work on
+    private static final boolean STREAMING_CAPTURE = false;
+    // Frames the camera can get ahead of the processing before it drops some
+    private static final int STREAMING_MAX_IMAGES = 8;
+    // Record arms a PreRollRecorder instead, stop saves the seconds before it and after it
+    private static final boolean PRE_ROLL_CAPTURE = false;
+    private static final long PRE_ROLL_US = 3 * 1000000L;
+    private static final long POST_ROLL_US = 1000000L;
+    // The pre-roll encoder's bit rate is set for this to hold PRE_ROLL_US and a GOP, about
+    // 100Mbps here, see PreRollRecorder.getBitRate()
+    private static final int PRE_ROLL_CAPACITY = 64 * 1024 * 1024;
+    // Recordings roll over to a new segment without a gap, each one processed as soon as it is
+    // closed into an output of its own, see SegmentedRecording
+    private static final boolean SEGMENTED_RECORDING = false;
+    private static final long SEGMENT_MAX_BYTES = 512 * 1024 * 1024L;
+    // Turned into a size at the requested bit rate, the recorder only rolls over on size
+    private static final long SEGMENT_MAX_US = 10 * 1000000L;
+    private static final int VIDEO_BIT_RATE = 1000000000;
 
     private static final String[] VIDEO_PERMISSIONS = {
             Manifest.permission.CAMERA,
@@ -218,6 +238,10 @@ public class Camera2VideoFragment extends Fragment
     };
     private Integer mSensorOrientation;
     private String mNextVideoAbsolutePath;
+    private ImageReaderFrameSource mFrameSource;
+    private PreRollRecorder mPreRollRecorder;
+    private SegmentedRecording mSegmentedRecording;
+    private static ProcessingQueue sProcessingQueue;
     private CaptureRequest.Builder mPreviewBuilder;
 
     public static Camera2VideoFragment newInstance() {
@@ -339,10 +363,22 @@ public class Camera2VideoFragment extends Fragment
         switch (view.getId()) {
             case R.id.video: {
                 Activity activity = getActivity();
-                if (mIsRecordingVideo) {
+                if (mIsRecordingVideo && mPreRollRecorder != null) {
+                    // Recording stops once the clip is saved, after the post-roll
+                    if (!mPreRollRecorder.trigger(getVideoFilePath(activity))) {
+                        Toast.makeText(activity, "Nothing captured yet", Toast.LENGTH_SHORT).show();
+                    }
+                } else if (mIsRecordingVideo) {
                     stopRecordingVideo();
-                    SlowMotionThread slowMotionThread = new SlowMotionThread(activity, mNextVideoAbsolutePath);
-                    new Thread(slowMotionThread).start();
+                    if (mSegmentedRecording != null) {
+                        // Earlier segments are queued already
+                        mSegmentedRecording.finish();
+                        mSegmentedRecording = null;
+                    } else if (null != activity && !STREAMING_CAPTURE) {
+                        getProcessingQueue(activity).enqueue(mNextVideoAbsolutePath, ProcessingJob.TYPE_SLOW_MOTION, 0);
+                    }
+                    // The next recording gets a directory of its own
+                    mNextVideoAbsolutePath = null;
                 } else {
                     startRecordingVideo();
                 }
@@ -641,8 +677,13 @@ public class Camera2VideoFragment extends Fragment
         if (mNextVideoAbsolutePath == null || mNextVideoAbsolutePath.isEmpty()) {
             mNextVideoAbsolutePath = getVideoFilePath(getActivity());
         }
-        mMediaRecorder.setOutputFile(mNextVideoAbsolutePath);
-        mMediaRecorder.setVideoEncodingBitRate(1000000000);
+        if (SEGMENTED_RECORDING) {
+            mSegmentedRecording = createSegmentedRecording(activity);
+            mSegmentedRecording.attach(mMediaRecorder);
+        } else {
+            mMediaRecorder.setOutputFile(mNextVideoAbsolutePath);
+        }
+        mMediaRecorder.setVideoEncodingBitRate(VIDEO_BIT_RATE);
         mMediaRecorder.setVideoFrameRate(mFPS);
         mMediaRecorder.setVideoSize(mVideoSize.getWidth(), mVideoSize.getHeight());
         mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
@@ -659,11 +700,33 @@ public class Camera2VideoFragment extends Fragment
         mMediaRecorder.prepare();
     }
 
+    /**
+     * Segments go in numbered directories next to {@link #mNextVideoAbsolutePath}, which isn't
+     * written itself, and are queued for processing as they are closed.
+     */
+    private SegmentedRecording createSegmentedRecording(Context context) {
+        final Context appContext = context.getApplicationContext();
+        long maxBytes = Math.min(SEGMENT_MAX_BYTES, VIDEO_BIT_RATE / 8 * SEGMENT_MAX_US / 1000000L);
+        return new SegmentedRecording(new File(mNextVideoAbsolutePath).getParentFile(), maxBytes,
+                new SegmentedRecording.Listener() {
+                    @Override
+                    public void onSegmentClosed(String path, int index) {
+                        getProcessingQueue(appContext).enqueue(path, ProcessingJob.TYPE_SLOW_MOTION, 0);
+                    }
+                });
+    }
+
     private String getVideoFilePath(Context context) {
 //        final File dir = context.getExternalFilesDir(null);
 //        return (dir == null ? "" : (dir.getAbsolutePath() + "/"))
 //                + System.currentTimeMillis() + ".mp4";
-        return Environment.getExternalStorageDirectory().getAbsolutePath() + "/Movies/video.mp4";
+        // One directory per recording, its Output directory holds what processing makes of it
+        File dir = new File(Environment.getExternalStorageDirectory().getAbsolutePath() + "/Movies/"
+                + System.currentTimeMillis());
+        if (!dir.mkdirs()) {
+            Log.w(TAG, "Can't create " + dir);
+        }
+        return dir.getPath() + "/video.mp4";
     }
 
     private void startRecordingVideo() {
@@ -672,7 +735,13 @@ public class Camera2VideoFragment extends Fragment
         }
         try {
             closePreviewSession();
-            setUpMediaRecorder();
+            if (PRE_ROLL_CAPTURE) {
+                startPreRoll();
+            } else if (STREAMING_CAPTURE) {
+                startStreamProcessing();
+            } else {
+                setUpMediaRecorder();
+            }
             SurfaceTexture texture = mTextureView.getSurfaceTexture();
             assert texture != null;
             texture.setDefaultBufferSize(mVideoSize.getWidth(), mVideoSize.getHeight());
@@ -684,8 +753,8 @@ public class Camera2VideoFragment extends Fragment
             surfaces.add(previewSurface);
             mPreviewBuilder.addTarget(previewSurface);
 
-            // Set up Surface for the MediaRecorder
-            Surface recorderSurface = mMediaRecorder.getSurface();
+            // Set up Surface for the MediaRecorder, or for the processing when streaming
+            Surface recorderSurface = mFrameSource != null ? mFrameSource.getSurface() : mMediaRecorder.getSurface();
             surfaces.add(recorderSurface);
             mPreviewBuilder.addTarget(recorderSurface);
 
@@ -710,13 +779,16 @@ public class Camera2VideoFragment extends Fragment
                             mChronometer.setVisibility(View.VISIBLE);
 
                             // Start recording
-                            mMediaRecorder.start();
+                            if (mFrameSource == null) {
+                                mMediaRecorder.start();
+                            }
                         }
                     });
                 }
 
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
+                    stopFrameSource();
                     Activity activity = getActivity();
                     if (null != activity) {
                         Toast.makeText(activity, "Failed", Toast.LENGTH_SHORT).show();
@@ -729,6 +801,91 @@ public class Camera2VideoFragment extends Fragment
 
     }
 
+    /**
+     * Sets up {@link #mFrameSource} and starts encoding its frames into the pre-roll. Saved clips
+     * go to the processing queue.
+     */
+    private void startPreRoll() throws IOException {
+        mFrameSource = new ImageReaderFrameSource(mVideoSize.getWidth(), mVideoSize.getHeight(), STREAMING_MAX_IMAGES);
+        final Context appContext = getActivity().getApplicationContext();
+        final PreRollRecorder recorder = new PreRollRecorder(new AndroidMediaBackend(),
+                new File(appContext.getCacheDir(), "preroll.samples"), PRE_ROLL_CAPACITY, PRE_ROLL_US, POST_ROLL_US, mFPS);
+        recorder.setListener(new PreRollRecorder.Listener() {
+            @Override
+            public void onClipSaved(final String path, final boolean success) {
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(appContext, (success ? "Video saved: " : "Video not saved: ") + path,
+                                Toast.LENGTH_SHORT).show();
+                        if (success) {
+                            getProcessingQueue(appContext).enqueue(path, ProcessingJob.TYPE_SLOW_MOTION, 0);
+                        }
+                        if (mPreRollRecorder == recorder && mIsRecordingVideo) {
+                            stopRecordingVideo();
+                        }
+                    }
+                });
+            }
+        });
+        try {
+            recorder.start(mFrameSource);
+        } catch (IOException e) {
+            mFrameSource.stop();
+            mFrameSource = null;
+            throw e;
+        }
+        mPreRollRecorder = recorder;
+    }
+
+    /**
+     * Ends the frames of streaming or pre-roll capture, once the session is closed.
+     */
+    private void stopFrameSource() {
+        if (mPreRollRecorder != null) {
+            // Waits for the encoder to drain, off the UI thread
+            final PreRollRecorder recorder = mPreRollRecorder;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    recorder.stop();
+                }
+            }, "PreRollStop").start();
+            mPreRollRecorder = null;
+        } else if (mFrameSource != null) {
+            mFrameSource.stop();
+        }
+        mFrameSource = null;
+    }
+
+    /**
+     * Sets up {@link #mFrameSource} and starts processing its frames into the Output directory
+     * next to {@link #mNextVideoAbsolutePath}, which isn't written itself.
+     */
+    private void startStreamProcessing() {
+        mNextVideoAbsolutePath = getVideoFilePath(getActivity());
+        mFrameSource = new ImageReaderFrameSource(mVideoSize.getWidth(), mVideoSize.getHeight(), STREAMING_MAX_IMAGES);
+        final FrameSource source = mFrameSource;
+        final MediaCodecProc proc = new MediaCodecProc(mNextVideoAbsolutePath, 120, 4);
+        final Context appContext = getActivity().getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long t1 = Utils.getCurrentTimeMillis();
+                final boolean done = proc.processStream(source);
+                final long t2 = Utils.getCurrentTimeMillis() - t1;
+                Log.d(TAG, "Streamed slow motion processing " + (done ? "complete" : "failed") + ", time consuming" + t2 + "ms");
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(appContext, "Slow motion processing " + (done ? "complete" : "failed")
+                                + ", time consuming" + t2 + "ms", Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        }, "StreamProcessing").start();
+    }
+
     private void closePreviewSession() {
         if (mPreviewSession != null) {
             // TODO
@@ -758,6 +915,13 @@ public class Camera2VideoFragment extends Fragment
 //        } catch (CameraAccessException e) {
 //            e.printStackTrace();
 //        }
+        if (mFrameSource != null) {
+            // The session goes first, the source releases its surface once it has drained
+            startPreview();
+            stopFrameSource();
+            mNextVideoAbsolutePath = null;
+            return;
+        }
         // Stop recording
         mMediaRecorder.stop();
         mMediaRecorder.reset();
@@ -856,27 +1020,46 @@ public class Camera2VideoFragment extends Fragment
 
     }
 
-    public static class SlowMotionThread implements Runnable {
-
-        private Activity mActivity;
-        private String mFilePath;
-        private MediaCodecProc mMediaCodec;
-
-        SlowMotionThread(Activity activity, String filePath) {
-            mActivity = activity;
-            mFilePath = filePath;
-            mMediaCodec = new MediaCodecProc(mFilePath, 120, 4);
-        }
-
-        @Override
-        public void run() {
-            Looper.prepare();
-            long t1 = Utils.getCurrentTimeMillis();
-            mMediaCodec.process();
-            long t2 = Utils.getCurrentTimeMillis() - t1;
-            Toast.makeText(mActivity, "Slow motion processing is complete, time consuming" + t2 + "ms", Toast.LENGTH_SHORT).show();
-            Log.d(TAG, "Slow motion processing is complete, time consuming" + t2 + "ms");
-            Looper.loop();
+    /**
+     * The queue recordings are processed on, shared by every fragment instance so processing
+     * carries on while the camera is closed. Started on first use, which also picks up the jobs
+     * a killed process left unfinished.
+     */
+    private static synchronized ProcessingQueue getProcessingQueue(Context context) {
+        if (sProcessingQueue == null) {
+            final Context appContext = context.getApplicationContext();
+            final Handler mainHandler = new Handler(Looper.getMainLooper());
+            // The default codec limit runs one slow motion job at a time, next to a remux
+            sProcessingQueue = new ProcessingQueue(new File(appContext.getFilesDir(), "jobs.txt"),
+                    new AndroidMediaBackend(), 2, new ProcessingQueue.ProcessorFactory() {
+                @Override
+                public MediaCodecProc create(ProcessingJob job) {
+                    MediaCodecProc proc = new MediaCodecProc(job.getPath(), 120, 4);
+                    // Two decoder/encoder pairs fit on most devices next to the camera
+                    proc.setParallelSegments(2);
+                    // A killed job picks up from the last 5 second checkpoint when run again
+                    proc.setCheckpointInterval(5 * 1000000L);
+                    return proc;
+                }
+            });
+            sProcessingQueue.setListener(new ProcessingQueue.Listener() {
+                @Override
+                public void onJobChanged(final ProcessingJob job) {
+                    if (!job.isFinished()) {
+                        return;
+                    }
+                    Log.d(TAG, "Slow motion processing " + ProcessingJob.getStateName(job.getState()) + ": " + job.getPath());
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(appContext, "Slow motion processing " + ProcessingJob.getStateName(job.getState())
+                                    + ": " + job.getPath(), Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            });
+            sProcessingQueue.start();
         }
+        return sProcessingQueue;
     }
 }
@@ -0,0 +1,175 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only record of the finished segments of a job, so a job that was killed can carry on
+ * where it stopped.
+ *
+ * <pre>
+ * job key                                   one line, describes input and settings
+ * index \t startUs \t endUs \t frames \t path   one line per finished segment
+ * </pre>
+ *
+ * A line is written and synced to disk after its segment's file is finished. A journal whose key
+ * doesn't match the job's is started over. A line cut short by a crash is ignored or, if only its
+ * path was cut, matches no segment.
+ */
+public class CheckpointJournal {
+    private static final String TAG = "CheckpointJournal";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A finished segment: input from {@code startUs} up to the sync sample at {@code endUs}
+     * (-1 for the end of the clip), encoded into {@code path}.
+     */
+    public static class Entry {
+        public final int index;
+        public final long startUs;
+        public final long endUs;
+        public final long frames;
+        public final String path;
+
+        Entry(int index, long startUs, long endUs, long frames, String path) {
+            this.index = index;
+            this.startUs = startUs;
+            this.endUs = endUs;
+            this.frames = frames;
+            this.path = path;
+        }
+    }
+
+    private final File mFile;
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    private CheckpointJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the journal at {@code file} if it was written for {@code jobKey}, otherwise starts a
+     * new one there.
+     */
+    public static CheckpointJournal open(File file, String jobKey) throws IOException {
+        if (jobKey.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Job key must be one line");
+        }
+        CheckpointJournal journal = new CheckpointJournal(file);
+        if (file.exists() && journal.read(jobKey)) {
+            journal.endTornLine();
+            return journal;
+        }
+        journal.mEntries.clear();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write((jobKey + "\n").getBytes(UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        return journal;
+    }
+
+    /**
+     * @return false if the journal belongs to another job
+     */
+    private boolean read(String jobKey) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), UTF_8));
+        try {
+            if (!jobKey.equals(reader.readLine())) {
+                Log.d(TAG, "journal " + mFile + " is for another job, starting over");
+                return false;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 5);
+                try {
+                    if (fields.length == 5) {
+                        mEntries.add(new Entry(Integer.parseInt(fields[0]), Long.parseLong(fields[1]),
+                                Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]));
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // Falls through
+                }
+                Log.w(TAG, "ignoring torn journal line: " + line);
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Ends a line cut short by a crash, so the next entry starts on a line of its own.
+     */
+    private void endTornLine() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            long length = file.length();
+            if (length > 0) {
+                file.seek(length - 1);
+                if (file.read() != '\n') {
+                    file.write('\n');
+                    file.getFD().sync();
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * The finished segment with this index, input range and file, or null.
+     */
+    public synchronized Entry find(int index, long startUs, long endUs, String path) {
+        for (Entry entry : mEntries) {
+            if (entry.index == index && entry.startUs == startUs && entry.endUs == endUs && entry.path.equals(path)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Records a finished segment, on disk before it returns.
+     */
+    public synchronized void append(int index, long startUs, long endUs, long frames, String path) throws IOException {
+        if (path.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Path must be one line");
+        }
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            out.write((index + "\t" + startUs + "\t" + endUs + "\t" + frames + "\t" + path + "\n").getBytes(UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        mEntries.add(new Entry(index, startUs, endUs, frames, path));
+    }
+
+    /**
+     * Removes the journal once the job is done.
+     */
+    public synchronized void delete() {
+        mEntries.clear();
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "could not delete " + mFile);
+        }
+    }
+}
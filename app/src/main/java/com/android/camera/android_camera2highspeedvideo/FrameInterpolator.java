@@ -0,0 +1,349 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Motion-compensated frame interpolation on NV21 (or NV12) frames.
+ *
+ * {@link #setFrames} estimates one motion vector per {@link #BLOCK_SIZE} block between two
+ * frames: a full search on the coarsest level of a luma pyramid, refined on each finer level.
+ * {@link #interpolate} then builds a frame at any position between the two by fetching each block
+ * from where it was in the previous frame and where it will be in the next one, and blending the
+ * two. Both stages are split into bands of block rows on the {@link ParallelYuv} pool.
+ *
+ * A block's vector {@code (dx, dy)} means {@code next(x, y) ~ previous(x + dx, y + dy)}.
+ * Not thread safe; use one instance per stream.
+ */
+public class FrameInterpolator {
+    static final int BLOCK_SIZE = 16;
+    private static final int LEVELS = 3;
+    // Full search range on the coarsest level, +-16 pixels at full resolution
+    private static final int SEARCH_RANGE = 4;
+    private static final int REFINE_RANGE = 1;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBlocksX;
+    private final int mBlocksY;
+    // Levels 1.. of each pyramid, level 0 is the luma of the frame itself
+    private byte[][] mPreviousPyramid = new byte[LEVELS][];
+    private byte[][] mNextPyramid = new byte[LEVELS][];
+    private int[] mVectors;
+    private int[] mCoarseVectors;
+
+    private byte[] mPrevious;
+    private byte[] mNext;
+
+    private long mInterpolatedFrames;
+    private long mElapsedNanos;
+
+    public FrameInterpolator(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mBlocksX = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        mBlocksY = (height + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        for (int level = 1; level < LEVELS; level++) {
+            mPreviousPyramid[level] = new byte[(width >> level) * (height >> level)];
+            mNextPyramid[level] = new byte[(width >> level) * (height >> level)];
+        }
+        mVectors = new int[mBlocksX * mBlocksY * 2];
+        mCoarseVectors = new int[mBlocksX * mBlocksY * 2];
+    }
+
+    /**
+     * Sets the two frames to interpolate between and estimates the motion from one to the other.
+     * When {@code previous} is the {@code next} of the last call, its pyramid is reused. Neither
+     * array may change until the in-between frames have been built.
+     */
+    public void setFrames(byte[] previous, byte[] next) {
+        long start = System.nanoTime();
+        if (previous == mNext) {
+            byte[][] pyramid = mPreviousPyramid;
+            mPreviousPyramid = mNextPyramid;
+            mNextPyramid = pyramid;
+        } else {
+            buildPyramid(previous, mPreviousPyramid);
+        }
+        buildPyramid(next, mNextPyramid);
+        mPrevious = previous;
+        mNext = next;
+
+        for (int level = LEVELS - 1; level >= 0; level--) {
+            final int searchLevel = level;
+            run(new BlockRows(0, mBlocksY) {
+                @Override
+                void compute(int top, int bottom) {
+                    estimate(searchLevel, top, bottom);
+                }
+            });
+            int[] vectors = mCoarseVectors;
+            mCoarseVectors = mVectors;
+            mVectors = vectors;
+        }
+        // The finest level ended up in mCoarseVectors after the last swap
+        int[] vectors = mCoarseVectors;
+        mCoarseVectors = mVectors;
+        mVectors = vectors;
+        mElapsedNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Builds the frame {@code numerator / denominator} of the way from the previous frame to the
+     * next one into {@code out}, which must hold a whole frame.
+     */
+    public void interpolate(final int numerator, final int denominator, final byte[] out) {
+        if (mPrevious == null) {
+            throw new IllegalStateException("setFrames() not called");
+        }
+        long start = System.nanoTime();
+        run(new BlockRows(0, mBlocksY) {
+            @Override
+            void compute(int top, int bottom) {
+                compensate(numerator, denominator, out, top, bottom);
+            }
+        });
+        mElapsedNanos += System.nanoTime() - start;
+        mInterpolatedFrames++;
+    }
+
+    /**
+     * Frames built so far.
+     */
+    public long getFrameCount() {
+        return mInterpolatedFrames;
+    }
+
+    /**
+     * Frames built per second of time spent in motion estimation and compensation.
+     */
+    public double getFramesPerSecond() {
+        return mElapsedNanos == 0 ? 0 : mInterpolatedFrames * 1e9 / mElapsedNanos;
+    }
+
+    private void run(BlockRows rows) {
+        if (mWidth * mHeight < ParallelYuv.PARALLEL_THRESHOLD || Runtime.getRuntime().availableProcessors() < 2) {
+            rows.compute(rows.mTop, rows.mBottom);
+        } else {
+            ParallelYuv.getPool().invoke(rows);
+        }
+    }
+
+    private void buildPyramid(byte[] frame, byte[][] pyramid) {
+        byte[] src = frame;
+        int srcWidth = mWidth;
+        for (int level = 1; level < LEVELS; level++) {
+            byte[] dst = pyramid[level];
+            int width = mWidth >> level;
+            int height = mHeight >> level;
+            for (int y = 0; y < height; y++) {
+                int s = 2 * y * srcWidth;
+                int d = y * width;
+                for (int x = 0; x < width; x++, s += 2) {
+                    int sum = (src[s] & 0xFF) + (src[s + 1] & 0xFF)
+                            + (src[s + srcWidth] & 0xFF) + (src[s + srcWidth + 1] & 0xFF);
+                    dst[d + x] = (byte) ((sum + 2) >> 2);
+                }
+            }
+            src = dst;
+            srcWidth = width;
+        }
+    }
+
+    /**
+     * Finds the vectors of block rows {@code [top, bottom)} on one pyramid level, writing them to
+     * mVectors. Below the coarsest level the search is centered on the doubled vector of the level
+     * above, read from mCoarseVectors.
+     */
+    private void estimate(int level, int top, int bottom) {
+        byte[] previous = (level == 0) ? mPrevious : mPreviousPyramid[level];
+        byte[] next = (level == 0) ? mNext : mNextPyramid[level];
+        int width = mWidth >> level;
+        int height = mHeight >> level;
+        int blockSize = BLOCK_SIZE >> level;
+        boolean coarsest = (level == LEVELS - 1);
+        int range = coarsest ? SEARCH_RANGE : REFINE_RANGE;
+
+        for (int by = top; by < bottom; by++) {
+            for (int bx = 0; bx < mBlocksX; bx++) {
+                int v = (by * mBlocksX + bx) * 2;
+                int x0 = bx * blockSize;
+                int y0 = by * blockSize;
+                int x1 = Math.min(x0 + blockSize, width);
+                int y1 = Math.min(y0 + blockSize, height);
+                int centerX = coarsest ? 0 : mCoarseVectors[v] * 2;
+                int centerY = coarsest ? 0 : mCoarseVectors[v + 1] * 2;
+                if (x0 >= x1 || y0 >= y1) {
+                    // Block falls off a level rounded down from an odd size
+                    mVectors[v] = centerX;
+                    mVectors[v + 1] = centerY;
+                    continue;
+                }
+                // Candidates keep the whole block inside the previous frame
+                int minX = Math.max(centerX - range, -x0);
+                int maxX = Math.min(centerX + range, width - x1);
+                int minY = Math.max(centerY - range, -y0);
+                int maxY = Math.min(centerY + range, height - y1);
+                if (minX > maxX || minY > maxY) {
+                    // The prediction points outside the frame, search around zero instead
+                    centerX = 0;
+                    centerY = 0;
+                    minX = Math.max(-range, -x0);
+                    maxX = Math.min(range, width - x1);
+                    minY = Math.max(-range, -y0);
+                    maxY = Math.min(range, height - y1);
+                }
+                centerX = clamp(centerX, minX, maxX);
+                centerY = clamp(centerY, minY, maxY);
+
+                int bestX = centerX;
+                int bestY = centerY;
+                int best = sad(previous, next, width, x0, y0, x1, y1, centerX, centerY, Integer.MAX_VALUE);
+                for (int dy = minY; dy <= maxY && best > 0; dy++) {
+                    for (int dx = minX; dx <= maxX; dx++) {
+                        if (dx == centerX && dy == centerY) {
+                            continue;
+                        }
+                        int cost = sad(previous, next, width, x0, y0, x1, y1, dx, dy, best);
+                        if (cost < best) {
+                            best = cost;
+                            bestX = dx;
+                            bestY = dy;
+                        }
+                    }
+                }
+                mVectors[v] = bestX;
+                mVectors[v + 1] = bestY;
+            }
+        }
+    }
+
+    /**
+     * Sum of absolute differences, giving up once it reaches {@code limit}.
+     */
+    private static int sad(byte[] previous, byte[] next, int width, int x0, int y0, int x1, int y1,
+                           int dx, int dy, int limit) {
+        int sum = 0;
+        for (int y = y0; y < y1 && sum < limit; y++) {
+            int n = y * width;
+            int p = (y + dy) * width + dx;
+            for (int x = x0; x < x1; x++) {
+                sum += Math.abs((next[n + x] & 0xFF) - (previous[p + x] & 0xFF));
+            }
+        }
+        return sum;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : (value > max ? max : value);
+    }
+
+    /**
+     * Rounds {@code value / divisor} to the nearest integer, halves away from zero.
+     */
+    private static int divRound(int value, int divisor) {
+        return value >= 0 ? (value + divisor / 2) / divisor : -((-value + divisor / 2) / divisor);
+    }
+
+    private void compensate(int numerator, int denominator, byte[] out, int top, int bottom) {
+        int back = denominator - numerator;
+        int half = denominator / 2;
+        int lumaSize = mWidth * mHeight;
+        int chromaWidth = mWidth >> 1;
+        int chromaHeight = mHeight >> 1;
+        for (int by = top; by < bottom; by++) {
+            for (int bx = 0; bx < mBlocksX; bx++) {
+                int v = (by * mBlocksX + bx) * 2;
+                // The block sits at p + t * d in the previous frame and p - (1 - t) * d in the next
+                int prevX = divRound(mVectors[v] * numerator, denominator);
+                int prevY = divRound(mVectors[v + 1] * numerator, denominator);
+                int nextX = prevX - mVectors[v];
+                int nextY = prevY - mVectors[v + 1];
+
+                int x0 = bx * BLOCK_SIZE;
+                int y0 = by * BLOCK_SIZE;
+                int x1 = Math.min(x0 + BLOCK_SIZE, mWidth);
+                int y1 = Math.min(y0 + BLOCK_SIZE, mHeight);
+                blend(out, 0, mWidth, mWidth, mHeight, 1, x0, y0, x1, y1,
+                        prevX, prevY, nextX, nextY, back, numerator, denominator, half);
+                // Chroma pairs, at half the resolution and half the displacement
+                blend(out, lumaSize, mWidth, chromaWidth, chromaHeight, 2, x0 >> 1, y0 >> 1, x1 >> 1, y1 >> 1,
+                        prevX >> 1, prevY >> 1, nextX >> 1, nextY >> 1, back, numerator, denominator, half);
+            }
+        }
+    }
+
+    /**
+     * Blends one block of a plane. Samples are {@code bytesPerSample} wide (2 for an interleaved
+     * chroma pair); coordinates and displacements are in samples, {@code stride} is in bytes.
+     */
+    private void blend(byte[] out, int offset, int stride, int width, int height, int bytesPerSample,
+                       int x0, int y0, int x1, int y1, int prevX, int prevY, int nextX, int nextY,
+                       int prevWeight, int nextWeight, int denominator, int half) {
+        byte[] previous = mPrevious;
+        byte[] next = mNext;
+        boolean inside = x0 + Math.min(prevX, nextX) >= 0 && x1 + Math.max(prevX, nextX) <= width
+                && y0 + Math.min(prevY, nextY) >= 0 && y1 + Math.max(prevY, nextY) <= height;
+        for (int y = y0; y < y1; y++) {
+            int o = offset + y * stride + x0 * bytesPerSample;
+            int rowLength = (x1 - x0) * bytesPerSample;
+            if (inside) {
+                int p = offset + (y + prevY) * stride + (x0 + prevX) * bytesPerSample;
+                int n = offset + (y + nextY) * stride + (x0 + nextX) * bytesPerSample;
+                for (int i = 0; i < rowLength; i++) {
+                    out[o + i] = (byte) (((previous[p + i] & 0xFF) * prevWeight
+                            + (next[n + i] & 0xFF) * nextWeight + half) / denominator);
+                }
+            } else {
+                int p = offset + clamp(y + prevY, 0, height - 1) * stride;
+                int n = offset + clamp(y + nextY, 0, height - 1) * stride;
+                for (int i = 0; i < rowLength; i++) {
+                    int x = x0 + i / bytesPerSample;
+                    int component = i % bytesPerSample;
+                    int ps = p + clamp(x + prevX, 0, width - 1) * bytesPerSample + component;
+                    int ns = n + clamp(x + nextX, 0, width - 1) * bytesPerSample + component;
+                    out[o + i] = (byte) (((previous[ps] & 0xFF) * prevWeight
+                            + (next[ns] & 0xFF) * nextWeight + half) / denominator);
+                }
+            }
+        }
+    }
+
+    /**
+     * A range of block rows, halved until each piece is about one core's share.
+     */
+    private abstract static class BlockRows extends RecursiveAction {
+        final int mTop;
+        final int mBottom;
+
+        BlockRows(int top, int bottom) {
+            mTop = top;
+            mBottom = bottom;
+        }
+
+        abstract void compute(int top, int bottom);
+
+        @Override
+        protected void compute() {
+            int parallelism = ParallelYuv.getPool().getParallelism();
+            compute(this, mTop, mBottom, Math.max(1, (mBottom - mTop) / (parallelism * 2)));
+        }
+
+        private static void compute(final BlockRows rows, int top, int bottom, final int bandRows) {
+            if (bottom - top <= bandRows) {
+                rows.compute(top, bottom);
+                return;
+            }
+            int middle = (top + bottom) >>> 1;
+            invokeAll(band(rows, top, middle, bandRows), band(rows, middle, bottom, bandRows));
+        }
+
+        private static RecursiveAction band(final BlockRows rows, final int top, final int bottom, final int bandRows) {
+            return new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    BlockRows.compute(rows, top, bottom, bandRows);
+                }
+            };
+        }
+    }
+}
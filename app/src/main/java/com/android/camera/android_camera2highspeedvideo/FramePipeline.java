@@ -0,0 +1,310 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A chain of {@link FrameProcessor}s, each on its own thread, connected by bounded queues.
+ *
+ * While one stage works on a frame the stage before it can already work on the next one, so the
+ * slowest stage sets the pace instead of the sum of all of them. A full queue blocks the stage
+ * feeding it, all the way back to {@link #submit}, so at most about
+ * {@code stages * (queueDepth + 1)} frames are in flight.
+ *
+ * If a processor throws, the pipeline is marked failed: that stage drops every frame it receives
+ * from then on, {@link #submit} returns false, and {@link #finish()} still shuts everything down.
+ *
+ * With {@link Builder#setMetrics} each stage's processing time goes into its
+ * {@link PipelineMetrics} stage, not counting time blocked on the next stage's queue, which is
+ * recorded as {@link PipelineMetrics#STAGE_QUEUE_WAIT} instead. With {@link Builder#setTracer}
+ * every process call is a trace event named after its stage.
+ */
+public class FramePipeline {
+    private static final String TAG = "FramePipeline";
+    private static final int DEFAULT_QUEUE_DEPTH = 2;
+
+    private final Stage[] mStages;
+    private final Thread[] mThreads;
+    private final PipelineMetrics mMetrics;
+    private final FrameTracer mTracer;
+    private volatile boolean mFailed;
+    private boolean mStarted;
+
+    public static class Builder {
+        private final List<String> mNames = new ArrayList<>();
+        private final List<FrameProcessor> mProcessors = new ArrayList<>();
+        private final List<Integer> mMetricsStages = new ArrayList<>();
+        private int mQueueDepth = DEFAULT_QUEUE_DEPTH;
+        private PipelineMetrics mMetrics;
+        private FrameTracer mTracer;
+
+        /**
+         * Frames waiting in front of each stage. Defaults to 2.
+         */
+        public Builder setQueueDepth(int queueDepth) {
+            if (queueDepth <= 0) {
+                throw new IllegalArgumentException("queueDepth must be positive: " + queueDepth);
+            }
+            mQueueDepth = queueDepth;
+            return this;
+        }
+
+        /**
+         * Records per-stage timings, queue depths and dropped frames into {@code metrics}.
+         */
+        public Builder setMetrics(PipelineMetrics metrics) {
+            mMetrics = metrics;
+            return this;
+        }
+
+        /**
+         * Traces every process call, numbering frames per stage.
+         */
+        public Builder setTracer(FrameTracer tracer) {
+            mTracer = tracer;
+            return this;
+        }
+
+        /**
+         * Appends a stage, {@code name} is used for its thread. Its time is recorded as
+         * {@link PipelineMetrics#STAGE_PROCESS}.
+         */
+        public Builder addStage(String name, FrameProcessor processor) {
+            return addStage(name, processor, PipelineMetrics.STAGE_PROCESS);
+        }
+
+        /**
+         * Appends a stage whose time is recorded as {@code metricsStage}, one of the
+         * PipelineMetrics STAGE_* constants, or not at all if negative.
+         */
+        public Builder addStage(String name, FrameProcessor processor, int metricsStage) {
+            mNames.add(name);
+            mProcessors.add(processor);
+            mMetricsStages.add(metricsStage);
+            return this;
+        }
+
+        public FramePipeline build() {
+            if (mProcessors.isEmpty()) {
+                throw new IllegalStateException("A pipeline needs at least one stage");
+            }
+            return new FramePipeline(this);
+        }
+    }
+
+    private FramePipeline(Builder builder) {
+        int count = builder.mProcessors.size();
+        mMetrics = builder.mMetrics;
+        mTracer = builder.mTracer;
+        mStages = new Stage[count];
+        mThreads = new Thread[count];
+        for (int i = count - 1; i >= 0; i--) {
+            Stage next = (i + 1 < count) ? mStages[i + 1] : null;
+            mStages[i] = new Stage(builder.mNames.get(i), builder.mProcessors.get(i), builder.mMetricsStages.get(i),
+                    builder.mQueueDepth, next);
+        }
+    }
+
+    /**
+     * Starts one thread per stage.
+     */
+    public void start(int width, int height) {
+        if (mStarted) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        mStarted = true;
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i].mWidth = width;
+            mStages[i].mHeight = height;
+            mThreads[i] = new Thread(mStages[i], TAG + "-" + mStages[i].mName);
+            mThreads[i].start();
+        }
+    }
+
+    /**
+     * Queues a frame into the first stage, blocking while it is a full queue behind. The
+     * pipeline takes its own reference, the caller still releases its own.
+     *
+     * @return false if the pipeline has failed and the frame was not taken
+     */
+    public boolean submit(FramePool.Frame frame, long presentationTimeUs) {
+        if (mFailed) {
+            if (mMetrics != null) {
+                mMetrics.countDropped();
+            }
+            return false;
+        }
+        mStages[0].emit(frame, presentationTimeUs);
+        return true;
+    }
+
+    /**
+     * Lets every queued frame run through, ends the stages one after the other and waits for
+     * their threads.
+     */
+    public void finish() {
+        if (!mStarted) {
+            return;
+        }
+        mStages[0].put(Item.END);
+        for (Thread thread : mThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public boolean isFailed() {
+        return mFailed;
+    }
+
+    private static class Item {
+        static final Item END = new Item(null, 0);
+
+        final FramePool.Frame frame;
+        final long presentationTimeUs;
+
+        Item(FramePool.Frame frame, long presentationTimeUs) {
+            this.frame = frame;
+            this.presentationTimeUs = presentationTimeUs;
+        }
+    }
+
+    private class Stage implements Runnable, FrameProcessor.Output {
+        final String mName;
+        final FrameProcessor mProcessor;
+        final int mMetricsStage;
+        final BlockingQueue<Item> mQueue;
+        final Stage mNext;
+        int mWidth;
+        int mHeight;
+        // Time the stage feeding this one spent blocked on a full queue, only touched by that stage
+        long mProducerBlockedNanos;
+        long mFrameCount;
+
+        Stage(String name, FrameProcessor processor, int metricsStage, int queueDepth, Stage next) {
+            mName = name;
+            mProcessor = processor;
+            mMetricsStage = metricsStage;
+            mQueue = new ArrayBlockingQueue<>(queueDepth);
+            mNext = next;
+        }
+
+        /**
+         * Queues a frame into this stage.
+         */
+        @Override
+        public void emit(FramePool.Frame frame, long presentationTimeUs) {
+            frame.retain();
+            put(new Item(frame, presentationTimeUs));
+        }
+
+        void put(Item item) {
+            boolean timed = mMetrics != null && item != Item.END;
+            long start = 0;
+            if (timed) {
+                mMetrics.recordQueueDepth(PipelineMetrics.QUEUE_PIPELINE, mQueue.size());
+                start = System.nanoTime();
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mQueue.put(item);
+                    break;
+                } catch (InterruptedException e) {
+                    // The frame must not be lost, its reference would leak
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (timed) {
+                long blocked = System.nanoTime() - start;
+                mProducerBlockedNanos += blocked;
+                mMetrics.record(PipelineMetrics.STAGE_QUEUE_WAIT, blocked);
+            }
+        }
+
+        private Item take() {
+            while (true) {
+                try {
+                    return mQueue.take();
+                } catch (InterruptedException e) {
+                    // Only finish() ends a stage
+                }
+            }
+        }
+
+        private boolean failed(RuntimeException e) {
+            Log.e(TAG, "Stage " + mName + " failed, dropping frames from now on", e);
+            mFailed = true;
+            return false;
+        }
+
+        @Override
+        public void run() {
+            // Frames emitted by the last stage go nowhere
+            FrameProcessor.Output output = (mNext != null) ? mNext : DISCARD;
+            boolean healthy = true;
+            try {
+                mProcessor.onStart(mWidth, mHeight);
+            } catch (RuntimeException e) {
+                healthy = failed(e);
+            }
+            while (true) {
+                Item item = take();
+                if (item == Item.END) {
+                    break;
+                }
+                if (healthy) {
+                    boolean timed = mMetrics != null && mMetricsStage >= 0;
+                    long start = timed ? System.nanoTime() : 0;
+                    long blocked = (timed && mNext != null) ? mNext.mProducerBlockedNanos : 0;
+                    long traceStart = mTracer != null ? mTracer.begin(mName) : 0;
+                    try {
+                        mProcessor.process(item.frame, item.presentationTimeUs, output);
+                    } catch (RuntimeException e) {
+                        healthy = failed(e);
+                    }
+                    if (mTracer != null) {
+                        mTracer.end(mName, mFrameCount, traceStart);
+                    }
+                    if (timed) {
+                        if (mNext != null) {
+                            blocked = mNext.mProducerBlockedNanos - blocked;
+                        }
+                        mMetrics.record(mMetricsStage, System.nanoTime() - start - blocked);
+                    }
+                } else if (mMetrics != null) {
+                    mMetrics.countDropped();
+                }
+                item.frame.release();
+                mFrameCount++;
+            }
+            if (healthy) {
+                try {
+                    mProcessor.onEnd(output);
+                } catch (RuntimeException e) {
+                    failed(e);
+                }
+            }
+            if (mNext != null) {
+                mNext.put(Item.END);
+            }
+        }
+    }
+
+    private static final FrameProcessor.Output DISCARD = new FrameProcessor.Output() {
+        @Override
+        public void emit(FramePool.Frame frame, long presentationTimeUs) {
+        }
+    };
+}
@@ -0,0 +1,178 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable byte buffers keyed by their exact size.
+ *
+ * {@link #acquire(int)} hands out a {@link Frame} with a reference count of one. Every stage that
+ * keeps the frame calls {@link Frame#retain()}, and every owner calls {@link Frame#release()} when
+ * done; the buffer goes back to the pool when the count drops to zero. Once each size has been
+ * seen a few times, acquiring a frame no longer allocates. The hit and miss counters show whether
+ * that is the case.
+ */
+public class FramePool {
+    private static final String TAG = "FramePool";
+    private static final int DEFAULT_MAX_FRAMES_PER_SIZE = 8;
+
+    private final int mMaxFramesPerSize;
+    // Only a handful of distinct sizes are used per job, a linear scan beats boxing the key
+    private Bucket[] mBuckets = new Bucket[4];
+    private int mBucketCount;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mDiscards = new AtomicLong();
+
+    public FramePool() {
+        this(DEFAULT_MAX_FRAMES_PER_SIZE);
+    }
+
+    /**
+     * @param maxFramesPerSize how many released frames of one size are kept for reuse
+     */
+    public FramePool(int maxFramesPerSize) {
+        mMaxFramesPerSize = maxFramesPerSize;
+    }
+
+    /**
+     * Returns a frame of exactly {@code size} bytes with a reference count of one. The content is
+     * whatever the previous user left in it.
+     */
+    public Frame acquire(int size) {
+        Frame frame = null;
+        synchronized (this) {
+            Bucket bucket = findBucket(size);
+            if (bucket != null && bucket.count > 0) {
+                frame = bucket.frames[--bucket.count];
+                bucket.frames[bucket.count] = null;
+            }
+        }
+        if (frame != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+            frame = new Frame(this, size);
+        }
+        frame.mRefCount.set(1);
+        return frame;
+    }
+
+    private void recycle(Frame frame) {
+        synchronized (this) {
+            Bucket bucket = findBucket(frame.data.length);
+            if (bucket == null) {
+                bucket = addBucket(frame.data.length);
+            }
+            if (bucket.count < bucket.frames.length) {
+                bucket.frames[bucket.count++] = frame;
+                return;
+            }
+        }
+        mDiscards.incrementAndGet();
+    }
+
+    private Bucket findBucket(int size) {
+        for (int i = 0; i < mBucketCount; i++) {
+            if (mBuckets[i].size == size) {
+                return mBuckets[i];
+            }
+        }
+        return null;
+    }
+
+    private Bucket addBucket(int size) {
+        if (mBucketCount == mBuckets.length) {
+            Bucket[] buckets = new Bucket[mBucketCount * 2];
+            System.arraycopy(mBuckets, 0, buckets, 0, mBucketCount);
+            mBuckets = buckets;
+        }
+        Bucket bucket = new Bucket(size, mMaxFramesPerSize);
+        mBuckets[mBucketCount++] = bucket;
+        return bucket;
+    }
+
+    /**
+     * Number of {@link #acquire(int)} calls served from the pool.
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * Number of {@link #acquire(int)} calls that had to allocate.
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Number of released frames dropped because their bucket was full.
+     */
+    public long getDiscardCount() {
+        return mDiscards.get();
+    }
+
+    /**
+     * Drops all pooled frames and resets the counters.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mBucketCount; i++) {
+            mBuckets[i] = null;
+        }
+        mBucketCount = 0;
+        mHits.set(0);
+        mMisses.set(0);
+        mDiscards.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "{hits=" + mHits.get() + ", misses=" + mMisses.get() + ", discards=" + mDiscards.get() + "}";
+    }
+
+    public static class Frame {
+        public final byte[] data;
+        private final FramePool mPool;
+        private final AtomicInteger mRefCount = new AtomicInteger();
+
+        Frame(FramePool pool, int size) {
+            mPool = pool;
+            data = new byte[size];
+        }
+
+        /**
+         * Adds an owner. Each call must be balanced by a {@link #release()}.
+         */
+        public Frame retain() {
+            if (mRefCount.getAndIncrement() <= 0) {
+                throw new IllegalStateException("retain() on a released frame");
+            }
+            return this;
+        }
+
+        /**
+         * Drops an owner, the last one returns the buffer to the pool.
+         */
+        public void release() {
+            int count = mRefCount.decrementAndGet();
+            if (count == 0) {
+                mPool.recycle(this);
+            } else if (count < 0) {
+                throw new IllegalStateException("release() on a released frame");
+            }
+        }
+    }
+
+    private static class Bucket {
+        final int size;
+        final Frame[] frames;
+        int count;
+
+        Bucket(int size, int capacity) {
+            this.size = size;
+            this.frames = new Frame[capacity];
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+/**
+ * One stage of a {@link FramePipeline}. Every stage runs on its own thread, so a processor only
+ * ever sees one frame at a time and needs no locking of its own.
+ *
+ * Frames are {@link FramePool.Frame}s in the pipeline's frame format. The frame passed to
+ * {@link #process} belongs to the pipeline for the duration of the call; a processor that keeps
+ * it for later calls {@link FramePool.Frame#retain()} and releases it when done. Frames go on to
+ * the next stage through {@link Output#emit}, zero, one or several per input.
+ */
+public interface FrameProcessor {
+
+    interface Output {
+        /**
+         * Passes a frame to the next stage, blocking while its queue is full. The next stage
+         * takes its own reference, the caller still releases its own.
+         */
+        void emit(FramePool.Frame frame, long presentationTimeUs);
+    }
+
+    /**
+     * Called on the stage's thread before the first frame.
+     */
+    void onStart(int width, int height);
+
+    void process(FramePool.Frame frame, long presentationTimeUs, Output output);
+
+    /**
+     * Called after the last frame. Frames held back can still be emitted here.
+     */
+    void onEnd(Output output);
+}
@@ -0,0 +1,130 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer ring of preallocated frame slots.
+ *
+ * The producer fills the slot returned by {@link #obtain()} and hands it over with
+ * {@link #push()}; the consumer reads the slot returned by {@link #peek()} and gives it back
+ * with {@link #release()}. All slots are allocated up front, so memory stays at
+ * {@code depth * frameSize} no matter how far the producer runs ahead, and nothing is
+ * allocated per frame. When the ring is full {@link #obtain()} spins briefly and then parks
+ * until the consumer frees a slot, which throttles the producer to the consumer's pace.
+ */
+public class FrameRing {
+    private static final int SPIN_TRIES = 64;
+    private static final long PARK_NANOS = 100000L;   // 0.1ms
+
+    private final byte[][] mSlots;
+    private final int mFrameSize;
+    // mHead is only advanced by the consumer, mTail only by the producer
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    private volatile boolean mClosed;
+
+    /**
+     * @param depth     number of frame slots
+     * @param frameSize size in bytes of each slot
+     */
+    public FrameRing(int depth, int frameSize) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("depth must be positive: " + depth);
+        }
+        mSlots = new byte[depth][frameSize];
+        mFrameSize = frameSize;
+    }
+
+    public int getDepth() {
+        return mSlots.length;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+    /**
+     * Producer side. Returns the next free slot, waiting while the ring is full.
+     * Returns null if the ring was closed while waiting.
+     */
+    public byte[] obtain() {
+        long tail = mTail.get();
+        int tries = 0;
+        while (tail - mHead.get() >= mSlots.length) {
+            if (mClosed) {
+                return null;
+            }
+            if (++tries < SPIN_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+        return mSlots[(int) (tail % mSlots.length)];
+    }
+
+    /**
+     * Producer side. Publishes the slot returned by the last {@link #obtain()}.
+     */
+    public void push() {
+        mTail.lazySet(mTail.get() + 1);
+    }
+
+    /**
+     * Consumer side. Returns the oldest published slot, or null if the ring is empty.
+     */
+    public byte[] peek() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return null;
+        }
+        return mSlots[(int) (head % mSlots.length)];
+    }
+
+    /**
+     * Consumer side. Like {@link #peek()}, but waits until a slot is published.
+     * Returns null once the ring is closed and drained.
+     */
+    public byte[] take() {
+        int tries = 0;
+        byte[] slot;
+        while ((slot = peek()) == null) {
+            if (mClosed && isEmpty()) {
+                return null;
+            }
+            if (++tries < SPIN_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Consumer side. Returns the slot obtained by the last {@link #peek()} to the producer.
+     */
+    public void release() {
+        mHead.lazySet(mHead.get() + 1);
+    }
+
+    /**
+     * Marks the end of the stream. Pending slots can still be consumed.
+     */
+    public void close() {
+        mClosed = true;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+}
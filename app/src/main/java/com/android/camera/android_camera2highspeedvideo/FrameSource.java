@@ -0,0 +1,37 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+/**
+ * Frames arriving one by one, for {@link MediaCodecProc#processStream} to work on while they are
+ * still being captured. {@link ImageReaderFrameSource} takes them from the camera, the unit
+ * tests' FakeMediaBackend.FakeFrameSource makes them up.
+ */
+public interface FrameSource {
+
+    interface Callback {
+        /**
+         * A YUV 4:2:0 frame, its planes valid until this returns. Calls come from one thread at a
+         * time and may block, a source then drops frames or falls behind.
+         */
+        void onFrame(YuvPlanes planes, long timestampUs);
+
+        /**
+         * No more frames follow.
+         */
+        void onEnd();
+    }
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Starts delivering frames to {@code callback}.
+     */
+    void start(Callback callback);
+
+    /**
+     * Ends the stream. Frames already captured are delivered, then {@link Callback#onEnd()} is
+     * called. Doesn't wait for that.
+     */
+    void stop();
+}
@@ -0,0 +1,262 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sequence of same-sized raw frames in one memory-mapped file, instead of one file per frame.
+ *
+ * <pre>
+ * header   HEADER_SIZE bytes: magic, version, width, height, format, frame size,
+ *          frames per region, frame count (big-endian ints)
+ * region 0 index of presentation times (one long per frame, padded to a page), then the frames
+ * region 1 ...
+ * </pre>
+ *
+ * Regions are mapped one at a time and the file grows a region at a time, so neither the
+ * address space nor the file size depend on how long the recording is. A frame is written by
+ * filling the buffer returned by {@link #obtain()} and calling {@link #commit(long)}; nothing goes
+ * through a stream and nothing is written back until the kernel decides to. The frame count in
+ * the header is updated on every commit, so a store left behind by a crash is readable up to the
+ * last committed frame.
+ *
+ * Not thread safe, a store has one writer.
+ */
+public class FrameStore implements Closeable {
+    public static final String FILE_SUFFIX = ".frames";
+
+    static final int HEADER_SIZE = 4096;
+    private static final int MAGIC = 0x59555646;   // "YUVF"
+    private static final int VERSION = 1;
+    private static final int PAGE_SIZE = 4096;
+    // Small enough to map on 32-bit devices, large enough that remapping is rare
+    private static final int REGION_BYTES = 64 * 1024 * 1024;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_WIDTH = 8;
+    private static final int OFFSET_HEIGHT = 12;
+    private static final int OFFSET_FORMAT = 16;
+    private static final int OFFSET_FRAME_SIZE = 20;
+    private static final int OFFSET_FRAMES_PER_REGION = 24;
+    private static final int OFFSET_FRAME_COUNT = 28;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final boolean mWritable;
+    private final MappedByteBuffer mHeader;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private final int mFrameSize;
+    private final int mFramesPerRegion;
+    private final int mIndexSize;
+    private final long mRegionSize;
+    private int mFrameCount;
+
+    // Only the region last written to and the one last read from stay mapped
+    private MappedByteBuffer mRegion;
+    private int mRegionIndex = -1;
+    private MappedByteBuffer mReadRegion;
+    private int mReadRegionIndex = -1;
+    private boolean mObtained;
+
+    private FrameStore(RandomAccessFile file, boolean writable, MappedByteBuffer header) {
+        mFile = file;
+        mChannel = file.getChannel();
+        mWritable = writable;
+        mHeader = header;
+        mWidth = header.getInt(OFFSET_WIDTH);
+        mHeight = header.getInt(OFFSET_HEIGHT);
+        mFormat = header.getInt(OFFSET_FORMAT);
+        mFrameSize = header.getInt(OFFSET_FRAME_SIZE);
+        mFramesPerRegion = header.getInt(OFFSET_FRAMES_PER_REGION);
+        mFrameCount = header.getInt(OFFSET_FRAME_COUNT);
+        mIndexSize = (mFramesPerRegion * 8 + PAGE_SIZE - 1) & ~(PAGE_SIZE - 1);
+        mRegionSize = mIndexSize + (long) mFramesPerRegion * mFrameSize;
+    }
+
+    /**
+     * Creates an empty store, replacing {@code file} if it exists.
+     *
+     * @param format one of the {@link YuvConverter} FORMAT_* constants
+     */
+    public static FrameStore create(File file, int width, int height, int format) throws IOException {
+        int frameSize = YuvConverter.getFrameSize(format, width, height);
+        return create(file, width, height, format, Math.max(1, REGION_BYTES / frameSize));
+    }
+
+    static FrameStore create(File file, int width, int height, int format, int framesPerRegion) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(OFFSET_MAGIC, MAGIC);
+            header.putInt(OFFSET_VERSION, VERSION);
+            header.putInt(OFFSET_WIDTH, width);
+            header.putInt(OFFSET_HEIGHT, height);
+            header.putInt(OFFSET_FORMAT, format);
+            header.putInt(OFFSET_FRAME_SIZE, YuvConverter.getFrameSize(format, width, height));
+            header.putInt(OFFSET_FRAMES_PER_REGION, framesPerRegion);
+            header.putInt(OFFSET_FRAME_COUNT, 0);
+            return new FrameStore(raf, true, header);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing store for reading.
+     */
+    public static FrameStore open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_SIZE) {
+                throw new IOException(file + " is not a frame store");
+            }
+            MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(OFFSET_MAGIC) != MAGIC) {
+                throw new IOException(file + " is not a frame store");
+            }
+            if (header.getInt(OFFSET_VERSION) != VERSION) {
+                throw new IOException("Unsupported frame store version " + header.getInt(OFFSET_VERSION));
+            }
+            return new FrameStore(raf, false, header);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * One of the {@link YuvConverter} FORMAT_* constants.
+     */
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    private long regionOffset(int region) {
+        return HEADER_SIZE + region * mRegionSize;
+    }
+
+    private MappedByteBuffer writeRegion(int region) throws IOException {
+        if (region != mRegionIndex) {
+            // Mapping past the end grows the file
+            mRegion = mChannel.map(FileChannel.MapMode.READ_WRITE, regionOffset(region), mRegionSize);
+            mRegionIndex = region;
+        }
+        return mRegion;
+    }
+
+    private MappedByteBuffer readRegion(int region) throws IOException {
+        if (region == mRegionIndex) {
+            return mRegion;
+        }
+        if (region != mReadRegionIndex) {
+            FileChannel.MapMode mode = mWritable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+            mReadRegion = mChannel.map(mode, regionOffset(region), mRegionSize);
+            mReadRegionIndex = region;
+        }
+        return mReadRegion;
+    }
+
+    private static ByteBuffer slice(ByteBuffer region, int offset, int length) {
+        ByteBuffer buffer = region.duplicate();
+        buffer.limit(offset + length).position(offset);
+        return buffer.slice();
+    }
+
+    /**
+     * Returns the mapped memory of the next frame, to be filled and then published with
+     * {@link #commit(long)}. The buffer is {@link #getFrameSize()} bytes with its position at 0.
+     */
+    public ByteBuffer obtain() throws IOException {
+        if (!mWritable) {
+            throw new IllegalStateException("Frame store is read only");
+        }
+        MappedByteBuffer region = writeRegion(mFrameCount / mFramesPerRegion);
+        mObtained = true;
+        return slice(region, mIndexSize + (mFrameCount % mFramesPerRegion) * mFrameSize, mFrameSize);
+    }
+
+    /**
+     * Publishes the frame returned by the last {@link #obtain()}.
+     */
+    public void commit(long presentationTimeUs) {
+        if (!mObtained) {
+            throw new IllegalStateException("commit() without obtain()");
+        }
+        mObtained = false;
+        mRegion.putLong((mFrameCount % mFramesPerRegion) * 8, presentationTimeUs);
+        mFrameCount++;
+        mHeader.putInt(OFFSET_FRAME_COUNT, mFrameCount);
+    }
+
+    /**
+     * Copies {@code data} in as the next frame. {@link #obtain()} saves the copy when the frame
+     * can be produced straight into the store.
+     */
+    public void append(byte[] data, long presentationTimeUs) throws IOException {
+        if (data.length != mFrameSize) {
+            throw new IllegalArgumentException("Frame is " + data.length + " bytes, expected " + mFrameSize);
+        }
+        obtain().put(data);
+        commit(presentationTimeUs);
+    }
+
+    /**
+     * Returns frame {@code index} as a view of the mapping, without copying. The buffer stays
+     * valid after the store is closed.
+     */
+    public ByteBuffer getFrame(int index) throws IOException {
+        checkIndex(index);
+        MappedByteBuffer region = readRegion(index / mFramesPerRegion);
+        ByteBuffer frame = slice(region, mIndexSize + (index % mFramesPerRegion) * mFrameSize, mFrameSize);
+        return mWritable ? frame.asReadOnlyBuffer() : frame;
+    }
+
+    public long getPresentationTimeUs(int index) throws IOException {
+        checkIndex(index);
+        return readRegion(index / mFramesPerRegion).getLong((index % mFramesPerRegion) * 8);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mFrameCount) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + mFrameCount);
+        }
+    }
+
+    /**
+     * Closes the file. Committed frames are written back by the kernel from the page cache, there
+     * is no flush to wait for.
+     */
+    @Override
+    public void close() throws IOException {
+        mRegion = null;
+        mReadRegion = null;
+        mChannel.close();
+        mFile.close();
+    }
+}
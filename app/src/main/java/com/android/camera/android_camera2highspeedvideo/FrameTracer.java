@@ -0,0 +1,178 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.os.Trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records one event per piece of per-frame work: its name, the thread, the frame number and
+ * when it ran. The events go into a ring of preallocated slots, the oldest overwritten once
+ * it is full. Each event is also an {@link Trace} section, so it shows up in systrace and
+ * Perfetto captures.
+ *
+ * {@link #writeJson(File)} dumps the ring in the Chrome trace event format, which both
+ * chrome://tracing and ui.perfetto.dev open. That shows how the decoder, the pipeline stages and
+ * the encoder threads overlap frame by frame.
+ *
+ * Usage is a pair of calls around the work:
+ * <pre>
+ *     long start = tracer.begin(NAME);
+ *     ...
+ *     tracer.end(NAME, frame, start);
+ * </pre>
+ * Names must be constants or otherwise long-lived strings, they are stored by reference. While
+ * disabled, begin() is one volatile read and end() one comparison.
+ */
+public class FrameTracer {
+    private static final int DEFAULT_CAPACITY = 16384;
+
+    private final String[] mNames;
+    private final String[] mThreadNames;
+    private final long[] mThreadIds;
+    private final long[] mFrames;
+    private final long[] mStartNanos;
+    private final long[] mDurationNanos;
+    private final AtomicLong mNext = new AtomicLong();
+    private final long mOriginNanos = System.nanoTime();
+    private volatile boolean mEnabled;
+
+    public FrameTracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity events kept, the most recent ones win
+     */
+    public FrameTracer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mNames = new String[capacity];
+        mThreadNames = new String[capacity];
+        mThreadIds = new long[capacity];
+        mFrames = new long[capacity];
+        mStartNanos = new long[capacity];
+        mDurationNanos = new long[capacity];
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Starts an event on the calling thread.
+     *
+     * @return the token to pass to {@link #end}, 0 when disabled
+     */
+    public long begin(String name) {
+        if (!mEnabled) {
+            return 0;
+        }
+        Trace.beginSection(name);
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends the event started by the {@link #begin} that returned {@code start}, on the same thread.
+     *
+     * @param frame the frame the work was for, numbered by the thread doing it
+     */
+    public void end(String name, long frame, long start) {
+        if (start == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        Trace.endSection();
+        Thread thread = Thread.currentThread();
+        int slot = (int) (mNext.getAndIncrement() % mNames.length);
+        mNames[slot] = name;
+        mThreadNames[slot] = thread.getName();
+        mThreadIds[slot] = thread.getId();
+        mFrames[slot] = frame;
+        mStartNanos[slot] = start;
+        mDurationNanos[slot] = now - start;
+    }
+
+    /**
+     * Events recorded so far, including overwritten ones.
+     */
+    public long getEventCount() {
+        return mNext.get();
+    }
+
+    public void clear() {
+        mNext.set(0);
+    }
+
+    /**
+     * Writes the kept events as a Chrome trace. Call it once the traced threads are done,
+     * events still being recorded may come out torn.
+     */
+    public void writeJson(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")));
+        try {
+            writeJson(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    void writeJson(Writer writer) throws IOException {
+        long count = mNext.get();
+        int kept = (int) Math.min(count, mNames.length);
+        long first = count - kept;
+        Set<Long> threads = new HashSet<>();
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean comma = false;
+        for (long i = first; i < count; i++) {
+            int slot = (int) (i % mNames.length);
+            if (threads.add(mThreadIds[slot])) {
+                // Names the thread's track
+                writer.write(comma ? "," : "");
+                writer.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + mThreadIds[slot]
+                        + ",\"args\":{\"name\":" + quote(mThreadNames[slot]) + "}}");
+                comma = true;
+            }
+            writer.write(comma ? "," : "");
+            writer.write("\n{\"name\":" + quote(mNames[slot]) + ",\"ph\":\"X\",\"pid\":1,\"tid\":" + mThreadIds[slot]
+                    + ",\"ts\":" + toMicros(mStartNanos[slot] - mOriginNanos)
+                    + ",\"dur\":" + toMicros(mDurationNanos[slot])
+                    + ",\"args\":{\"frame\":" + mFrames[slot] + "}}");
+            comma = true;
+        }
+        writer.write("\n]}\n");
+    }
+
+    private static String toMicros(long nanos) {
+        return (nanos / 1000) + "." + String.valueOf(1000 + nanos % 1000).substring(1);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
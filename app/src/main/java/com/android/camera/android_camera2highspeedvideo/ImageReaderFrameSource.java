@@ -0,0 +1,124 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * Camera frames from a YUV {@link ImageReader}, whose {@link #getSurface() surface} goes into the
+ * capture session where the recorder's would.
+ *
+ * Frames are handed on on a thread of the source's own. While one is being handled the camera
+ * fills the reader's other images, and once those run out it drops frames: {@code maxImages} is
+ * how far processing may fall behind. Constrained high-speed sessions only have to accept preview
+ * and video encoder surfaces, some devices turn a session with a reader down.
+ */
+public class ImageReaderFrameSource implements FrameSource {
+    private static final String TAG = "ImageReaderFrameSource";
+
+    private final ImageReader mReader;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    // Only used on mThread
+    private final YuvPlanes mPlanes = new YuvPlanes();
+    private long mFrameCount;
+    // Set under the source's lock, on whichever thread start() and stop() come from
+    private Callback mCallback;
+    private boolean mStopped;
+
+    private final ImageReader.OnImageAvailableListener mImageListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            deliver(reader.acquireNextImage());
+        }
+    };
+
+    /**
+     * @param maxImages frames the camera can capture ahead of processing
+     */
+    public ImageReaderFrameSource(int width, int height, int maxImages) {
+        mReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, maxImages);
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Where the camera puts the frames.
+     */
+    public Surface getSurface() {
+        return mReader.getSurface();
+    }
+
+    @Override
+    public int getWidth() {
+        return mReader.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mReader.getHeight();
+    }
+
+    @Override
+    public void start(Callback callback) {
+        synchronized (this) {
+            if (!mStopped) {
+                mCallback = callback;
+                mReader.setOnImageAvailableListener(mImageListener, mHandler);
+                return;
+            }
+        }
+        // Stopped before it started, the thread is gone
+        callback.onEnd();
+    }
+
+    /**
+     * Call it after the capture session is closed, the reader and its surface are released once
+     * the frames left in it are delivered.
+     */
+    @Override
+    public void stop() {
+        final Callback callback;
+        synchronized (this) {
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
+            callback = mCallback;
+        }
+        // The thread is only quit here, so this always runs
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mReader.setOnImageAvailableListener(null, null);
+                if (callback != null) {
+                    Image image;
+                    while ((image = mReader.acquireNextImage()) != null) {
+                        deliver(image);
+                    }
+                    callback.onEnd();
+                }
+                mReader.close();
+                Log.d(TAG, mFrameCount + " frames delivered");
+                mThread.quitSafely();
+            }
+        });
+    }
+
+    private void deliver(Image image) {
+        if (image == null) {
+            return;
+        }
+        try {
+            mCallback.onFrame(mPlanes.set(image), image.getTimestamp() / 1000);
+            mFrameCount++;
+        } finally {
+            image.close();
+        }
+    }
+}
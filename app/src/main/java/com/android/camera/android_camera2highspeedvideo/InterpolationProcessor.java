@@ -0,0 +1,116 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+/**
+ * Pipeline stage that puts {@code upRatio - 1} new frames between every two frames it receives,
+ * either motion compensated ({@link FrameInterpolator}) or blended.
+ *
+ * The interpolator works on NV21 or NV12 and the blend on any 8-bit format; other frame formats
+ * are converted to NV21 for the interpolation and back.
+ */
+public class InterpolationProcessor implements FrameProcessor {
+    private final int mMode;
+    private final int mUpRatio;
+    private final int mFormat;
+    private final FramePool mFramePool;
+
+    private int mWidth;
+    private int mHeight;
+    private boolean mConvert;
+    private FrameInterpolator mInterpolator;
+    // The last frame received, in the working format
+    private FramePool.Frame mPrevious;
+    private long mPreviousTimeUs;
+
+    private volatile long mInterpolatedFrames;
+    private volatile long mElapsedNanos;
+
+    /**
+     * @param mode    {@link MediaCodecProc#PROCESSING_MODE_BLEND} or {@link MediaCodecProc#PROCESSING_MODE_MOTION}
+     * @param upRatio frames out per frame in
+     * @param format  the {@link YuvConverter} FORMAT_* of the frames
+     */
+    public InterpolationProcessor(int mode, int upRatio, int format, FramePool framePool) {
+        mMode = mode;
+        mUpRatio = upRatio;
+        mFormat = format;
+        mFramePool = framePool;
+    }
+
+    @Override
+    public void onStart(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        if (mMode == MediaCodecProc.PROCESSING_MODE_MOTION) {
+            mInterpolator = new FrameInterpolator(width, height);
+            mConvert = mFormat != YuvConverter.FORMAT_NV21 && mFormat != YuvConverter.FORMAT_NV12;
+        } else {
+            mConvert = mFormat == YuvConverter.FORMAT_P010;
+        }
+    }
+
+    @Override
+    public void process(FramePool.Frame frame, long presentationTimeUs, Output output) {
+        FramePool.Frame current = frame;
+        if (mConvert) {
+            current = mFramePool.acquire(YuvConverter.getFrameSize(YuvConverter.FORMAT_NV21, mWidth, mHeight));
+            YuvConverter.convert(frame.data, mFormat, current.data, YuvConverter.FORMAT_NV21, mWidth, mHeight);
+        } else {
+            current.retain();
+        }
+
+        if (mPrevious != null) {
+            // Only the time spent building frames counts, not the time blocked on the next stage
+            long start = System.nanoTime();
+            if (mInterpolator != null) {
+                mInterpolator.setFrames(mPrevious.data, current.data);
+            }
+            mElapsedNanos += System.nanoTime() - start;
+            FramePool.Frame between = mConvert ? mFramePool.acquire(current.data.length) : null;
+            for (int i = 1; i < mUpRatio; i++) {
+                start = System.nanoTime();
+                FramePool.Frame out = mFramePool.acquire(frame.data.length);
+                byte[] dst = mConvert ? between.data : out.data;
+                if (mInterpolator != null) {
+                    mInterpolator.interpolate(i, mUpRatio, dst);
+                } else {
+                    ParallelYuv.blendFrames(mPrevious.data, current.data, dst, mWidth, mHeight,
+                            Utils.blendWeight(i, mUpRatio));
+                }
+                if (mConvert) {
+                    YuvConverter.convert(dst, YuvConverter.FORMAT_NV21, out.data, mFormat, mWidth, mHeight);
+                }
+                mElapsedNanos += System.nanoTime() - start;
+                mInterpolatedFrames++;
+                output.emit(out, mPreviousTimeUs + (presentationTimeUs - mPreviousTimeUs) * i / mUpRatio);
+                out.release();
+            }
+            if (between != null) {
+                between.release();
+            }
+            mPrevious.release();
+        }
+        output.emit(frame, presentationTimeUs);
+        mPrevious = current;
+        mPreviousTimeUs = presentationTimeUs;
+    }
+
+    @Override
+    public void onEnd(Output output) {
+        if (mPrevious != null) {
+            mPrevious.release();
+            mPrevious = null;
+        }
+    }
+
+    public long getFrameCount() {
+        return mInterpolatedFrames;
+    }
+
+    /**
+     * Frames built per second of time spent building them.
+     */
+    public double getFramesPerSecond() {
+        long elapsed = mElapsedNanos;
+        return elapsed == 0 ? 0 : mInterpolatedFrames * 1e9 / elapsed;
+    }
+}
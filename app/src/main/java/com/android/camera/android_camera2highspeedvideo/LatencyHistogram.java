@@ -0,0 +1,97 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket latency histogram, safe to record into from any thread.
+ *
+ * Bucket 0 counts durations under 1us, bucket {@code i} those in {@code [2^(i-1), 2^i)} us, the
+ * last one everything longer. Recording is a few atomic increments and never allocates, so it
+ * can stay on in the per-frame paths. Percentiles are read as the upper bound of the bucket
+ * they fall in, exact to within a factor of two.
+ */
+public class LatencyHistogram {
+    public static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mBuckets.incrementAndGet(bucketOf(nanos / 1000));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxNanos.get())) {
+            if (mMaxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    static int bucketOf(long micros) {
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Upper bound of a bucket in microseconds, Long.MAX_VALUE for the last one.
+     */
+    public static long getBucketLimitUs(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public long getBucketCount(int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getTotalNanos() {
+        return mTotalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    public long getMeanNanos() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotalNanos.get() / count;
+    }
+
+    /**
+     * Upper bound in microseconds of the bucket holding the {@code percentile}th value, 0 when
+     * empty. The maximum stands in for the open-ended last bucket.
+     */
+    public long getPercentileUs(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return getBucketLimitUs(i);
+            }
+        }
+        return mMaxNanos.get() / 1000;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+}
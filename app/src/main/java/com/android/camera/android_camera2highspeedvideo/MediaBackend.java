@@ -0,0 +1,40 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import java.io.IOException;
+
+/**
+ * Creates the extractors, codecs and muxers {@link MediaCodecProc} works with.
+ * {@link AndroidMediaBackend} wraps the framework classes; FakeMediaBackend, in the unit tests
+ * and used by the benchmarks too, runs on any JVM, so the threading, queueing and conversion
+ * paths can be tested and profiled off-device.
+ */
+public interface MediaBackend {
+
+    /**
+     * Opens {@code path} on its first video track.
+     */
+    VideoExtractor createExtractor(String path) throws IOException;
+
+    /**
+     * A decoder for {@code track} putting out YUV 4:2:0 frames.
+     */
+    VideoCodec createDecoder(VideoTrack track) throws IOException;
+
+    /**
+     * An AVC encoder taking {@code width} x {@code height} YUV 4:2:0 frames in ByteBuffers.
+     *
+     * @param bitRate bits per second to aim for, 0 to let the encoder go by quality
+     */
+    VideoCodec createEncoder(int width, int height, int frameRate, int bitRate) throws IOException;
+
+    /**
+     * How many decoders for {@code track}, each with an encoder, can run at the same time. At
+     * least 1; a codec may still fail to start when the hardware is busy elsewhere.
+     */
+    int getMaxCodecInstances(VideoTrack track) throws IOException;
+
+    /**
+     * An MPEG-4 muxer writing to {@code path}.
+     */
+    SampleMuxer createMuxer(String path) throws IOException;
+}
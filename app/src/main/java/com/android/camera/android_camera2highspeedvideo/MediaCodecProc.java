@@ -1,20 +1,20 @@
 package com.android.camera.android_camera2highspeedvideo;
 
-import android.media.Image;
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaExtractor;
-import android.media.MediaFormat;
-import android.media.MediaMuxer;
-import android.os.Build;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.LinkedBlockingQueue;
-
-import static android.media.MediaCodec.CONFIGURE_FLAG_ENCODE;
-import static android.media.MediaFormat.MIMETYPE_VIDEO_AVC;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by hzd on 2019/7/23.
@@ -22,12 +22,34 @@ import static android.media.MediaFormat.MIMETYPE_VIDEO_AVC;
 
 public class MediaCodecProc {
     private static final String TAG = "MediaCodecProc";
-    private static final int COLOR_FORMAT_NV21 = 0x100;
-    private static final int COLOR_FORMAT_I420 = 0x101;
+    private static final int COLOR_FORMAT_NV21 = YuvConverter.FORMAT_NV21;
+    private static final int COLOR_FORMAT_I420 = YuvConverter.FORMAT_I420;
     private static final long DEFAULT_TIMEOUT_US = 10000;
+    private static final int DEFAULT_FRAME_QUEUE_DEPTH = 4;
+    // Read buffer for remux() when the track doesn't say how big its samples get
+    private static final int DEFAULT_MAX_SAMPLE_SIZE = 2 * 1024 * 1024;
+
+    // Trace event names, see setTracing()
+    private static final String TRACE_EXTRACT = "extract";
+    private static final String TRACE_DECODE_OUTPUT = "decode_output";
+    private static final String TRACE_CONVERT = "convert";
+    private static final String TRACE_ENCODE_INPUT = "encode_input";
+    private static final String TRACE_MUX = "mux";
+    private static final String TRACE_FILE = "trace.json";
+    private static final String JOURNAL_FILE = "checkpoint.journal";
+    // Not under Output, Utils.createDirectory() empties that of .mp4 files
+    private static final String SEGMENT_DIR = "Segments";
+    private static final String SEGMENT_PREFIX = "segment_";
+    private static final String OUTPUT_FILE = "output.mp4";
 
-    private final int decodeColorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
+    /** Decoded frames are encoded as they are, videoUpRatio is ignored */
+    public static final int PROCESSING_MODE_NONE = 0;
+    /** In-between frames are weighted averages of the two decoded frames around them */
+    public static final int PROCESSING_MODE_BLEND = 1;
+    /** In-between frames are motion compensated, see {@link FrameInterpolator} */
+    public static final int PROCESSING_MODE_MOTION = 2;
 
+    private final MediaBackend mBackend;
     private String mFilePath;
     private String mStrDecodeOutputDir;
     private String mOutputDir;
@@ -36,19 +58,62 @@ public class MediaCodecProc {
     private int mVideoFps;
     private int mVideoUpRatio;
     private int mFormat;
+    private int mFrameQueueDepth = DEFAULT_FRAME_QUEUE_DEPTH;
+    private boolean mDirectEncode;
+    private boolean mDumpFrames;
+    private int mProcessingMode = PROCESSING_MODE_MOTION;
+    private final List<FrameProcessor> mFrameProcessors = new ArrayList<>();
+    private FrameStore mFrameStore;
+    private FramePipeline mPipeline;
+    private InterpolationProcessor mInterpolation;
+    private boolean mAsyncDecode;
+    private int mDecodedFrameCount;
+    private double mDecodeFps;
     private EncodeThread mEncodeThread;
+    private final FramePool mFramePool;
+    private final PipelineMetrics mMetrics;
+    private final FrameTracer mTracer;
+    // Shared with the segment jobs
+    private final AtomicBoolean mCancelled;
+    private final AtomicLong mInputDoneUs;
+    private long mDurationUs;
+    private long mLastSampleUs = -1;
+    private int mParallelSegments = 1;
+    private long mCheckpointIntervalUs;
+    // The part of the clip this job covers when processSegments() runs it, null for all of it
+    private final Segment mSegment;
+    private boolean mSegmentEnded;
+    // Whether the last process() wrote its output
+    private boolean mOutputComplete;
+    private long mSegmentFrames;
 
     /**
      *
      * @param filePath      High-speed video storage path
      * @param videoFPS      used in my own algorithm processing, the relevant part is not public, deleted
-     * @param videoUpRatio  same as videoFPS
+     * @param videoUpRatio  frames out per frame in; above 1 every decoded pair gets
+     *                      {@code videoUpRatio - 1} interpolated frames between them
      */
     public MediaCodecProc(String filePath, int videoFPS, int videoUpRatio) {
+        this(filePath, videoFPS, videoUpRatio, new AndroidMediaBackend());
+    }
+
+    /**
+     * @param backend where extractors, codecs and muxers come from, the unit tests'
+     *                FakeMediaBackend to run off-device
+     */
+    public MediaCodecProc(String filePath, int videoFPS, int videoUpRatio, MediaBackend backend) {
+        mBackend        = backend;
         mFilePath       = filePath;
         mVideoFps       = videoFPS;
         mVideoUpRatio   = videoUpRatio;
         mFormat         = COLOR_FORMAT_NV21;
+        mFramePool      = new FramePool();
+        mMetrics        = new PipelineMetrics();
+        mTracer         = new FrameTracer();
+        mCancelled      = new AtomicBoolean();
+        mInputDoneUs    = new AtomicLong();
+        mSegment        = null;
         int lastIndex = mFilePath.lastIndexOf("/");
         mOutputDir = mFilePath.substring(0, lastIndex);
 //        mEncodeThread   = new EncodeThread(mOutputDir);
@@ -58,44 +123,249 @@ public class MediaCodecProc {
         Utils.createDirectory(mOutputDir + "/Output");
     }
 
-    public void process() {
-        MediaExtractor extractor = null;
-        MediaCodec decoder = null;
+    /**
+     * A job for one segment of {@code parent}'s clip, with the parent's settings. Frame pool,
+     * metrics and tracer are shared with the parent and the other segments.
+     */
+    private MediaCodecProc(MediaCodecProc parent, Segment segment) {
+        mBackend            = parent.mBackend;
+        mFilePath           = parent.mFilePath;
+        mVideoFps           = parent.mVideoFps;
+        mVideoUpRatio       = parent.mVideoUpRatio;
+        mFormat             = parent.mFormat;
+        mFrameQueueDepth    = parent.mFrameQueueDepth;
+        mDirectEncode       = parent.mDirectEncode;
+        mProcessingMode     = parent.mProcessingMode;
+        mAsyncDecode        = parent.mAsyncDecode;
+        mOutputDir          = parent.mOutputDir;
+        mStrDecodeOutputDir = parent.mStrDecodeOutputDir;
+        mFramePool          = parent.mFramePool;
+        mMetrics            = parent.mMetrics;
+        mTracer             = parent.mTracer;
+        mCancelled          = parent.mCancelled;
+        mInputDoneUs        = parent.mInputDoneUs;
+        mSegment            = segment;
+        mLastSampleUs       = segment.startUs;
+    }
+
+    /**
+     * Sets how many decoded frames may wait for the encoder. The decoder blocks once this many
+     * frames are queued, so memory use is bounded by depth * frame size. Must be called before
+     * {@link #process()}.
+     */
+    public void setFrameQueueDepth(int depth) {
+        mFrameQueueDepth = depth;
+    }
+
+    /**
+     * Sets the layout of the frames handed to the processing code, one of the
+     * {@link YuvConverter} FORMAT_* constants. Defaults to NV21. Must be called before
+     * {@link #process()}.
+     */
+    public void setFrameFormat(int format) {
+        YuvConverter.getName(format);   // Rejects unknown formats
+        mFormat = format;
+    }
+
+    /**
+     * When enabled, decoded frames are written straight from the decoder's output image into the
+     * encoder's input buffer in one pass, skipping the NV21 copy and the frame queue. Frames then
+     * never reach the processing code in {@link #decodeImageToFrames}, so only enable this when
+     * there is nothing to do to them. Must be called before {@link #process()}.
+     */
+    public void setDirectEncode(boolean directEncode) {
+        mDirectEncode = directEncode;
+    }
+
+    /**
+     * Sets how the {@code videoUpRatio - 1} frames between two decoded frames are made, one of
+     * the PROCESSING_MODE_* constants. Defaults to {@link #PROCESSING_MODE_MOTION}; use
+     * {@link #PROCESSING_MODE_BLEND} for previews and low-motion footage. Must be called before
+     * {@link #process()}.
+     */
+    public void setProcessingMode(int mode) {
+        if (mode != PROCESSING_MODE_NONE && mode != PROCESSING_MODE_BLEND && mode != PROCESSING_MODE_MOTION) {
+            throw new IllegalArgumentException("Unknown processing mode " + mode);
+        }
+        mProcessingMode = mode;
+    }
+
+    /**
+     * Adds a stage that sees every decoded frame, in the frame format, before interpolation and
+     * encoding. Each processor runs on its own thread. Frames never reach processors when direct
+     * encoding is on. Must be called before {@link #process()}.
+     */
+    public void addFrameProcessor(FrameProcessor processor) {
+        mFrameProcessors.add(processor);
+    }
+
+    /**
+     * When enabled, every decoded frame is also written in the frame format to a
+     * {@link FrameStore} under YUV_Frame, named after the frame size. Must be called before
+     * {@link #process()}.
+     */
+    public void setDumpFrames(boolean dumpFrames) {
+        mDumpFrames = dumpFrames;
+    }
+
+    /**
+     * Decodes through MediaCodec callbacks on a handler thread instead of polling the decoder
+     * with a timeout. Off by default so both can be compared, see {@link #getDecodeFps()}. Must be
+     * called before {@link #process()}.
+     */
+    public void setAsyncDecode(boolean asyncDecode) {
+        mAsyncDecode = asyncDecode;
+    }
+
+    /**
+     * Splits the clip at sync samples into up to {@code segments} parts of about the same length
+     * and processes them at the same time, each on a decoder and encoder of its own, then joins
+     * the parts into output.mp4 with continuous timestamps. The output is the same as a serial
+     * run. The number of parts is capped by the codec instances the device supports, and if a
+     * part fails, for instance because the hardware ran out of codecs, the clip is processed
+     * serially after all, unless {@link #setCheckpointInterval checkpoints} keep the parts that
+     * were finished. Frame dumps and frame processors need every frame in one pass, with
+     * either set the clip is always processed serially. Defaults to 1. Must be called before
+     * {@link #process()}.
+     */
+    public void setParallelSegments(int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("segments must be at least 1: " + segments);
+        }
+        mParallelSegments = segments;
+    }
+
+    /**
+     * Encodes the clip in segments of at least {@code intervalUs} of input, each starting at a
+     * sync sample, and records every finished segment in checkpoint.journal next to the Output
+     * directory. If the app is killed, calling {@link #process()} again on the same clip with
+     * the same settings only processes the segments not in the journal, so at most one
+     * segment's work per worker is lost. The journal and the segment files are removed once
+     * output.mp4 is written. Segments are processed {@link #setParallelSegments} at a time. 0,
+     * the default, turns checkpoints off. Must be called before {@link #process()}.
+     */
+    public void setCheckpointInterval(long intervalUs) {
+        if (intervalUs < 0) {
+            throw new IllegalArgumentException("interval must not be negative: " + intervalUs);
+        }
+        mCheckpointIntervalUs = intervalUs;
+    }
+
+    /**
+     * Frames per second of the last {@link #process()}, from decoder start to end of stream.
+     */
+    public double getDecodeFps() {
+        return mDecodeFps;
+    }
+
+    /**
+     * Scratch buffers used by the decode and encode stages. The hit/miss counters show whether
+     * the steady state is allocation free.
+     */
+    public FramePool getFramePool() {
+        return mFramePool;
+    }
+
+    /**
+     * Stage timings, queue depths and frame counts of the last {@link #process()}. Complete once
+     * it returns; {@link PipelineMetrics#toJson()} exports them.
+     */
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Records a trace event for every frame on every thread of {@link #process()}, as
+     * android.os.Trace sections and into {@link #getTracer()}. The events of each run are written
+     * to trace.json next to the Output directory, for chrome://tracing or ui.perfetto.dev. Off by
+     * default. Must be called before {@link #process()}.
+     */
+    public void setTracing(boolean tracing) {
+        mTracer.setEnabled(tracing);
+    }
+
+    public FrameTracer getTracer() {
+        return mTracer;
+    }
+
+    /**
+     * Stops {@link #process()} or {@link #remux()} at the next sample, from any thread. What was
+     * written of the output is removed; finished {@link #setCheckpointInterval checkpoints} are
+     * kept, see {@link #clearCheckpoints()}. The instance stays cancelled.
+     */
+    public void cancel() {
+        mCancelled.set(true);
+    }
+
+    public boolean isCancelled() {
+        return mCancelled.get();
+    }
+
+    /**
+     * How much of the input the running {@link #process()} got through, from 0 to 1.
+     */
+    public float getProgress() {
+        long durationUs = mDurationUs;
+        return durationUs <= 0 ? 0 : Math.min(1f, (float) mInputDoneUs.get() / durationUs);
+    }
+
+    /**
+     * Removes the checkpoint journal and the segment files, for a job that is not
+     * going to be resumed.
+     */
+    public void clearCheckpoints() {
+        new File(mOutputDir, JOURNAL_FILE).delete();
+        File[] files = new File(mOutputDir, SEGMENT_DIR).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(SEGMENT_PREFIX)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the clip, processes the frames and encodes them into output.mp4.
+     *
+     * @return whether output.mp4 was written
+     */
+    public boolean process() {
+        mOutputComplete = false;
+        if (mCancelled.get()) {
+            return false;
+        }
+        if (mSegment == null) {
+            mInputDoneUs.set(0);
+            if ((mParallelSegments > 1 || mCheckpointIntervalUs > 0) && processSegments()) {
+                return mOutputComplete;
+            }
+        }
+        VideoExtractor extractor = null;
+        VideoCodec decoder = null;
 
         try {
-            extractor = new MediaExtractor();
-            extractor.setDataSource(mFilePath);
-            int trackIndex = selectTrack(extractor);
-            if (trackIndex < 0) {
+            extractor = mBackend.createExtractor(mFilePath);
+            VideoTrack track = extractor.getVideoTrack();
+            if (track == null) {
                 Log.d(TAG, "No video track found in " + mFilePath);
+                return false;
             }
-            extractor.selectTrack(trackIndex);
-            MediaFormat mediaFormat = extractor.getTrackFormat(trackIndex);     // Get the encoded information of the video
-            String mime = mediaFormat.getString(MediaFormat.KEY_MIME);
-            decoder = MediaCodec.createDecoderByType(mime);
-            MediaCodecInfo.CodecCapabilities caps = decoder.getCodecInfo().getCapabilitiesForType(mime);
-            for (int format : caps.colorFormats) {
-                // Get the frame format supported by the decoder supporting video/avc
-                // 2135033992：  COLOR_FormatYUV420Flexible
-                // 21：          COLOR_FormatYUV420SemiPlanar
-                if (format > 100)
-                    Log.d(TAG, "Supported format: " + Integer.toHexString(format));
-                else
-                    Log.d(TAG, "Supported format: 0x" + format);
-            }
-            if (isColorFormatSupported(decodeColorFormat, decoder.getCodecInfo().getCapabilitiesForType(mime))) {
-                // Specified frame format
-                mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, decodeColorFormat);
-                Log.d(TAG, "set decode color format to type " + decodeColorFormat);
-            } else {
-                Log.d(TAG, "unable to set decode color format, color format type " + decodeColorFormat + " not supported");
+            mDurationUs = track.durationUs;
+            if (mSegment != null && mSegment.startUs > 0) {
+                extractor.seekTo(mSegment.startUs);
             }
-            decodeImageToFrames(decoder, extractor, mediaFormat);
+            decoder = mBackend.createDecoder(track);
+            decodeImageToFrames(decoder, extractor, track);
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
             if (decoder != null) {
-                decoder.stop();
+                try {
+                    decoder.stop();
+                } catch (IllegalStateException e) {
+                    // Never started, decodeImageToFrames already reported why
+                }
                 decoder.release();
                 decoder = null;
             }
@@ -104,261 +374,1301 @@ public class MediaCodecProc {
                 extractor = null;
             }
         }
+        if (mCancelled.get()) {
+            if (mSegment == null) {
+                new File(mOutputDir, OUTPUT_FILE).delete();
+            }
+            mOutputComplete = false;
+        }
+        return mOutputComplete;
     }
 
-    private void decodeImageToFrames(MediaCodec decoder, MediaExtractor extractor, MediaFormat mediaFormat) {
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        boolean sawInputEOS = false;
-        boolean sawOutputEOS = false;
-        decoder.configure(mediaFormat, null, null, 0);
-        decoder.start();
-        mWidth = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
-        mHeight = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
-        int outputFrameCount = 0;
+    /**
+     * A run of whole GOPs, from one sync sample up to the next segment's.
+     */
+    private static class Segment {
+        final int index;
+        /** Time of the first sample, 0 for the first segment */
+        final long startUs;
+        /** Time of the sync sample the next segment starts at, -1 for the last segment */
+        final long endUs;
+        final String path;
+        /**
+         * Interpolation needs the frame after the segment's last one. Each segment then also
+         * decodes the next segment's first frame and encodes it, and drops its own first frame,
+         * which the previous segment already encoded.
+         */
+        final boolean overlap;
 
-        mEncodeThread = new EncodeThread(mOutputDir);
-        new Thread(mEncodeThread).start();
-        mEncodeThread.setDimension(mWidth, mHeight);
+        Segment(int index, long startUs, long endUs, String path, boolean overlap) {
+            this.index = index;
+            this.startUs = startUs;
+            this.endUs = endUs;
+            this.path = path;
+            this.overlap = overlap;
+        }
 
-        while (!sawOutputEOS) {
-            if (!sawInputEOS) {
-                int inputBufferId = decoder.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
-                if (inputBufferId >= 0) {
-                    ByteBuffer inputBuffer = decoder.getInputBuffer(inputBufferId);
-                    assert inputBuffer != null;
-                    int sampleSize = extractor.readSampleData(inputBuffer, 0);
-                    if (sampleSize < 0) {
-                        decoder.queueInputBuffer(inputBufferId, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        sawInputEOS = true;
-                    } else {
-                        long presentationTimeUs = extractor.getSampleTime();
-                        decoder.queueInputBuffer(inputBufferId, 0, sampleSize, presentationTimeUs, 0);
-                        extractor.advance();
+        /**
+         * Whether the extractor is on the next segment's first sample.
+         */
+        boolean isEnd(VideoExtractor extractor) {
+            return endUs >= 0 && (extractor.getSampleFlags() & VideoExtractor.SAMPLE_FLAG_SYNC) != 0
+                    && extractor.getSampleTime() == endUs;
+        }
+    }
+
+    /**
+     * Runs the segments of {@link #setParallelSegments} and {@link #setCheckpointInterval}, as
+     * many at a time as there are workers, and stitches their outputs together.
+     *
+     * @return false if the clip still has to be processed serially
+     */
+    private boolean processSegments() {
+        if (mDumpFrames || !mFrameProcessors.isEmpty()) {
+            Log.d(TAG, "frame dumps and frame processors need one pass, processing serially");
+            return false;
+        }
+        boolean checkpoint = mCheckpointIntervalUs > 0;
+        List<Segment> segments;
+        int workers;
+        VideoExtractor extractor = null;
+        try {
+            extractor = mBackend.createExtractor(mFilePath);
+            VideoTrack track = extractor.getVideoTrack();
+            if (track == null) {
+                return false;
+            }
+            mDurationUs = track.durationUs;
+            workers = Math.min(mParallelSegments, mBackend.getMaxCodecInstances(track));
+            segments = findSegments(extractor, workers, mCheckpointIntervalUs);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (extractor != null) {
+                extractor.release();
+            }
+        }
+        if (segments.size() < 2) {
+            return false;
+        }
+        new File(mOutputDir, SEGMENT_DIR).mkdirs();
+
+        CheckpointJournal journal = null;
+        List<Segment> remaining = segments;
+        if (checkpoint) {
+            try {
+                journal = CheckpointJournal.open(new File(mOutputDir, JOURNAL_FILE), getJobKey());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+            remaining = new ArrayList<>();
+            for (Segment segment : segments) {
+                if (journal.find(segment.index, segment.startUs, segment.endUs, segment.path) == null) {
+                    remaining.add(segment);
+                } else {
+                    mInputDoneUs.addAndGet((segment.endUs >= 0 ? segment.endUs : mDurationUs) - segment.startUs);
+                }
+            }
+            if (remaining.size() < segments.size()) {
+                Log.d(TAG, "resuming, " + (segments.size() - remaining.size()) + " of " + segments.size() + " segments done");
+            }
+        }
+
+        mMetrics.reset();
+        mTracer.clear();
+        long start = System.nanoTime();
+        AtomicInteger decodedFrames = new AtomicInteger();
+        boolean complete = runSegments(remaining, workers, journal, decodedFrames);
+        long elapsedNanos = System.nanoTime() - start;
+        mDecodeFps = elapsedNanos == 0 ? 0 : decodedFrames.get() * 1e9 / elapsedNanos;
+        if (!complete && journal != null) {
+            // The finished segments stay for the next process()
+            Log.w(TAG, (mCancelled.get() ? "cancelled, " : "a segment failed, ") + journal.size() + " of "
+                    + segments.size() + " segments are done and kept for the next run");
+            return true;
+        }
+        if (mCancelled.get()) {
+            for (Segment segment : segments) {
+                new File(segment.path).delete();
+            }
+            return true;
+        }
+
+        String outputPath = mOutputDir + "/" + OUTPUT_FILE;
+        if (complete) {
+            complete = stitchSegments(segments, outputPath);
+        }
+        if (!complete) {
+            Log.w(TAG, "parallel processing failed, processing serially");
+        }
+        for (Segment segment : segments) {
+            new File(segment.path).delete();
+        }
+        if (journal != null) {
+            journal.delete();
+        }
+        if (!complete) {
+            return false;
+        }
+        Log.d(TAG, segments.size() + " segments (" + remaining.size() + " processed, " + workers + " at a time), decoded "
+                + decodedFrames.get() + " frames in " + elapsedNanos / 1000000 + "ms, "
+                + String.format(Locale.US, "%.1f", mDecodeFps) + " fps, stitched to " + outputPath);
+        mMetrics.setElapsedNanos(System.nanoTime() - start);
+        Log.d(TAG, "metrics: " + mMetrics);
+        writeTrace();
+        mOutputComplete = true;
+        return true;
+    }
+
+    /**
+     * Processes {@code segments} on {@code workers} threads, each taking the next segment when
+     * done with one. Finished segments go into {@code journal} if there is one. No new segments
+     * are started once one fails.
+     *
+     * @return whether every segment was finished
+     */
+    private boolean runSegments(final List<Segment> segments, int workers, final CheckpointJournal journal,
+                                final AtomicInteger decodedFrames) {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] threads = new Thread[Math.min(workers, segments.size())];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while (!failed.get() && !mCancelled.get() && (index = next.getAndIncrement()) < segments.size()) {
+                        Segment segment = segments.get(index);
+                        MediaCodecProc job = new MediaCodecProc(MediaCodecProc.this, segment);
+                        try {
+                            job.process();
+                        } catch (RuntimeException e) {
+                            // Fails the job like a bad segment, rather than this worker alone
+                            Log.e(TAG, "segment " + segment.index + " failed", e);
+                            failed.set(true);
+                            return;
+                        }
+                        decodedFrames.addAndGet(job.mDecodedFrameCount);
+                        if (!job.mOutputComplete || mCancelled.get()) {
+                            failed.set(true);
+                            return;
+                        }
+                        if (journal != null) {
+                            try {
+                                journal.append(segment.index, segment.startUs, segment.endUs, job.mSegmentFrames, segment.path);
+                            } catch (IOException e) {
+                                // Only costs the segment on a restart
+                                e.printStackTrace();
+                            }
+                        }
                     }
                 }
+            }, TAG + "-segment" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.set(true);
+            }
+        }
+        return !failed.get() && !mCancelled.get();
+    }
+
+    /**
+     * Splits the clip at sync samples, into {@code count} segments with about the same number
+     * of samples each or, when {@code durationUs} is set, into segments of at least that much
+     * input. Leaves the extractor at the end of the clip.
+     */
+    private List<Segment> findSegments(VideoExtractor extractor, int count, long durationUs) {
+        List<Long> syncTimes = new ArrayList<>();
+        List<Integer> syncSamples = new ArrayList<>();
+        int sampleCount = 0;
+        do {
+            long time = extractor.getSampleTime();
+            if (time < 0) {
+                break;
             }
-            int outputBufferId = decoder.dequeueOutputBuffer(info, DEFAULT_TIMEOUT_US);
-            if (outputBufferId >= 0) {
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    sawOutputEOS = true;
+            if ((extractor.getSampleFlags() & VideoExtractor.SAMPLE_FLAG_SYNC) != 0 && sampleCount > 0) {
+                syncTimes.add(time);
+                syncSamples.add(sampleCount);
+            }
+            sampleCount++;
+        } while (extractor.advance());
+
+        List<Long> starts = new ArrayList<>();
+        starts.add(0L);
+        if (durationUs > 0) {
+            for (long time : syncTimes) {
+                if (time - starts.get(starts.size() - 1) >= durationUs) {
+                    starts.add(time);
                 }
-                boolean doRender = (info.size != 0);
-                if (doRender) {
-                    Image image = decoder.getOutputImage(outputBufferId);
-//                    dumpYUVFrame(image, outputFrameCount, width, height);
-
-                    switch (mFormat) {
-                        case COLOR_FORMAT_NV21:
-                            byte[] arr = Utils.transformNV21FromImage(image);
-                            // TODO You can do some processing on the data here, such as inserting frames, etc.
-                            /* your codes */
-
-                            mEncodeThread.push(arr);
-                            break;
-                        case COLOR_FORMAT_I420:
+            }
+        } else {
+            // Segment k starts at the sync sample closest to k / count of the way through
+            int next = 0;
+            for (int k = 1; k < count && next < syncSamples.size(); k++) {
+                long target = (long) sampleCount * k / count;
+                while (next + 1 < syncSamples.size()
+                        && Math.abs(syncSamples.get(next + 1) - target) <= Math.abs(syncSamples.get(next) - target)) {
+                    next++;
+                }
+                starts.add(syncTimes.get(next));
+                next++;
+            }
+        }
+
+        boolean interpolate = mVideoUpRatio > 1 && mProcessingMode != PROCESSING_MODE_NONE && !mDirectEncode;
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < starts.size(); i++) {
+            boolean last = i == starts.size() - 1;
+            segments.add(new Segment(i, starts.get(i), last ? -1 : starts.get(i + 1),
+                    mOutputDir + "/" + SEGMENT_DIR + "/" + SEGMENT_PREFIX + i + ".mp4", interpolate));
+        }
+        return segments;
+    }
+
+    /**
+     * What a checkpoint journal has to match to be resumed: the input file and every setting
+     * that changes the output.
+     */
+    private String getJobKey() {
+        File input = new File(mFilePath);
+        return mFilePath + "\t" + input.length() + "\t" + input.lastModified() + "\t" + mVideoUpRatio
+                + "\t" + mProcessingMode + "\t" + mFormat + "\t" + mDirectEncode + "\t" + mCheckpointIntervalUs;
+    }
+
+    /**
+     * Joins the segment files into {@code outputPath}. Every segment starts on a key frame, so
+     * the samples are copied as they are; their timestamps are renumbered to carry on from the
+     * previous segment's last frame. Fails if a segment's format differs from the first one's,
+     * its samples would not decode under the first one's codec specific data.
+     */
+    private boolean stitchSegments(List<Segment> segments, String outputPath) {
+        SampleMuxer muxer = null;
+        boolean muxerStarted = false;
+        int muxerTrack = -1;
+        VideoTrack muxerFormat = null;
+        ByteBuffer buffer = null;
+        VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+        long frameOffset = 0;
+        try {
+            muxer = mBackend.createMuxer(outputPath);
+            for (Segment segment : segments) {
+                VideoExtractor extractor = mBackend.createExtractor(segment.path);
+                try {
+                    VideoTrack track = extractor.getVideoTrack();
+                    if (track == null) {
+                        Log.e(TAG, "No video track in " + segment.path);
+                        return false;
+                    }
+                    if (!muxerStarted) {
+                        muxerTrack = muxer.addTrack(track);
+                        muxer.start();
+                        muxerStarted = true;
+                        muxerFormat = track;
+                    } else if (!muxerFormat.isCompatible(track)) {
+                        Log.e(TAG, segment.path + " is " + track + ", can't append it to " + muxerFormat);
+                        return false;
+                    }
+                    // Segments come from different encoders, a later one may have bigger samples
+                    int maxSampleSize = track.maxInputSize > 0 ? track.maxInputSize : DEFAULT_MAX_SAMPLE_SIZE;
+                    if (buffer == null || buffer.capacity() < maxSampleSize) {
+                        buffer = ByteBuffer.allocateDirect(maxSampleSize);
+                    }
+                    long frames = 0;
+                    while (true) {
+                        int sampleSize = extractor.readSampleData(buffer, 0);
+                        if (sampleSize < 0) {
                             break;
+                        }
+                        // The encoder stamps frames by their number, see EncodeThread
+                        long frame = (extractor.getSampleTime() * EncodeThread.ENCODE_FPS + 500000) / 1000000;
+                        frames = Math.max(frames, frame + 1);
+                        int flags = (extractor.getSampleFlags() & VideoExtractor.SAMPLE_FLAG_SYNC) != 0
+                                ? VideoCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                        info.set(0, sampleSize, (frameOffset + frame) * 1000000L / EncodeThread.ENCODE_FPS, flags);
+                        muxer.writeSampleData(muxerTrack, buffer, info);
+                        extractor.advance();
                     }
+                    frameOffset += frames;
+                } finally {
+                    extractor.release();
+                }
+            }
+            return muxerStarted;
+        } catch (IOException | IllegalArgumentException e) {
+            // IllegalArgumentException: a sample bigger than the track said
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (muxer != null) {
+                if (muxerStarted) {
+                    muxer.stop();
+                }
+                muxer.release();
+            }
+        }
+    }
+
+    /**
+     * Slow motion without decoding: copies the compressed video samples into
+     * {@code <dir>/output_remux.mp4} with their timestamps stretched from the capture frame rate
+     * to the 30fps the encoder path plays back at. The job is bounded by storage speed.
+     *
+     * The capture rate is the track's frame rate, or videoFPS if the track has none. Audio is
+     * dropped: stretching the timestamps of compressed audio frames would only leave gaps
+     * between them.
+     *
+     * @return the output path, or null if there was nothing to remux
+     */
+    public String remux() {
+        VideoExtractor extractor = null;
+        SampleMuxer muxer = null;
+        boolean muxerStarted = false;
+        String outputPath = mOutputDir + "/output_remux.mp4";
+        try {
+            extractor = mBackend.createExtractor(mFilePath);
+            VideoTrack track = extractor.getVideoTrack();
+            if (track == null) {
+                Log.d(TAG, "No video track found in " + mFilePath);
+                return null;
+            }
+            mDurationUs = track.durationUs;
+            mInputDoneUs.set(0);
+            int captureFps = track.frameRate > 0 ? track.frameRate : mVideoFps;
+            int playbackFps = EncodeThread.ENCODE_FPS;
+            int maxSampleSize = track.maxInputSize > 0 ? track.maxInputSize : DEFAULT_MAX_SAMPLE_SIZE;
+            Log.d(TAG, "remux " + captureFps + "fps -> " + playbackFps + "fps, " + mFilePath);
 
-                    outputFrameCount++;
-                    assert image != null;
-                    image.close();
-                    decoder.releaseOutputBuffer(outputBufferId, false);
+            muxer = mBackend.createMuxer(outputPath);
+            if (track.rotation != 0) {
+                muxer.setOrientationHint(track.rotation);
+            }
+            // Keep the header in line with the new timestamps
+            track.frameRate = playbackFps;
+            int muxerTrack = muxer.addTrack(track);
+            muxer.start();
+            muxerStarted = true;
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(maxSampleSize);
+            VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+            int sampleCount = 0;
+            while (!mCancelled.get()) {
+                int sampleSize = extractor.readSampleData(buffer, 0);
+                if (sampleSize < 0) {
+                    break;
                 }
+                long presentationTimeUs = extractor.getSampleTime() * captureFps / playbackFps;
+                int flags = (extractor.getSampleFlags() & VideoExtractor.SAMPLE_FLAG_SYNC) != 0
+                        ? VideoCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                info.set(0, sampleSize, presentationTimeUs, flags);
+                muxer.writeSampleData(muxerTrack, buffer, info);
+                mInputDoneUs.set(extractor.getSampleTime());
+                sampleCount++;
+                extractor.advance();
+            }
+            if (mCancelled.get()) {
+                Log.d(TAG, "remux cancelled after " + sampleCount + " samples");
+                return null;
+            }
+            Log.d(TAG, "remuxed " + sampleCount + " samples to " + outputPath);
+            return outputPath;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (muxer != null) {
+                if (muxerStarted) {
+                    muxer.stop();
+                }
+                muxer.release();
+            }
+            if (extractor != null) {
+                extractor.release();
+            }
+            if (mCancelled.get()) {
+                new File(outputPath).delete();
             }
         }
+    }
+
+    private void decodeImageToFrames(VideoCodec decoder, VideoExtractor extractor, VideoTrack track) {
+        startFrames(track.width, track.height);
+        long start = System.nanoTime();
+        boolean decoded = mAsyncDecode ? decodeAsync(decoder, extractor) : decodePolling(decoder, extractor);
+        long elapsedNanos = System.nanoTime() - start;
+        mDecodeFps = elapsedNanos == 0 ? 0 : mDecodedFrameCount * 1e9 / elapsedNanos;
+        finishFrames(start);
+        if (!decoded) {
+            // What was encoded stops where the decoder failed
+            new File(mSegment != null ? mSegment.path : mOutputDir + "/" + OUTPUT_FILE).delete();
+            mOutputComplete = false;
+        }
+        Log.d(TAG, "decoded " + mDecodedFrameCount + " frames in " + elapsedNanos / 1000000 + "ms, "
+                + String.format(Locale.US, "%.1f", mDecodeFps) + " fps (" + (mAsyncDecode ? "async" : "polling")
+                + "), " + mFramePool);
+    }
+
+    /**
+     * Processes frames from {@code source} as they arrive and encodes them into output.mp4, so
+     * there is no recording to decode afterwards. Returns once the source has ended, see
+     * {@link FrameSource#stop()}. Segments and checkpoints don't apply, the input isn't a file.
+     *
+     * @return whether output.mp4 was written
+     */
+    public boolean processStream(FrameSource source) {
+        mOutputComplete = false;
+        if (mCancelled.get()) {
+            return false;
+        }
+        mInputDoneUs.set(0);
+        mDurationUs = 0;
+        startFrames(source.getWidth(), source.getHeight());
+        final CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        source.start(new FrameSource.Callback() {
+            @Override
+            public void onFrame(YuvPlanes planes, long timestampUs) {
+                if (done.getCount() > 0 && !mCancelled.get()) {
+                    handleFrame(planes, timestampUs);
+                }
+            }
+
+            @Override
+            public void onEnd() {
+                done.countDown();
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // Frames may still be on their way, the encoder has to outlive them
+                interrupted = true;
+                source.stop();
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        mDecodeFps = elapsedNanos == 0 ? 0 : mDecodedFrameCount * 1e9 / elapsedNanos;
+        finishFrames(start);
+        Log.d(TAG, "streamed " + mDecodedFrameCount + " frames in " + elapsedNanos / 1000000 + "ms, " + mFramePool);
+        if (mCancelled.get()) {
+            new File(mOutputDir, OUTPUT_FILE).delete();
+            mOutputComplete = false;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return mOutputComplete;
+    }
+
+    /**
+     * Starts the encoder and the pipeline for {@code width} x {@code height} frames, which then
+     * go in through {@link #handleFrame}.
+     */
+    private void startFrames(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mDecodedFrameCount = 0;
+        if (mSegment == null) {
+            mMetrics.reset();
+            mTracer.clear();
+        }
+        if (mDumpFrames) {
+            File file = new File(mStrDecodeOutputDir, "output_" + mWidth + "x" + mHeight + "_"
+                    + YuvConverter.getName(mFormat) + FrameStore.FILE_SUFFIX);
+            try {
+                mFrameStore = FrameStore.create(file, mWidth, mHeight, mFormat);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (!mDirectEncode) {
+            mPipeline = buildPipeline();
+        }
+        mEncodeThread = new EncodeThread(mSegment != null ? mSegment.path : mOutputDir + "/" + OUTPUT_FILE,
+                mFrameQueueDepth, mDirectEncode, mPipeline != null);
+        mEncodeThread.setDimension(mWidth, mHeight);
+        if (mSegment != null && mSegment.index > 0 && mSegment.overlap) {
+            // Encoded by the previous segment
+            mEncodeThread.setSkipFrames(1);
+        }
+        new Thread(mEncodeThread).start();
+        if (mPipeline != null) {
+            mPipeline.start(mWidth, mHeight);
+        }
+    }
+
+    /**
+     * Waits for the frames handed in since {@link #startFrames} to be encoded.
+     *
+     * @param start when the first frame was on its way, for the metrics
+     */
+    private void finishFrames(long start) {
+        if (mPipeline != null) {
+            mPipeline.finish();
+            mPipeline = null;
+        }
         mEncodeThread.quitThread();
+        mOutputComplete = mEncodeThread.isComplete();
+        mSegmentFrames = mEncodeThread.mInputFrameCount;
+        if (mInterpolation != null) {
+            Log.d(TAG, "interpolated " + mInterpolation.getFrameCount() + " frames at "
+                    + String.format(Locale.US, "%.1f", mInterpolation.getFramesPerSecond()) + " fps, mode " + mProcessingMode);
+            mInterpolation = null;
+        }
+        if (mFrameStore != null) {
+            try {
+                mFrameStore.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mFrameStore = null;
+        }
+        if (mSegment == null) {
+            mMetrics.setElapsedNanos(System.nanoTime() - start);
+            Log.d(TAG, "metrics: " + mMetrics);
+            writeTrace();
+        }
     }
 
-    // Get the track number where the video is located
-    private static int selectTrack(MediaExtractor extractor) {
-        int numTracks = extractor.getTrackCount();
-        for (int i = 0; i < numTracks; i++) {
-            MediaFormat format = extractor.getTrackFormat(i);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            if (mime.startsWith("video/")) {
-                Log.d(TAG, "Extractor selected track " + i + " (" + mime + "): " + format);
-                return i;
+    private void writeTrace() {
+        if (mTracer.isEnabled()) {
+            File traceFile = new File(mOutputDir, TRACE_FILE);
+            try {
+                mTracer.writeJson(traceFile);
+                Log.d(TAG, mTracer.getEventCount() + " trace events written to " + traceFile);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
-        return -1;
     }
 
-    private boolean isColorFormatSupported(int colorFormat, MediaCodecInfo.CodecCapabilities caps) {
-        for (int format : caps.colorFormats) {
-            if (format == colorFormat) {
-                return true;
+    /**
+     * The original loop: polls the decoder for an input and an output buffer in turn, each with a
+     * {@link #DEFAULT_TIMEOUT_US} timeout.
+     *
+     * @return false if the decoder failed before end of stream
+     */
+    private boolean decodePolling(VideoCodec decoder, VideoExtractor extractor) {
+        VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+        boolean sawInputEOS = false;
+        boolean sawOutputEOS = false;
+        YuvPlanes planes = new YuvPlanes();     // Reused so the chroma layout is only detected once
+
+        try {
+            decoder.start();
+            while (!sawOutputEOS) {
+                if (!sawInputEOS) {
+                    int inputBufferId = decoder.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
+                    if (inputBufferId >= 0) {
+                        sawInputEOS = queueSample(decoder, inputBufferId, extractor);
+                    }
+                }
+                long dequeueStart = System.nanoTime();
+                int outputBufferId = decoder.dequeueOutputBuffer(info, DEFAULT_TIMEOUT_US);
+                if (outputBufferId >= 0) {
+                    mMetrics.record(PipelineMetrics.STAGE_DECODE, System.nanoTime() - dequeueStart);
+                    if ((info.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        sawOutputEOS = true;
+                    }
+                    handleOutputBuffer(decoder, outputBufferId, info, planes);
+                }
+            }
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            // MediaCodec.CodecException included, configure() throws both when starting
+            Log.e(TAG, "decoder error after " + mDecodedFrameCount + " frames", e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes in the codec's asynchronous mode, on a thread of its own. Input buffers are filled
+     * the moment the decoder hands them out, and nothing waits on a timeout when one side is
+     * momentarily empty.
+     *
+     * @return false if the decoder failed before end of stream
+     */
+    private boolean decodeAsync(VideoCodec decoder, final VideoExtractor extractor) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final YuvPlanes planes = new YuvPlanes();
+        final AtomicReference<RuntimeException> error = new AtomicReference<>();
+
+        VideoCodec.Callback callback = new VideoCodec.Callback() {
+            private boolean mSawInputEOS;
+
+            @Override
+            public void onInputBufferAvailable(VideoCodec codec, int index) {
+                if (!mSawInputEOS) {
+                    mSawInputEOS = queueSample(codec, index, extractor);
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(VideoCodec codec, int index, VideoCodec.BufferInfo info) {
+                // Blocking here while the encoder catches up also holds back input, which is the
+                // back pressure we want
+                handleOutputBuffer(codec, index, info, planes);
+                if ((info.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(VideoCodec codec) {
+            }
+
+            @Override
+            public void onError(VideoCodec codec, RuntimeException e) {
+                error.set(e);
+                done.countDown();
+            }
+        };
+        try {
+            decoder.setCallback(callback);
+            decoder.start();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            Log.e(TAG, "decoder failed to start", e);
+            return false;
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (error.get() != null) {
+            Log.e(TAG, "decoder error after " + mDecodedFrameCount + " frames", error.get());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Fills an input buffer with the next sample.
+     *
+     * @return true if the stream ended and end of stream was queued instead
+     */
+    private boolean queueSample(VideoCodec decoder, int inputBufferId, VideoExtractor extractor) {
+        ByteBuffer inputBuffer = decoder.getInputBuffer(inputBufferId);
+        assert inputBuffer != null;
+        long start = System.nanoTime();
+        long traceStart = mTracer.begin(TRACE_EXTRACT);
+        int sampleSize = mSegmentEnded || mCancelled.get() ? -1 : extractor.readSampleData(inputBuffer, 0);
+        if (sampleSize >= 0 && mSegment != null && mSegment.isEnd(extractor)) {
+            if (mSegment.overlap) {
+                // Decoded for the interpolation, then the segment ends
+                mSegmentEnded = true;
+            } else {
+                sampleSize = -1;
             }
         }
+        if (sampleSize < 0) {
+            mTracer.end(TRACE_EXTRACT, -1, traceStart);
+            decoder.queueInputBuffer(inputBufferId, 0, 0, 0L, VideoCodec.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+        long presentationTimeUs = extractor.getSampleTime();
+        if (presentationTimeUs > mLastSampleUs) {
+            if (mLastSampleUs >= 0) {
+                mInputDoneUs.addAndGet(presentationTimeUs - mLastSampleUs);
+            }
+            mLastSampleUs = presentationTimeUs;
+        }
+        extractor.advance();
+        mMetrics.record(PipelineMetrics.STAGE_EXTRACT, System.nanoTime() - start);
+        mTracer.end(TRACE_EXTRACT, mMetrics.getStage(PipelineMetrics.STAGE_EXTRACT).getCount() - 1, traceStart);
+        decoder.queueInputBuffer(inputBufferId, 0, sampleSize, presentationTimeUs, 0);
         return false;
     }
 
-    private void dumpYUVFrame(Image image, int index, int width, int height) {
-        String fileName;
-        switch (mFormat) {
+    /**
+     * Hands a decoded frame on to the encoder side and gives the buffer back to the decoder.
+     */
+    private void handleOutputBuffer(VideoCodec decoder, int outputBufferId, VideoCodec.BufferInfo info, YuvPlanes planes) {
+        boolean doRender = (info.size != 0);
+        if (!doRender) {
+            decoder.releaseOutputBuffer(outputBufferId);
+            return;
+        }
+        handleFrame(decoder.getOutputPlanes(outputBufferId, planes), info.presentationTimeUs);
+        decoder.releaseOutputBuffer(outputBufferId);
+    }
+
+    /**
+     * Hands a frame on to the encoder side. The planes are only read before this returns.
+     */
+    private void handleFrame(YuvPlanes planes, long presentationTimeUs) {
+        long traceStart = mTracer.begin(TRACE_DECODE_OUTPUT);
+        if (mFrameStore != null) {
+            dumpYUVFrame(planes, presentationTimeUs);
+        }
+
+        if (mDirectEncode) {
+            // Blocks until the encoder has a free input buffer
+            mEncodeThread.encodeFrame(planes);
+        } else if (mPipeline != null) {
+            // Only the copy out of the decoder's or camera's image is done here,
+            // the image is needed back before the next frame can come
+            long start = System.nanoTime();
+            long convertStart = mTracer.begin(TRACE_CONVERT);
+            FramePool.Frame frame = mFramePool.acquire(YuvConverter.getFrameSize(mFormat, mWidth, mHeight));
+            writeFrame(planes, frame.data, mFormat);
+            mTracer.end(TRACE_CONVERT, mDecodedFrameCount, convertStart);
+            mMetrics.record(PipelineMetrics.STAGE_CONVERT, System.nanoTime() - start);
+            mPipeline.submit(frame, presentationTimeUs);
+            frame.release();
+        } else {
+            byte[] arr = mEncodeThread.obtainFrame();    // Blocks while the encoder is a full queue behind
+            if (arr != null) {
+                long start = System.nanoTime();
+                long convertStart = mTracer.begin(TRACE_CONVERT);
+                // Nothing processes the frame, it goes in as the encoder takes it
+                writeFrame(planes, arr, mEncodeThread.getQueueFormat());
+                mTracer.end(TRACE_CONVERT, mDecodedFrameCount, convertStart);
+                mMetrics.record(PipelineMetrics.STAGE_CONVERT, System.nanoTime() - start);
+                // Per-frame processing goes through addFrameProcessor(), which sends
+                // frames down the pipeline above instead
+                mEncodeThread.pushFrame();
+            }
+        }
+
+        mTracer.end(TRACE_DECODE_OUTPUT, mDecodedFrameCount, traceStart);
+        mDecodedFrameCount++;
+        mMetrics.countDecoded();
+    }
+
+    /**
+     * Writes a decoded frame into {@code dst} in {@code format}. NV21, NV12 and I420 are written
+     * from the planes in one pass, the other formats go through a pooled NV21 frame.
+     */
+    private void writeFrame(YuvPlanes planes, byte[] dst, int format) {
+        FramePool.Frame rowData = mFramePool.acquire(planes.rowStrides[0]);
+        switch (format) {
             case COLOR_FORMAT_NV21:
-                fileName = mStrDecodeOutputDir + "/" + "output_" + index + "_" + width + "x" + height + ".nv21";
-                Utils.saveYUVFile(fileName, Utils.transformNV21FromImage(image), false);
+                ParallelYuv.transformNV21FromPlanes(planes, dst, rowData.data);
+                break;
+            case YuvConverter.FORMAT_NV12:
+                Utils.writeEncoderInput(planes, ByteBuffer.wrap(dst), MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar, mWidth, mHeight);
                 break;
             case COLOR_FORMAT_I420:
-                fileName = mStrDecodeOutputDir + "/" + "output_" + index + "_" + width + "x" + height + ".yuv";
-                // TODO transform image to I420
-//                Utils.saveYUVFile(fileName, Utils.transformNV21FromImage(image), false);
+                Utils.writeEncoderInput(planes, ByteBuffer.wrap(dst), MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar, mWidth, mHeight);
+                break;
+            default:
+                FramePool.Frame nv21 = mFramePool.acquire(YuvConverter.getFrameSize(COLOR_FORMAT_NV21, mWidth, mHeight));
+                ParallelYuv.transformNV21FromPlanes(planes, nv21.data, rowData.data);
+                YuvConverter.convert(nv21.data, COLOR_FORMAT_NV21, dst, format, mWidth, mHeight);
+                nv21.release();
                 break;
         }
+        rowData.release();
+    }
+
+    /**
+     * frame processors -> interpolate -> encode feed, with only the stages that have work to do.
+     * Frames come in in the frame format. Returns null when there are no stages, decoded frames
+     * then go straight into the encoder queue.
+     */
+    private FramePipeline buildPipeline() {
+        boolean interpolate = mVideoUpRatio > 1 && mProcessingMode != PROCESSING_MODE_NONE;
+        if (!interpolate && mFrameProcessors.isEmpty()) {
+            return null;
+        }
+        FramePipeline.Builder builder = new FramePipeline.Builder()
+                .setQueueDepth(mFrameQueueDepth)
+                .setMetrics(mMetrics)
+                .setTracer(mTracer);
+        for (int i = 0; i < mFrameProcessors.size(); i++) {
+            builder.addStage("processor" + i, mFrameProcessors.get(i));
+        }
+        if (interpolate) {
+            mInterpolation = new InterpolationProcessor(mProcessingMode, mVideoUpRatio, mFormat, mFramePool);
+            builder.addStage("interpolate", mInterpolation);
+        }
+        // Its wait for a free slot is recorded by obtainFrame()
+        builder.addStage("encode", new EncodeFeedProcessor(), -1);
+        return builder.build();
+    }
+
+    /**
+     * Copies frames into the encoder queue.
+     */
+    private class EncodeFeedProcessor implements FrameProcessor {
+        @Override
+        public void onStart(int width, int height) {
+        }
+
+        @Override
+        public void process(FramePool.Frame frame, long presentationTimeUs, Output output) {
+            byte[] arr = mEncodeThread.obtainFrame();    // Blocks while the encoder is a full queue behind
+            if (arr != null) {
+                System.arraycopy(frame.data, 0, arr, 0, frame.data.length);
+                mEncodeThread.pushFrame();
+            }
+        }
+
+        @Override
+        public void onEnd(Output output) {
+        }
+    }
+
+    /**
+     * Appends the frame to the frame store. NV21, NV12 and I420 are written from the decoder's
+     * planes straight into the mapped file, the other formats go through a pooled NV21 frame.
+     */
+    private void dumpYUVFrame(YuvPlanes planes, long presentationTimeUs) {
+        try {
+            ByteBuffer frame = mFrameStore.obtain();
+            int size = mWidth * mHeight;
+            switch (mFormat) {
+                case COLOR_FORMAT_NV21:
+                    Utils.writeEncoderInput(planes, frame, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar, mWidth, mHeight);
+                    Utils.swapBytePairs(frame, size, size / 2);
+                    break;
+                case YuvConverter.FORMAT_NV12:
+                    Utils.writeEncoderInput(planes, frame, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar, mWidth, mHeight);
+                    break;
+                case COLOR_FORMAT_I420:
+                    Utils.writeEncoderInput(planes, frame, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar, mWidth, mHeight);
+                    break;
+                default:
+                    FramePool.Frame rowData = mFramePool.acquire(planes.rowStrides[0]);
+                    FramePool.Frame nv21 = mFramePool.acquire(YuvConverter.getFrameSize(COLOR_FORMAT_NV21, mWidth, mHeight));
+                    FramePool.Frame converted = mFramePool.acquire(mFrameStore.getFrameSize());
+                    Utils.transformNV21FromPlanes(planes, nv21.data, rowData.data);
+                    YuvConverter.convert(nv21.data, COLOR_FORMAT_NV21, converted.data, mFormat, mWidth, mHeight);
+                    frame.clear();
+                    frame.put(converted.data);
+                    converted.release();
+                    nv21.release();
+                    rowData.release();
+                    break;
+            }
+            mFrameStore.commit(presentationTimeUs);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public class EncodeThread implements Runnable {
 
         private static final int ENCODE_FPS = 30;
-        private static final String ENCODE_MIME_TYPE = MIMETYPE_VIDEO_AVC;
+        // More frames than any encoder keeps in flight
+        private static final int ENCODER_LATENCY_FRAMES = 64;
 
-        private String mOutputDir;
-        private LinkedBlockingQueue<byte[]> mImageQueue;
-        private boolean mState;
+        private String mOutputPath;
+        private int mQueueDepth;
+        private boolean mDirect;
+        private boolean mProcessed;
+        // Created once the encoder's input layout is known, see getQueueFormat()
+        private FrameRing mFrameRing;
+        private int mQueueFormat;
+        private volatile VideoCodec mCodec;
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        // Counted down by quitThread(), the direct path waits on it before ending the stream
+        private final CountDownLatch mInputDone = new CountDownLatch(1);
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        // Set when feeding stops before end of stream was queued, so the drain does not wait for it
+        private volatile boolean mAborted;
+        // When each of the last frames went into the encoder, by input frame number
+        private final AtomicLongArray mQueueTimes = new AtomicLongArray(ENCODER_LATENCY_FRAMES);
+        // Input layout negotiated with the encoder, used by encodeFrame()
+        private int mInputColorFormat;
+        private int mEncodeFormat;
+        private int mInputStride;
+        private int mInputSliceHeight;
+        private volatile long mInputFrameCount;
+        // Queued frames to drop before encoding
+        private int mSkipFrames;
+        private volatile boolean mComplete;
         private int mWidth;
         private int mHeight;
-        private int mTrackIndex = -10;
+        private int mTrackIndex = -1;
 
-        EncodeThread(String outputDir) {
-            mOutputDir = outputDir;
-            mImageQueue = new LinkedBlockingQueue<>();
-            mState = true;
+        /**
+         * @param direct    frames are fed through {@link #encodeFrame(YuvPlanes)} instead of the frame queue
+         * @param processed queued frames come out of the frame pipeline, in the frame format
+         */
+        EncodeThread(String outputPath, int queueDepth, boolean direct, boolean processed) {
+            mOutputPath = outputPath;
+            mQueueDepth = queueDepth;
+            mDirect = direct;
+            mProcessed = processed;
         }
 
+        /**
+         * Must be called before the thread is started.
+         */
         public void setDimension(int width, int height) {
             mWidth = width;
             mHeight = height;
         }
 
-        public void push(byte[] data) {
+        /**
+         * The layout of the frames {@link #obtainFrame()} hands out: the frame format for
+         * processed frames, otherwise the encoder's input layout, so they are converted once.
+         * Valid once obtainFrame() returned a slot.
+         */
+        public int getQueueFormat() {
+            return mQueueFormat;
+        }
+
+        /**
+         * Drops the first {@code frames} queued frames instead of encoding them. Must be called
+         * before the thread is started.
+         */
+        public void setSkipFrames(int frames) {
+            mSkipFrames = frames;
+        }
+
+        /**
+         * Whether the encoder put out its last frame and the file was finished. Valid once
+         * {@link #quitThread()} returned.
+         */
+        public boolean isComplete() {
+            return mComplete;
+        }
+
+        /**
+         * Writes one decoded frame into the next encoder input buffer and queues it, on the
+         * caller's thread. Blocks until the encoder is started and has a free input buffer.
+         *
+         * @return false if the encoder is not running
+         */
+        public boolean encodeFrame(YuvPlanes planes) {
             try {
-                mImageQueue.put(data);
+                mStarted.await();
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            VideoCodec codec = mCodec;
+            if (codec == null) {
+                return false;
+            }
+            if (!Utils.isSemiPlanar(mInputColorFormat) && !Utils.isPlanar(mInputColorFormat)) {
+                Log.e(TAG, "encodeFrame: direct input not supported for color format 0x" + Integer.toHexString(mInputColorFormat));
+                return false;
+            }
+            try {
+                long start = System.nanoTime();
+                int inputBufferId;
+                do {
+                    inputBufferId = codec.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
+                } while (inputBufferId < 0 && mCodec != null);
+                if (inputBufferId < 0) {
+                    mMetrics.countDropped();
+                    return false;
+                }
+                long dequeued = System.nanoTime();
+                mMetrics.record(PipelineMetrics.STAGE_QUEUE_WAIT, dequeued - start);
+                long traceStart = mTracer.begin(TRACE_ENCODE_INPUT);
+                ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferId);
+                assert inputBuffer != null;
+                inputBuffer.clear();
+                int size = Utils.writeEncoderInput(planes, inputBuffer, mInputColorFormat, mInputStride, mInputSliceHeight);
+                mTracer.end(TRACE_ENCODE_INPUT, mInputFrameCount, traceStart);
+                mMetrics.record(PipelineMetrics.STAGE_CONVERT, System.nanoTime() - dequeued);
+                queueFrame(codec, inputBufferId, size);
+                return true;
+            } catch (IllegalStateException e) {
+                // The encoder was stopped under us
+                Log.w(TAG, "encodeFrame: encoder not running", e);
+                return false;
             }
         }
 
+        /**
+         * Returns a free frame slot to be filled by the caller in {@link #getQueueFormat()},
+         * blocking while the queue is full. Returns null once the encoder is gone.
+         */
+        public byte[] obtainFrame() {
+            long start = System.nanoTime();
+            byte[] slot = awaitStarted() ? mFrameRing.obtain() : null;
+            mMetrics.record(PipelineMetrics.STAGE_QUEUE_WAIT, System.nanoTime() - start);
+            if (slot == null) {
+                // The encoder is gone
+                mMetrics.countDropped();
+            }
+            return slot;
+        }
+
+        /**
+         * Queues the slot returned by the last {@link #obtainFrame()} for encoding.
+         */
+        public void pushFrame() {
+            mFrameRing.push();
+            mMetrics.recordQueueDepth(PipelineMetrics.QUEUE_ENCODER, mFrameRing.size());
+        }
+
+        /**
+         * Ends the input: the queued frames are encoded, then end of stream is sent to the
+         * encoder. Returns once the encoder has put out its last frame and the file is written.
+         */
         public void quitThread() {
-            mState = false;
+            if (awaitStarted()) {
+                mFrameRing.close();
+            }
+            mInputDone.countDown();
+            try {
+                mFinished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Waits for the encoder to start. Returns whether the frame queue is there, it isn't on
+         * the direct path or when the encoder failed to start.
+         */
+        private boolean awaitStarted() {
+            try {
+                mStarted.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return mFrameRing != null;
+        }
+
+        /**
+         * Frames are stamped by their input order at {@link #ENCODE_FPS}, which is what plays the
+         * high-speed clip back slowed down.
+         */
+        private long nextPresentationTimeUs() {
+            return mInputFrameCount++ * 1000000L / ENCODE_FPS;
+        }
+
+        /**
+         * Queues a filled input buffer, noting when so the drain can tell how long the frame
+         * spent in the encoder.
+         */
+        private void queueFrame(VideoCodec codec, int inputBufferId, int size) {
+            mQueueTimes.set((int) (mInputFrameCount % mQueueTimes.length()), System.nanoTime());
+            codec.queueInputBuffer(inputBufferId, 0, size, nextPresentationTimeUs(), 0);
+        }
+
+        /**
+         * Waits for a free input buffer, giving up once the encoder is gone.
+         */
+        private int dequeueInputBuffer(VideoCodec codec) {
+            int inputBufferId;
+            do {
+                inputBufferId = codec.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
+            } while (inputBufferId < 0 && !mAborted);
+            return inputBufferId;
         }
 
         @Override
         public void run() {
-            MediaCodec codec = null;
-            MediaMuxer mediaMuxer = null;
-            MediaFormat mediaFormat = null;
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            long presentationTimeUs = 132;
+            VideoCodec codec = null;
+            SampleMuxer mediaMuxer = null;
+            Thread drainThread = null;
+            DrainRunnable drain = null;
 
             try {
-//            getCodecName();
-                mediaFormat = createEncodeMediaFormat(mWidth, mHeight, ENCODE_FPS);
-//            codec = MediaCodec.createByCodecName(CODEC_ENCODE_NAME);
-                codec = MediaCodec.createEncoderByType(mediaFormat.getString(MediaFormat.KEY_MIME));
-                codec.configure(mediaFormat, null, null, CONFIGURE_FLAG_ENCODE);
+                codec = mBackend.createEncoder(mWidth, mHeight, ENCODE_FPS, 0);
                 codec.start();
-                mediaMuxer = new MediaMuxer(mOutputDir + "/output.mp4", MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                mInputColorFormat = codec.getInputColorFormat();
+                mInputStride = codec.getInputStride();
+                mInputSliceHeight = codec.getInputSliceHeight();
+                // Queued frames are converted to the layout the encoder takes
+                mEncodeFormat = YuvConverter.fromCodecColorFormat(mInputColorFormat);
+                if (mEncodeFormat < 0) {
+                    Log.w(TAG, "Unknown encoder input color format 0x" + Integer.toHexString(mInputColorFormat) + ", trying NV12");
+                    mEncodeFormat = YuvConverter.FORMAT_NV12;
+                }
+                Log.d(TAG, "encoder input color format 0x" + Integer.toHexString(mInputColorFormat) + " (" + YuvConverter.getName(mEncodeFormat) + ")");
+                if (!mDirect) {
+                    mQueueFormat = mProcessed ? mFormat : mEncodeFormat;
+                    mFrameRing = new FrameRing(mQueueDepth, YuvConverter.getFrameSize(mQueueFormat, mWidth, mHeight));
+                }
+                mediaMuxer = mBackend.createMuxer(mOutputPath);
 
-                while (true) {
-                    if (!mState && mImageQueue.size() <= 0) {
-                        break;
-                    }
-                    int inputBufferId = codec.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
-                    if (inputBufferId >= 0) {
-                        try {
-                            byte[] data = mImageQueue.take();
-                            byte[] data1 = new byte[mWidth * mHeight * 3 / 2];
-                            Utils.Nv21ToYuv420SP(data, data1, mWidth, mHeight);
-                            ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferId);
-                            assert inputBuffer != null;
-                            inputBuffer.clear();
-                            inputBuffer.put(data1);
-                            codec.queueInputBuffer(inputBufferId, 0, data1.length, presentationTimeUs, 0);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
+                // Output is drained and muxed on its own thread, so the encoder never sits on
+                // full output buffers while this one waits for the next frame
+                drain = new DrainRunnable(codec, mediaMuxer);
+                drainThread = new Thread(drain, TAG + "-drain");
+                drainThread.start();
+                mCodec = codec;
+                mStarted.countDown();
 
-                    int outputBufferId = codec.dequeueOutputBuffer(info, DEFAULT_TIMEOUT_US);
-                    if (outputBufferId >= 0) {
-                        ByteBuffer outputBuffer = codec.getOutputBuffer(outputBufferId);
-                        MediaFormat bufferFormat = codec.getOutputFormat(outputBufferId); // option A
-                        // bufferFormat is identical to outputFormat
-                        // outputBuffer is ready to be processed or rendered.
-                        assert outputBuffer != null;
-                        byte[] arr = new byte[outputBuffer.remaining()];
-                        outputBuffer.get(arr);
-//                    Utils.saveYUVFile(mOutputDir + "/encode_output.h264", arr, true);
-                        // TODO MP4 The resulting frame rate is not constant 30fps
-                        presentationTimeUs += 1000 * 1000 / ENCODE_FPS;
-                        // TODO No audio information added
-                        mediaMuxer.writeSampleData(mTrackIndex, outputBuffer, info);
-                        outputBuffer.clear();
-                        codec.releaseOutputBuffer(outputBufferId, false);
-                    } else if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                        // Subsequent data will conform to new format.
-                        // Can ignore if using getOutputFormat(outputBufferId)
-                        mTrackIndex = mediaMuxer.addTrack(codec.getOutputFormat());
-                        mediaMuxer.start();
-                    }
+                if (mDirect) {
+                    // Frames come in through encodeFrame() on the decoder's thread
+                    mInputDone.await();
+                } else {
+                    feedFrames(codec);
+                }
+                int inputBufferId = dequeueInputBuffer(codec);
+                if (inputBufferId >= 0) {
+                    codec.queueInputBuffer(inputBufferId, 0, 0, mInputFrameCount * 1000000L / ENCODE_FPS, VideoCodec.BUFFER_FLAG_END_OF_STREAM);
+                } else {
+                    mAborted = true;
                 }
-                mImageQueue.clear();
+                drainThread.join();
+                Log.d(TAG, "encoder done, " + mInputFrameCount + " frames in, " + drain.mFrameCount + " out, " + mFramePool);
             } catch (IOException e) {
                 e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "encoder failed", e);
             } finally {
+                // Unblock the decoder and the drain if we stopped early
+                mAborted = true;
+                mCodec = null;
+                mStarted.countDown();
+                if (mFrameRing != null) {
+                    mFrameRing.close();
+                }
+                if (drainThread != null) {
+                    try {
+                        drainThread.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
                 if (codec != null) {
                     codec.stop();
                     codec.release();
                 }
-                if (mediaMuxer != null && mTrackIndex != -1) {
-                    mediaMuxer.stop();
+                if (mediaMuxer != null) {
+                    if (drain != null && drain.mMuxerStarted) {
+                        mediaMuxer.stop();
+                        mComplete = drain.mEndOfStream;
+                    }
                     mediaMuxer.release();
-                    mediaMuxer = null;
                 }
+                mFinished.countDown();
+            }
+        }
+
+        /**
+         * Moves queued frames into encoder input buffers, laid out with the encoder's stride and
+         * slice height, until the queue is closed and empty. An input buffer is only taken once a
+         * frame is ready for it.
+         */
+        private void feedFrames(VideoCodec codec) {
+            byte[] data;
+            int frameSize = YuvConverter.getFrameSize(mEncodeFormat, mWidth, mHeight);
+            while ((data = mFrameRing.take()) != null) {
+                if (mSkipFrames > 0) {
+                    mSkipFrames--;
+                    mFrameRing.release();
+                    continue;
+                }
+                int inputBufferId = dequeueInputBuffer(codec);
+                if (inputBufferId < 0) {
+                    return;
+                }
+                ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferId);
+                assert inputBuffer != null;
+                inputBuffer.clear();
+                long start = System.nanoTime();
+                long traceStart = mTracer.begin(TRACE_ENCODE_INPUT);
+                int size;
+                if (mQueueFormat == COLOR_FORMAT_NV21 && mEncodeFormat == YuvConverter.FORMAT_NV12) {
+                    // The slot is ours until released, turn it into NV12 in place
+                    ParallelYuv.Nv21ToNv12InPlace(data, mWidth, mHeight);
+                    size = Utils.writePaddedFrame(data, mEncodeFormat, mWidth, mHeight, inputBuffer, mInputStride, mInputSliceHeight);
+                } else if (mQueueFormat == mEncodeFormat) {
+                    size = Utils.writePaddedFrame(data, mEncodeFormat, mWidth, mHeight, inputBuffer, mInputStride, mInputSliceHeight);
+                } else {
+                    FramePool.Frame data1 = mFramePool.acquire(frameSize);
+                    convertFrame(data, data1.data);
+                    size = Utils.writePaddedFrame(data1.data, mEncodeFormat, mWidth, mHeight, inputBuffer, mInputStride, mInputSliceHeight);
+                    data1.release();
+                }
+                mFrameRing.release();
+                mTracer.end(TRACE_ENCODE_INPUT, mInputFrameCount, traceStart);
+                mMetrics.record(PipelineMetrics.STAGE_CONVERT, System.nanoTime() - start);
+                queueFrame(codec, inputBufferId, size);
             }
         }
 
-        private MediaFormat createEncodeMediaFormat(int width, int height, int fps) {
-        /* Another way to create mediaFormat
-        MediaFormat mediaFormat = new MediaFormat();
-        // Use H264 encoding
-        mediaFormat.setString(MediaFormat.KEY_MIME, mEncodeMimetype);
-        mediaFormat.setInteger(MediaFormat.KEY_WIDTH, width);
-        mediaFormat.setInteger(MediaFormat.KEY_HEIGHT, height);
-        */
-
-            // Use H264 encoding
-            MediaFormat mediaFormat = MediaFormat.createVideoFormat(ENCODE_MIME_TYPE, width, height);
-            // Set the video input color format   TODO Specific format support depends on device support, currently NV21 to YUV420SP
-            mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
-            // Set the video bit rate
-            mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, width * height * fps * 300);
-            // Set video fps
-            mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
-            // Set video I frame interval
-            mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                /**
-                 * Optional configuration, set the rate mode
-                 * BITRATE_MODE_VBR：Constant mass
-                 * BITRATE_MODE_VBR：Variable bit rate
-                 * BITRATE_MODE_CBR：Constant bit rate
-                 */
-                mediaFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ);
-                /**
-                 * Optional configuration, set H264 Profile
-                 * Need to do compatibility check
-                 */
-                mediaFormat.setInteger(MediaFormat.KEY_PROFILE, MediaCodecInfo.CodecProfileLevel.AVCProfileHigh);
-                /**
-                 * Optional configuration, setting H264 Level
-                 * Need to do compatibility check
-                 */
-                mediaFormat.setInteger(MediaFormat.KEY_LEVEL, MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel31);
-            }
-
-            return mediaFormat;
+        /**
+         * Writes encoder output to the muxer until the encoder signals end of stream.
+         */
+        private class DrainRunnable implements Runnable {
+            private final VideoCodec mDrainCodec;
+            private final SampleMuxer mMuxer;
+            volatile boolean mMuxerStarted;
+            volatile boolean mEndOfStream;
+            volatile long mFrameCount;
+
+            DrainRunnable(VideoCodec codec, SampleMuxer muxer) {
+                mDrainCodec = codec;
+                mMuxer = muxer;
+            }
+
+            @Override
+            public void run() {
+                VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+                try {
+                    while (true) {
+                        int outputBufferId = mDrainCodec.dequeueOutputBuffer(info, DEFAULT_TIMEOUT_US);
+                        if (outputBufferId >= 0) {
+                            ByteBuffer outputBuffer = mDrainCodec.getOutputBuffer(outputBufferId);
+                            assert outputBuffer != null;
+                            // The codec config is already in the track format
+                            if ((info.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                                info.size = 0;
+                            }
+                            if (info.size != 0 && mMuxerStarted) {
+                                long now = System.nanoTime();
+                                int frame = (int) ((info.presentationTimeUs * ENCODE_FPS + 500000) / 1000000);
+                                if (frame < mInputFrameCount) {
+                                    mMetrics.record(PipelineMetrics.STAGE_ENCODE, now - mQueueTimes.get(frame % mQueueTimes.length()));
+                                }
+                                long traceStart = mTracer.begin(TRACE_MUX);
+                                // TODO No audio information added
+                                mMuxer.writeSampleData(mTrackIndex, outputBuffer, info);
+                                mTracer.end(TRACE_MUX, mFrameCount, traceStart);
+                                mMetrics.record(PipelineMetrics.STAGE_MUX, System.nanoTime() - now);
+                                mMetrics.countEncoded();
+                                mFrameCount++;
+                            }
+                            mDrainCodec.releaseOutputBuffer(outputBufferId);
+                            if ((info.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                                mEndOfStream = true;
+                                return;
+                            }
+                        } else if (outputBufferId == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                            // Subsequent data will conform to new format.
+                            mTrackIndex = mMuxer.addTrack(mDrainCodec.getOutputTrack());
+                            mMuxer.start();
+                            mMuxerStarted = true;
+                        } else if (mAborted) {
+                            // End of stream will never come
+                            return;
+                        }
+                    }
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "encoder output failed", e);
+                }
+            }
+        }
+
+        /**
+         * Converts a queued frame to the encoder's input layout, striped across cores for
+         * NV21 to I420.
+         */
+        private void convertFrame(byte[] data, byte[] dstData) {
+            if (mQueueFormat == COLOR_FORMAT_NV21 && mEncodeFormat == YuvConverter.FORMAT_I420) {
+                ParallelYuv.Nv21ToI420(data, dstData, mWidth, mHeight);
+            } else {
+                YuvConverter.convert(data, mQueueFormat, dstData, mEncodeFormat, mWidth, mHeight);
+            }
         }
     }
 }
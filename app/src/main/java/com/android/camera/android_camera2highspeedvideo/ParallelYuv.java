@@ -0,0 +1,248 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Row-striped parallel versions of the {@link Utils} color conversions.
+ *
+ * A frame is split into horizontal bands of whole chroma rows, and each band copies its Y rows
+ * and converts its UV rows independently on a shared {@link ForkJoinPool}. Frames below
+ * {@link #PARALLEL_THRESHOLD} pixels go straight to the serial version, scheduling would cost
+ * more than it saves there.
+ */
+public class ParallelYuv {
+    /** 1280x720 and smaller run on the calling thread */
+    static final int PARALLEL_THRESHOLD = 1280 * 720 + 1;
+    private static final int MIN_BAND_ROWS = 32;
+
+    private static final ThreadLocal<byte[]> sRowData = new ThreadLocal<>();
+
+    private static class PoolHolder {
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The pool shared by all striped kernels.
+     */
+    static ForkJoinPool getPool() {
+        return PoolHolder.POOL;
+    }
+
+    private static boolean isParallel(int width, int height) {
+        return width * height >= PARALLEL_THRESHOLD && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    /**
+     * Rows per band: one band per core, never less than MIN_BAND_ROWS, always even.
+     */
+    private static int bandRows(int height) {
+        int parallelism = getPool().getParallelism();
+        int rows = (height + parallelism - 1) / parallelism;
+        return (Math.max(rows, MIN_BAND_ROWS) + 1) & ~1;
+    }
+
+    public static void Nv21ToYuv420SP(byte[] data, byte[] dstData, int w, int h) {
+        if (!isParallel(w, h)) {
+            Utils.Nv21ToYuv420SP(data, dstData, w, h);
+            return;
+        }
+        getPool().invoke(new Nv21ToYuv420SPStripe(data, dstData, w, h, 0, h, bandRows(h)));
+    }
+
+    /**
+     * Parallel {@link Utils#Nv21ToNv12InPlace}.
+     */
+    public static void Nv21ToNv12InPlace(byte[] data, int w, int h) {
+        if (!isParallel(w, h)) {
+            Utils.Nv21ToNv12InPlace(data, w, h);
+            return;
+        }
+        getPool().invoke(new Nv21ToYuv420SPStripe(data, data, w, h, 0, h, bandRows(h)));
+    }
+
+    public static void Nv21ToI420(byte[] data, byte[] dstData, int w, int h) {
+        if (!isParallel(w, h)) {
+            Utils.Nv21ToI420(data, dstData, w, h);
+            return;
+        }
+        getPool().invoke(new Nv21ToI420Stripe(data, dstData, w, h, 0, h, bandRows(h)));
+    }
+
+    /**
+     * Parallel {@link Utils#transformNV21FromPlanes}. Every band reads through its own duplicate of
+     * the plane buffers, so their positions don't interfere.
+     */
+    public static void transformNV21FromPlanes(YuvPlanes src, byte[] data, byte[] rowData) {
+        if (!isParallel(src.width, src.height)) {
+            Utils.transformNV21FromPlanes(src, data, rowData);
+            return;
+        }
+        int layout = src.getChromaLayout();
+        getPool().invoke(new TransformStripe(src, layout, data, 0, src.height, bandRows(src.height)));
+    }
+
+    /**
+     * Parallel {@link Utils#blendFrames} over a whole {@code w} x {@code h} 4:2:0 frame.
+     */
+    public static void blendFrames(byte[] a, byte[] b, byte[] dstData, int w, int h, int weight) {
+        if (!isParallel(w, h)) {
+            Utils.blendFrames(a, b, dstData, 0, w * h * 3 / 2, weight);
+            return;
+        }
+        getPool().invoke(new BlendStripe(a, b, dstData, w, h, weight, 0, h, bandRows(h)));
+    }
+
+    private abstract static class Stripe extends RecursiveAction {
+        final int top;
+        final int bottom;
+        final int bandRows;
+
+        Stripe(int top, int bottom, int bandRows) {
+            this.top = top;
+            this.bottom = bottom;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (bottom - top <= bandRows) {
+                convert();
+                return;
+            }
+            int middle = ((top + bottom) >> 1) & ~1;
+            invokeAll(split(top, middle), split(middle, bottom));
+        }
+
+        abstract Stripe split(int top, int bottom);
+
+        abstract void convert();
+    }
+
+    private static class Nv21ToYuv420SPStripe extends Stripe {
+        private final byte[] mSrc;
+        private final byte[] mDst;
+        private final int mWidth;
+        private final int mHeight;
+
+        Nv21ToYuv420SPStripe(byte[] src, byte[] dst, int width, int height, int top, int bottom, int bandRows) {
+            super(top, bottom, bandRows);
+            mSrc = src;
+            mDst = dst;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        Stripe split(int top, int bottom) {
+            return new Nv21ToYuv420SPStripe(mSrc, mDst, mWidth, mHeight, top, bottom, bandRows);
+        }
+
+        @Override
+        void convert() {
+            if (mSrc != mDst) {
+                System.arraycopy(mSrc, top * mWidth, mDst, top * mWidth, (bottom - top) * mWidth);
+            }
+            int start = mWidth * mHeight + (top >> 1) * mWidth;
+            int length = ((bottom >> 1) - (top >> 1)) * mWidth;
+            Utils.swapBytePairs(mSrc, start, mDst, start, length);
+        }
+    }
+
+    private static class Nv21ToI420Stripe extends Stripe {
+        private final byte[] mSrc;
+        private final byte[] mDst;
+        private final int mWidth;
+        private final int mHeight;
+
+        Nv21ToI420Stripe(byte[] src, byte[] dst, int width, int height, int top, int bottom, int bandRows) {
+            super(top, bottom, bandRows);
+            mSrc = src;
+            mDst = dst;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        Stripe split(int top, int bottom) {
+            return new Nv21ToI420Stripe(mSrc, mDst, mWidth, mHeight, top, bottom, bandRows);
+        }
+
+        @Override
+        void convert() {
+            System.arraycopy(mSrc, top * mWidth, mDst, top * mWidth, (bottom - top) * mWidth);
+            int size = mWidth * mHeight;
+            int start = (top >> 1) * (mWidth >> 1);
+            int end = (bottom >> 1) * (mWidth >> 1);
+            for (int i = start; i < end; i++) {
+                mDst[size + i] = mSrc[size + i * 2 + 1]; //U
+                mDst[size + size / 4 + i] = mSrc[size + i * 2]; //V
+            }
+        }
+    }
+
+    private static class BlendStripe extends Stripe {
+        private final byte[] mA;
+        private final byte[] mB;
+        private final byte[] mDst;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mWeight;
+
+        BlendStripe(byte[] a, byte[] b, byte[] dst, int width, int height, int weight, int top, int bottom, int bandRows) {
+            super(top, bottom, bandRows);
+            mA = a;
+            mB = b;
+            mDst = dst;
+            mWidth = width;
+            mHeight = height;
+            mWeight = weight;
+        }
+
+        @Override
+        Stripe split(int top, int bottom) {
+            return new BlendStripe(mA, mB, mDst, mWidth, mHeight, mWeight, top, bottom, bandRows);
+        }
+
+        @Override
+        void convert() {
+            Utils.blendFrames(mA, mB, mDst, top * mWidth, (bottom - top) * mWidth, mWeight);
+            int start = mWidth * mHeight + (top >> 1) * mWidth;
+            Utils.blendFrames(mA, mB, mDst, start, ((bottom >> 1) - (top >> 1)) * mWidth, mWeight);
+        }
+    }
+
+    private static class TransformStripe extends Stripe {
+        private final YuvPlanes mSrc;
+        private final int mLayout;
+        private final byte[] mData;
+
+        TransformStripe(YuvPlanes src, int layout, byte[] data, int top, int bottom, int bandRows) {
+            super(top, bottom, bandRows);
+            mSrc = src;
+            mLayout = layout;
+            mData = data;
+        }
+
+        @Override
+        Stripe split(int top, int bottom) {
+            return new TransformStripe(mSrc, mLayout, mData, top, bottom, bandRows);
+        }
+
+        @Override
+        void convert() {
+            ByteBuffer[] buffers = {
+                    mSrc.buffers[0].duplicate(),
+                    mSrc.buffers[1].duplicate(),
+                    mSrc.buffers[2].duplicate(),
+            };
+            byte[] rowData = sRowData.get();
+            if (rowData == null || rowData.length < mSrc.rowStrides[0]) {
+                rowData = new byte[mSrc.rowStrides[0]];
+                sRowData.set(rowData);
+            }
+            Utils.transformNV21Rows(mSrc, buffers, mLayout, top, bottom, mData, rowData);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-stage latency histograms, queue depths and frame counters of one job.
+ *
+ * Every record call is allocation free and thread safe, so the decode, processing, encode and
+ * drain threads all record into the same instance. Read it once the job is done, or export it
+ * with {@link #toJson()} to compare devices.
+ */
+public class PipelineMetrics {
+    /** Reading a sample from the extractor */
+    public static final int STAGE_EXTRACT = 0;
+    /** Waiting in dequeueOutputBuffer for a decoded frame, poll mode only */
+    public static final int STAGE_DECODE = 1;
+    /** Copying or converting a frame between YUV layouts */
+    public static final int STAGE_CONVERT = 2;
+    /** A frame processor, interpolation included, without the time blocked on the next stage */
+    public static final int STAGE_PROCESS = 3;
+    /** A producer blocked on a full queue, the sign of a slower stage downstream */
+    public static final int STAGE_QUEUE_WAIT = 4;
+    /** From queueing a frame into the encoder to its sample coming out */
+    public static final int STAGE_ENCODE = 5;
+    /** Writing a sample to the muxer */
+    public static final int STAGE_MUX = 6;
+    public static final int STAGE_COUNT = 7;
+
+    /** The frame processing pipeline, sampled per frame entering a stage */
+    public static final int QUEUE_PIPELINE = 0;
+    /** The frame ring in front of the encoder, sampled per frame pushed */
+    public static final int QUEUE_ENCODER = 1;
+    public static final int QUEUE_COUNT = 2;
+
+    private static final String[] STAGE_NAMES = {
+            "extract", "decode", "convert", "process", "queue_wait", "encode", "mux"
+    };
+    private static final String[] QUEUE_NAMES = {"pipeline", "encoder"};
+
+    private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_COUNT];
+    private final AtomicLong[] mQueueSamples = new AtomicLong[QUEUE_COUNT];
+    private final AtomicLong[] mQueueTotals = new AtomicLong[QUEUE_COUNT];
+    private final AtomicLong[] mQueueMax = new AtomicLong[QUEUE_COUNT];
+    private final AtomicLong mFramesDecoded = new AtomicLong();
+    private final AtomicLong mFramesEncoded = new AtomicLong();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    private volatile long mElapsedNanos;
+
+    public PipelineMetrics() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStages[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < QUEUE_COUNT; i++) {
+            mQueueSamples[i] = new AtomicLong();
+            mQueueTotals[i] = new AtomicLong();
+            mQueueMax[i] = new AtomicLong();
+        }
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void record(int stage, long nanos) {
+        mStages[stage].record(nanos);
+    }
+
+    public LatencyHistogram getStage(int stage) {
+        return mStages[stage];
+    }
+
+    public void recordQueueDepth(int queue, int depth) {
+        mQueueSamples[queue].incrementAndGet();
+        mQueueTotals[queue].addAndGet(depth);
+        AtomicLong max = mQueueMax[queue];
+        long current;
+        while (depth > (current = max.get())) {
+            if (max.compareAndSet(current, depth)) {
+                break;
+            }
+        }
+    }
+
+    public double getMeanQueueDepth(int queue) {
+        long samples = mQueueSamples[queue].get();
+        return samples == 0 ? 0 : (double) mQueueTotals[queue].get() / samples;
+    }
+
+    public long getMaxQueueDepth(int queue) {
+        return mQueueMax[queue].get();
+    }
+
+    public void countDecoded() {
+        mFramesDecoded.incrementAndGet();
+    }
+
+    public void countEncoded() {
+        mFramesEncoded.incrementAndGet();
+    }
+
+    /**
+     * A frame that was decoded or made but never reached the encoder.
+     */
+    public void countDropped() {
+        mFramesDropped.incrementAndGet();
+    }
+
+    public long getFramesDecoded() {
+        return mFramesDecoded.get();
+    }
+
+    public long getFramesEncoded() {
+        return mFramesEncoded.get();
+    }
+
+    public long getFramesDropped() {
+        return mFramesDropped.get();
+    }
+
+    public void setElapsedNanos(long elapsedNanos) {
+        mElapsedNanos = elapsedNanos;
+    }
+
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    /**
+     * The stage with the most total time, a first guess at the bottleneck. Queue waits are
+     * left out, they are the symptom rather than the cause.
+     */
+    public int getBusiestStage() {
+        int busiest = -1;
+        long most = -1;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            long total = mStages[i].getTotalNanos();
+            if (i != STAGE_QUEUE_WAIT && total > most) {
+                most = total;
+                busiest = i;
+            }
+        }
+        return busiest;
+    }
+
+    public void reset() {
+        for (LatencyHistogram stage : mStages) {
+            stage.reset();
+        }
+        for (int i = 0; i < QUEUE_COUNT; i++) {
+            mQueueSamples[i].set(0);
+            mQueueTotals[i].set(0);
+            mQueueMax[i].set(0);
+        }
+        mFramesDecoded.set(0);
+        mFramesEncoded.set(0);
+        mFramesDropped.set(0);
+        mElapsedNanos = 0;
+    }
+
+    /**
+     * Everything as one JSON object. Histogram buckets are listed by their upper bound in
+     * microseconds, empty ones left out.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(2048);
+        json.append("{\"elapsed_ms\":").append(mElapsedNanos / 1000000)
+                .append(",\"frames\":{\"decoded\":").append(mFramesDecoded.get())
+                .append(",\"encoded\":").append(mFramesEncoded.get())
+                .append(",\"dropped\":").append(mFramesDropped.get())
+                .append("},\"stages\":{");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram stage = mStages[i];
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(STAGE_NAMES[i]).append("\":{\"count\":").append(stage.getCount())
+                    .append(",\"total_us\":").append(stage.getTotalNanos() / 1000)
+                    .append(",\"mean_us\":").append(stage.getMeanNanos() / 1000)
+                    .append(",\"p50_us\":").append(stage.getPercentileUs(50))
+                    .append(",\"p90_us\":").append(stage.getPercentileUs(90))
+                    .append(",\"p99_us\":").append(stage.getPercentileUs(99))
+                    .append(",\"max_us\":").append(stage.getMaxNanos() / 1000)
+                    .append(",\"buckets\":{");
+            boolean first = true;
+            for (int b = 0; b < LatencyHistogram.BUCKET_COUNT; b++) {
+                long count = stage.getBucketCount(b);
+                if (count == 0) {
+                    continue;
+                }
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append('"').append(b == LatencyHistogram.BUCKET_COUNT - 1 ? "inf" : String.valueOf(LatencyHistogram.getBucketLimitUs(b)))
+                        .append("\":").append(count);
+            }
+            json.append("}}");
+        }
+        json.append("},\"queues\":{");
+        for (int i = 0; i < QUEUE_COUNT; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(QUEUE_NAMES[i]).append("\":{\"mean_depth\":")
+                    .append(String.format(Locale.US, "%.2f", getMeanQueueDepth(i)))
+                    .append(",\"max_depth\":").append(getMaxQueueDepth(i)).append('}');
+        }
+        int busiest = getBusiestStage();
+        json.append("},\"busiest_stage\":\"").append(busiest >= 0 ? STAGE_NAMES[busiest] : "").append("\"}");
+        return json.toString();
+    }
+
+    public void writeJson(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+        try {
+            writer.write(toJson());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * One line per stage with a count, for the log.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("decoded ").append(mFramesDecoded.get()).append(", encoded ").append(mFramesEncoded.get())
+                .append(", dropped ").append(mFramesDropped.get());
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram stage = mStages[i];
+            if (stage.getCount() == 0) {
+                continue;
+            }
+            text.append('\n').append(String.format(Locale.US, "%-10s n=%d mean=%dus p50<%dus p99<%dus max=%dus",
+                    STAGE_NAMES[i], stage.getCount(), stage.getMeanNanos() / 1000, stage.getPercentileUs(50),
+                    stage.getPercentileUs(99), stage.getMaxNanos() / 1000));
+        }
+        return text.toString();
+    }
+}
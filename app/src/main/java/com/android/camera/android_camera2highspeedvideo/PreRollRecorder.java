@@ -0,0 +1,359 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps encoding frames from a {@link FrameSource} into a {@link SampleRing}, and writes the last
+ * {@code preRollUs} before a {@link #trigger} and the {@code postRollUs} after it to an MP4.
+ *
+ * Nothing is written while waiting for a trigger, and memory is the ring's fixed size no matter
+ * how long that is. The clip starts at the oldest sync sample in the ring, timestamps start over
+ * at 0. One clip is written at a time; the ring keeps filling while it is.
+ */
+public class PreRollRecorder {
+    private static final String TAG = "PreRollRecorder";
+    private static final long DEFAULT_TIMEOUT_US = 10000;
+    // Sizes the ring's index: most sample rate expected, with room to spare
+    private static final int MAX_SAMPLES_PER_SECOND = 480;
+    // The encoder's key frame interval, see AndroidMediaBackend
+    private static final long GOP_US = 1000000L;
+    // Share of the ring the encoder's bit rate fills, a VBR encoder overshoots it now and then
+    private static final int BIT_RATE_PERCENT = 75;
+
+    /**
+     * Called on the recorder's drain thread.
+     */
+    public interface Listener {
+        /**
+         * A clip was written, or failed to be when {@code success} is false.
+         */
+        void onClipSaved(String path, boolean success);
+    }
+
+    private final MediaBackend mBackend;
+    private final File mRingFile;
+    private final int mCapacity;
+    private final long mPreRollUs;
+    private final long mPostRollUs;
+    private final int mFrameRate;
+    private volatile Listener mListener;
+
+    private FrameSource mSource;
+    private SampleRing mRing;
+    private VideoCodec mEncoder;
+    private Thread mDrainThread;
+    private volatile boolean mInputEnded;
+    // Set once the drain thread stopped taking output, no input buffer frees up after that
+    private volatile boolean mDrainEnded;
+    private volatile long mLastFrameUs = -1;
+    private volatile long mDroppedFrames;
+    // Set by trigger(), taken by the drain thread
+    private String mPendingPath;
+    private long mPendingTriggerUs;
+
+    // Drain thread only
+    private VideoTrack mTrack;
+    private SampleMuxer mMuxer;
+    private String mMuxerPath;
+    private int mMuxerTrack;
+    private long mClipStartUs;
+    private long mClipEndUs;
+    private final VideoCodec.BufferInfo mClipInfo = new VideoCodec.BufferInfo();
+
+    /**
+     * @param ringFile   where the ring is mapped
+     * @param capacity   bytes of encoded samples kept, the encoder's bit rate is set for it to
+     *                   hold {@code preRollUs} and a GOP, see {@link #getBitRate()}
+     * @param preRollUs  kept before a trigger, rounded out to the sync sample before it
+     * @param postRollUs written after a trigger
+     * @param frameRate  of the source, for the encoder
+     */
+    public PreRollRecorder(MediaBackend backend, File ringFile, int capacity, long preRollUs, long postRollUs, int frameRate) {
+        mBackend = backend;
+        mRingFile = ringFile;
+        mCapacity = capacity;
+        mPreRollUs = preRollUs;
+        mPostRollUs = postRollUs;
+        mFrameRate = frameRate;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts encoding the source's frames into the ring.
+     */
+    public synchronized void start(FrameSource source) throws IOException {
+        if (mSource != null) {
+            throw new IllegalStateException("Already started");
+        }
+        // A GOP more than the pre-roll, the oldest one is only dropped once the next covers it
+        int maxSamples = (int) Math.min(Integer.MAX_VALUE, (mPreRollUs + 2 * GOP_US) * MAX_SAMPLES_PER_SECOND / 1000000L);
+        mRing = new SampleRing(mRingFile, mCapacity, maxSamples, mPreRollUs);
+        try {
+            mEncoder = mBackend.createEncoder(source.getWidth(), source.getHeight(), mFrameRate, getBitRate());
+            mEncoder.start();
+        } catch (IOException | RuntimeException e) {
+            if (mEncoder != null) {
+                mEncoder.release();
+                mEncoder = null;
+            }
+            mRing.close();
+            throw e;
+        }
+        mSource = source;
+        mDrainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG + "-drain");
+        mDrainThread.start();
+        source.start(new FrameSource.Callback() {
+            @Override
+            public void onFrame(YuvPlanes planes, long timestampUs) {
+                encodeFrame(planes, timestampUs);
+            }
+
+            @Override
+            public void onEnd() {
+                endInput();
+            }
+        });
+    }
+
+    /**
+     * Writes the pre-roll so far and the post-roll to come to {@code path}, see
+     * {@link Listener#onClipSaved}.
+     *
+     * @return false if a clip is still being written or nothing was captured yet
+     */
+    public synchronized boolean trigger(String path) {
+        if (mSource == null || mPendingPath != null || mMuxerPath != null || mLastFrameUs < 0) {
+            return false;
+        }
+        mPendingPath = path;
+        mPendingTriggerUs = mLastFrameUs;
+        Log.d(TAG, "triggered at " + mPendingTriggerUs + "us, writing " + path);
+        return true;
+    }
+
+    /**
+     * Stops the source and the encoder. A clip being written ends with what was captured.
+     */
+    public void stop() {
+        FrameSource source;
+        Thread drainThread;
+        synchronized (this) {
+            source = mSource;
+            drainThread = mDrainThread;
+        }
+        if (source == null) {
+            return;
+        }
+        source.stop();
+        try {
+            drainThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            mEncoder.stop();
+            mEncoder.release();
+            try {
+                mRing.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mRingFile.delete();
+            Log.d(TAG, "stopped, " + mDroppedFrames + " frames dropped at the encoder, "
+                    + mRing.getDroppedSamples() + " samples dropped at the ring");
+            mSource = null;
+        }
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * What the encoder is asked for: the ring holds the pre-roll and the GOP being written at
+     * this rate. Without a limit, a high-speed encoder fills the ring within a GOP and the ring
+     * keeps dropping the GOP it is writing.
+     */
+    public int getBitRate() {
+        long bitRate = mCapacity * 8L * 1000000L / (mPreRollUs + GOP_US) * BIT_RATE_PERCENT / 100;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, bitRate));
+    }
+
+    /**
+     * On the source's thread. A frame the encoder has no room for is dropped, holding up the
+     * source only makes the camera drop one later.
+     */
+    private void encodeFrame(YuvPlanes planes, long timestampUs) {
+        if (mInputEnded || mDrainEnded) {
+            return;
+        }
+        int inputBufferId = mEncoder.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
+        if (inputBufferId < 0) {
+            mDroppedFrames++;
+            return;
+        }
+        ByteBuffer inputBuffer = mEncoder.getInputBuffer(inputBufferId);
+        assert inputBuffer != null;
+        inputBuffer.clear();
+        int size = Utils.writeEncoderInput(planes, inputBuffer, mEncoder.getInputColorFormat(),
+                mEncoder.getInputStride(), mEncoder.getInputSliceHeight());
+        mEncoder.queueInputBuffer(inputBufferId, 0, size, timestampUs, 0);
+        mLastFrameUs = timestampUs;
+    }
+
+    /**
+     * On the source's thread, after its last frame.
+     */
+    private void endInput() {
+        mInputEnded = true;
+        int inputBufferId;
+        do {
+            if (mDrainEnded) {
+                // Nothing is waiting for the end of stream
+                return;
+            }
+            inputBufferId = mEncoder.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
+        } while (inputBufferId < 0);
+        mEncoder.queueInputBuffer(inputBufferId, 0, 0, Math.max(mLastFrameUs, 0), VideoCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    /**
+     * Moves encoder output into the ring, and into the clip while one is being written.
+     */
+    private void drain() {
+        VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+        try {
+            while (true) {
+                int outputBufferId = mEncoder.dequeueOutputBuffer(info, DEFAULT_TIMEOUT_US);
+                if (outputBufferId == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    mTrack = mEncoder.getOutputTrack();
+                } else if (outputBufferId >= 0) {
+                    ByteBuffer outputBuffer = mEncoder.getOutputBuffer(outputBufferId);
+                    assert outputBuffer != null;
+                    // The codec config is already in the track format
+                    if (info.size != 0 && (info.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        outputBuffer.limit(info.offset + info.size).position(info.offset);
+                        handleSample(outputBuffer, info);
+                    }
+                    mEncoder.releaseOutputBuffer(outputBufferId);
+                    if ((info.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "encoder output failed", e);
+        }
+        mDrainEnded = true;
+        if (mMuxer != null) {
+            // Stopped during the post-roll
+            finishClip();
+        }
+    }
+
+    private void handleSample(ByteBuffer sample, VideoCodec.BufferInfo info) {
+        mRing.write(sample, info);
+        if (mMuxer == null) {
+            String path;
+            long triggerUs;
+            synchronized (this) {
+                path = mPendingPath;
+                triggerUs = mPendingTriggerUs;
+                mPendingPath = null;
+                mMuxerPath = path;
+            }
+            if (path != null) {
+                // The sample just written is in the ring, so it goes out with the pre-roll
+                startClip(path, triggerUs);
+            }
+        } else {
+            mClipInfo.set(info.offset, info.size, info.presentationTimeUs - mClipStartUs, info.flags);
+            try {
+                mMuxer.writeSampleData(mMuxerTrack, sample, mClipInfo);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "can't write " + mMuxerPath, e);
+                abortClip();
+                return;
+            }
+        }
+        if (mMuxer != null && info.presentationTimeUs >= mClipEndUs) {
+            finishClip();
+        }
+    }
+
+    /**
+     * Writes the ring into a new muxer, the post-roll follows sample by sample.
+     */
+    private void startClip(String path, long triggerUs) {
+        if (mRing.size() == 0 || mTrack == null) {
+            Log.w(TAG, "nothing to write to " + path);
+            clipDone(path, false);
+            return;
+        }
+        VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+        try {
+            mMuxer = mBackend.createMuxer(path);
+            mMuxerTrack = mMuxer.addTrack(mTrack);
+            mMuxer.start();
+            mRing.getSample(0, info);
+            mClipStartUs = info.presentationTimeUs;
+            mClipEndUs = triggerUs + mPostRollUs;
+            for (int i = 0; i < mRing.size(); i++) {
+                ByteBuffer sample = mRing.getSample(i, info);
+                info.presentationTimeUs -= mClipStartUs;
+                mMuxer.writeSampleData(mMuxerTrack, sample, info);
+            }
+            Log.d(TAG, mRing.size() + " samples, " + mRing.getDurationUs() / 1000 + "ms of pre-roll written to " + path);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "can't write " + path, e);
+            abortClip();
+        }
+    }
+
+    private void finishClip() {
+        String path = mMuxerPath;
+        boolean success = true;
+        try {
+            mMuxer.stop();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "can't finish " + path, e);
+            success = false;
+        }
+        mMuxer.release();
+        mMuxer = null;
+        clipDone(path, success);
+    }
+
+    private void abortClip() {
+        String path = mMuxerPath;
+        if (mMuxer != null) {
+            mMuxer.release();
+            mMuxer = null;
+        }
+        new File(path).delete();
+        clipDone(path, false);
+    }
+
+    private void clipDone(String path, boolean success) {
+        synchronized (this) {
+            mMuxerPath = null;
+        }
+        Log.d(TAG, (success ? "saved " : "failed to save ") + path);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onClipSaved(path, success);
+        }
+    }
+}
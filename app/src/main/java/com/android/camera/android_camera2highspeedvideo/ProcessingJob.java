@@ -0,0 +1,118 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+/**
+ * A recording waiting for, or going through, {@link ProcessingQueue}.
+ */
+public class ProcessingJob {
+    /** Decode, interpolate and encode, see {@link MediaCodecProc#process()} */
+    public static final int TYPE_SLOW_MOTION = 0;
+    /** Stretch the timestamps only, see {@link MediaCodecProc#remux()} */
+    public static final int TYPE_REMUX = 1;
+
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELLED = 4;
+
+    private final long mId;
+    private final int mType;
+    private final String mPath;
+    private final int mPriority;
+    private volatile int mState;
+    // What the job's concurrency is limited by, null until the queue has looked at the input
+    private volatile String mCodecType;
+    private volatile MediaCodecProc mProc;
+
+    ProcessingJob(long id, int type, String path, int priority) {
+        if (type != TYPE_SLOW_MOTION && type != TYPE_REMUX) {
+            throw new IllegalArgumentException("Unknown job type " + type);
+        }
+        mId = id;
+        mType = type;
+        mPath = path;
+        mPriority = priority;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Higher runs first.
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    void setState(int state) {
+        mState = state;
+    }
+
+    public boolean isFinished() {
+        int state = mState;
+        return state == STATE_DONE || state == STATE_FAILED || state == STATE_CANCELLED;
+    }
+
+    public String getCodecType() {
+        return mCodecType;
+    }
+
+    void setCodecType(String codecType) {
+        mCodecType = codecType;
+    }
+
+    MediaCodecProc getProc() {
+        return mProc;
+    }
+
+    void setProc(MediaCodecProc proc) {
+        mProc = proc;
+    }
+
+    /**
+     * From 0 to 1.
+     */
+    public float getProgress() {
+        if (mState == STATE_DONE) {
+            return 1;
+        }
+        MediaCodecProc proc = mProc;
+        return proc != null ? proc.getProgress() : 0;
+    }
+
+    public static String getStateName(int state) {
+        switch (state) {
+            case STATE_QUEUED:
+                return "queued";
+            case STATE_RUNNING:
+                return "running";
+            case STATE_DONE:
+                return "done";
+            case STATE_FAILED:
+                return "failed";
+            case STATE_CANCELLED:
+                return "cancelled";
+            default:
+                throw new IllegalArgumentException("Unknown state " + state);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "job " + mId + " (" + (mType == TYPE_REMUX ? "remux" : "slow motion") + ", priority " + mPriority
+                + ", " + getStateName(mState) + ") " + mPath;
+    }
+}
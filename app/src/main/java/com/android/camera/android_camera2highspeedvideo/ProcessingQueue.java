@@ -0,0 +1,503 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs recordings through {@link MediaCodecProc} in the background, a few at a time.
+ *
+ * Jobs start in priority order, then in the order they were queued. At most {@code maxJobs} run
+ * at once, and at most {@link #setCodecLimit the limit} of each codec type: the input's video
+ * format for slow motion jobs, {@link #CODEC_TYPE_NONE} for remux jobs, which use no codec. A
+ * job that can't start because its codec type is busy doesn't hold back jobs of other types.
+ *
+ * Unfinished jobs are kept in a state file. After {@link #stop()} or the app being killed, the
+ * next queue on that file queues them again, and jobs with checkpoints carry on from the last
+ * one.
+ */
+public class ProcessingQueue {
+    private static final String TAG = "ProcessingQueue";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_CODEC_LIMIT = 1;
+
+    /** Codec type of jobs that don't decode or encode */
+    public static final String CODEC_TYPE_NONE = "none";
+
+    /**
+     * Creates the configured {@link MediaCodecProc} a job runs on.
+     */
+    public interface ProcessorFactory {
+        MediaCodecProc create(ProcessingJob job);
+    }
+
+    /**
+     * Called on a background thread whenever a job changes state.
+     */
+    public interface Listener {
+        void onJobChanged(ProcessingJob job);
+    }
+
+    private final File mStateFile;
+    private final MediaBackend mBackend;
+    private final int mMaxJobs;
+    private final ProcessorFactory mFactory;
+    private final ExecutorService mDispatcher;
+    private final ExecutorService mWorkers;
+    private final Map<String, Integer> mCodecLimits = new HashMap<>();
+    // All guarded by the instance
+    private final Map<String, Semaphore> mCodecSlots = new HashMap<>();
+    private final List<ProcessingJob> mJobs = new ArrayList<>();
+    private long mNextId = 1;
+    private int mRunning;
+    private boolean mStarted;
+    private boolean mStopped;
+    private volatile Listener mListener;
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * Queues the unfinished jobs from {@code stateFile}, they run once {@link #start()} is called.
+     *
+     * @param stateFile where unfinished jobs are kept
+     * @param backend   used to look at the inputs
+     * @param maxJobs   most jobs running at once
+     */
+    public ProcessingQueue(File stateFile, MediaBackend backend, int maxJobs, ProcessorFactory factory) {
+        if (maxJobs < 1) {
+            throw new IllegalArgumentException("maxJobs must be at least 1: " + maxJobs);
+        }
+        mStateFile = stateFile;
+        mBackend = backend;
+        mMaxJobs = maxJobs;
+        mFactory = factory;
+        mDispatcher = Executors.newSingleThreadExecutor(createThreadFactory(TAG + "-dispatch"));
+        mWorkers = Executors.newFixedThreadPool(maxJobs, createThreadFactory(TAG + "-worker"));
+        load();
+    }
+
+    private static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + mCount++);
+            }
+        };
+    }
+
+    /**
+     * Most jobs of {@code codecType}, a MIME type such as "video/avc" or
+     * {@link #CODEC_TYPE_NONE}, running at once. Types not set get 1. Must be called before
+     * {@link #start()}.
+     */
+    public void setCodecLimit(String codecType, int jobs) {
+        if (jobs < 1) {
+            throw new IllegalArgumentException("limit must be at least 1: " + jobs);
+        }
+        synchronized (this) {
+            if (mStarted) {
+                throw new IllegalStateException("setCodecLimit after start");
+            }
+            mCodecLimits.put(codecType, jobs);
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts running jobs.
+     */
+    public synchronized void start() {
+        if (mStarted) {
+            throw new IllegalStateException("Already started");
+        }
+        mStarted = true;
+        redispatch();
+    }
+
+    /**
+     * Queues a recording.
+     *
+     * @param type     one of the {@link ProcessingJob} TYPE_* constants
+     * @param priority higher runs first
+     */
+    public ProcessingJob enqueue(String path, int type, int priority) {
+        ProcessingJob job;
+        synchronized (this) {
+            if (mStopped) {
+                throw new IllegalStateException("Queue stopped");
+            }
+            job = new ProcessingJob(mNextId++, type, path, priority);
+            mJobs.add(job);
+            save();
+        }
+        Log.d(TAG, "queued " + job);
+        notifyChanged(job);
+        redispatch();
+        return job;
+    }
+
+    /**
+     * Cancels a job. A queued job never runs, a running one stops at its next sample and its
+     * output and checkpoints are removed.
+     *
+     * @return false if there is no such job or it already finished
+     */
+    public boolean cancel(long id) {
+        ProcessingJob job = null;
+        synchronized (this) {
+            for (ProcessingJob candidate : mJobs) {
+                if (candidate.getId() == id && !candidate.isFinished()) {
+                    job = candidate;
+                    break;
+                }
+            }
+            if (job == null) {
+                return false;
+            }
+            job.setState(ProcessingJob.STATE_CANCELLED);
+            MediaCodecProc proc = job.getProc();
+            if (proc != null) {
+                proc.cancel();
+            }
+            save();
+            notifyAll();
+        }
+        Log.d(TAG, "cancelled " + job);
+        notifyChanged(job);
+        return true;
+    }
+
+    /**
+     * Every job since {@link #start()}, in the order queued.
+     */
+    public synchronized List<ProcessingJob> getJobs() {
+        return new ArrayList<>(mJobs);
+    }
+
+    /**
+     * Stops starting jobs and stops the running ones at their next sample. They stay in the
+     * state file and are queued again by the next queue's {@link #start()}. Doesn't wait for
+     * them to stop.
+     */
+    public void stop() {
+        synchronized (this) {
+            mStopped = true;
+            for (ProcessingJob job : mJobs) {
+                MediaCodecProc proc = job.getProc();
+                if (proc != null) {
+                    proc.cancel();
+                }
+            }
+            notifyAll();
+        }
+        mDispatcher.shutdown();
+        mWorkers.shutdown();
+    }
+
+    /**
+     * Waits until no job is running or queued.
+     *
+     * @return false on timeout
+     */
+    public synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (mRunning > 0 || (!mStopped && hasQueuedJobs())) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Has {@link #dispatch()} look at the jobs again, unless the queue isn't running.
+     */
+    private synchronized void redispatch() {
+        // Under the lock, so stop() can't shut the dispatcher down in between
+        if (mStarted && !mStopped) {
+            mDispatcher.execute(mDispatch);
+        }
+    }
+
+    private boolean hasQueuedJobs() {
+        for (ProcessingJob job : mJobs) {
+            if (job.getState() == ProcessingJob.STATE_QUEUED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void notifyChanged(ProcessingJob job) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onJobChanged(job);
+        }
+    }
+
+    private Semaphore getCodecSlots(String codecType) {
+        Semaphore slots = mCodecSlots.get(codecType);
+        if (slots == null) {
+            Integer limit = mCodecLimits.get(codecType);
+            slots = new Semaphore(limit != null ? limit : DEFAULT_CODEC_LIMIT);
+            mCodecSlots.put(codecType, slots);
+        }
+        return slots;
+    }
+
+    /**
+     * Starts as many queued jobs as the limits allow. Runs on the dispatch thread only.
+     */
+    private void dispatch() {
+        for (ProcessingJob job : getJobs()) {
+            if (job.getState() == ProcessingJob.STATE_QUEUED && job.getCodecType() == null) {
+                probe(job);
+            }
+        }
+        while (true) {
+            ProcessingJob job = null;
+            synchronized (this) {
+                if (mStopped || mRunning >= mMaxJobs) {
+                    return;
+                }
+                for (ProcessingJob candidate : getQueuedByPriority()) {
+                    if (getCodecSlots(candidate.getCodecType()).tryAcquire()) {
+                        job = candidate;
+                        break;
+                    }
+                }
+                if (job == null) {
+                    return;
+                }
+                mRunning++;
+                job.setProc(mFactory.create(job));
+                job.setState(ProcessingJob.STATE_RUNNING);
+                save();
+            }
+            Log.d(TAG, "starting " + job);
+            notifyChanged(job);
+            final ProcessingJob started = job;
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runJob(started);
+                }
+            });
+        }
+    }
+
+    /**
+     * Queued jobs whose codec type is known, highest priority first, then oldest first.
+     */
+    private List<ProcessingJob> getQueuedByPriority() {
+        List<ProcessingJob> queued = new ArrayList<>();
+        for (ProcessingJob job : mJobs) {
+            if (job.getState() == ProcessingJob.STATE_QUEUED && job.getCodecType() != null) {
+                queued.add(job);
+            }
+        }
+        Collections.sort(queued, new Comparator<ProcessingJob>() {
+            @Override
+            public int compare(ProcessingJob a, ProcessingJob b) {
+                if (a.getPriority() != b.getPriority()) {
+                    return a.getPriority() > b.getPriority() ? -1 : 1;
+                }
+                return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+            }
+        });
+        return queued;
+    }
+
+    /**
+     * Finds out which codec type a job needs, failing it if the input can't be read.
+     */
+    private void probe(ProcessingJob job) {
+        String codecType = null;
+        if (job.getType() == ProcessingJob.TYPE_REMUX) {
+            codecType = CODEC_TYPE_NONE;
+        } else {
+            VideoExtractor extractor = null;
+            try {
+                extractor = mBackend.createExtractor(job.getPath());
+                VideoTrack track = extractor.getVideoTrack();
+                if (track != null) {
+                    codecType = track.mime;
+                } else {
+                    Log.w(TAG, "No video track in " + job.getPath());
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Can't read " + job.getPath(), e);
+            } finally {
+                if (extractor != null) {
+                    extractor.release();
+                }
+            }
+        }
+        synchronized (this) {
+            if (job.getState() != ProcessingJob.STATE_QUEUED) {
+                return;
+            }
+            if (codecType != null) {
+                job.setCodecType(codecType);
+            } else {
+                job.setState(ProcessingJob.STATE_FAILED);
+            }
+            save();
+            notifyAll();
+        }
+        if (codecType == null) {
+            notifyChanged(job);
+        }
+    }
+
+    private void runJob(ProcessingJob job) {
+        MediaCodecProc proc = job.getProc();
+        boolean done = false;
+        try {
+            if (job.getType() == ProcessingJob.TYPE_REMUX) {
+                done = proc.remux() != null;
+            } else {
+                done = proc.process();
+                if (done) {
+                    writeMetrics(job, proc.getMetrics());
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "failed " + job, e);
+        }
+
+        boolean cancelled;
+        synchronized (this) {
+            mRunning--;
+            getCodecSlots(job.getCodecType()).release();
+            cancelled = job.getState() == ProcessingJob.STATE_CANCELLED;
+            if (!cancelled) {
+                if (mStopped && proc.isCancelled()) {
+                    // Picked up again by the next start()
+                    job.setState(ProcessingJob.STATE_QUEUED);
+                } else {
+                    job.setState(done ? ProcessingJob.STATE_DONE : ProcessingJob.STATE_FAILED);
+                }
+            }
+            job.setProc(null);
+            save();
+            notifyAll();
+        }
+        if (cancelled && job.getType() == ProcessingJob.TYPE_SLOW_MOTION) {
+            proc.clearCheckpoints();
+        }
+        Log.d(TAG, "finished " + job);
+        notifyChanged(job);
+        redispatch();
+    }
+
+    private static void writeMetrics(ProcessingJob job, PipelineMetrics metrics) {
+        Log.d(TAG, "job " + job.getId() + " slowest stage: " + PipelineMetrics.getStageName(metrics.getBusiestStage()));
+        try {
+            metrics.writeJson(new File(new File(job.getPath()).getParent(), "Output/metrics.json"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the state file: one job per line, id, type, priority, state, codec type and path,
+     * tab separated. Jobs that were running are queued again.
+     */
+    private void load() {
+        if (!mStateFile.exists()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mStateFile), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 6);
+                    if (fields.length != 6) {
+                        Log.w(TAG, "ignoring job line: " + line);
+                        continue;
+                    }
+                    try {
+                        ProcessingJob job = new ProcessingJob(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                                fields[5], Integer.parseInt(fields[2]));
+                        if (!"-".equals(fields[4])) {
+                            job.setCodecType(fields[4]);
+                        }
+                        mJobs.add(job);
+                        mNextId = Math.max(mNextId, job.getId() + 1);
+                    } catch (IllegalArgumentException e) {
+                        Log.w(TAG, "ignoring job line: " + line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can't read " + mStateFile, e);
+        }
+        if (!mJobs.isEmpty()) {
+            Log.d(TAG, mJobs.size() + " jobs restored from " + mStateFile);
+        }
+    }
+
+    /**
+     * Writes the unfinished jobs to the state file, through a temporary file so a crash leaves
+     * either the old list or the new one.
+     */
+    private void save() {
+        File temp = new File(mStateFile.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                Writer writer = new OutputStreamWriter(out, UTF_8);
+                for (ProcessingJob job : mJobs) {
+                    if (!job.isFinished()) {
+                        String codecType = job.getCodecType();
+                        writer.write(job.getId() + "\t" + job.getType() + "\t" + job.getPriority() + "\t" + job.getState()
+                                + "\t" + (codecType != null ? codecType : "-") + "\t" + job.getPath() + "\n");
+                    }
+                }
+                writer.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mStateFile)) {
+                Log.e(TAG, "Can't replace " + mStateFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can't write " + mStateFile, e);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.media.MediaMuxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The parts of {@link MediaMuxer} used here.
+ */
+public interface SampleMuxer {
+
+    /**
+     * Must be called before {@link #start()}.
+     */
+    void setOrientationHint(int degrees);
+
+    /**
+     * Adds a track described by an extractor's or an encoder's {@link VideoTrack}.
+     *
+     * @return the index to write the track's samples with
+     */
+    int addTrack(VideoTrack track);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer buffer, VideoCodec.BufferInfo info);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,232 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The most recent encoded samples of a stream, in a memory-mapped file of fixed size.
+ *
+ * Sample data goes into the file back to back, wrapping to the start when the next sample
+ * doesn't fit before the end. Timestamps, sizes and flags go into an index of preallocated
+ * arrays. Room for a new sample is made by dropping the oldest GOP, from the oldest sync sample
+ * up to the next one, so what is kept always starts with a sync sample and decodes on its own.
+ * GOPs are also dropped once the next one starts far enough back to cover the window by itself.
+ *
+ * Memory is the mapping and the index, both sized up front, however long the ring runs. The
+ * mapping is backed by the file, so the kernel can write clean pages back and reclaim them.
+ *
+ * Not thread safe.
+ */
+public class SampleRing implements Closeable {
+    private static final String TAG = "SampleRing";
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mData;
+    private final long mWindowUs;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mTimesUs;
+    private final int[] mFlags;
+    // Index slot of the oldest sample
+    private int mFirst;
+    private int mCount;
+    private int mSyncCount;
+    // Where the next sample goes, when it fits there
+    private int mWritePosition;
+    private long mDroppedSamples;
+
+    /**
+     * Creates a ring in {@code file}, replacing it if it exists.
+     *
+     * @param capacity   bytes of sample data kept
+     * @param maxSamples samples kept
+     * @param windowUs   time kept, GOPs older than needed to cover it are dropped
+     */
+    public SampleRing(File file, int capacity, int maxSamples, long windowUs) throws IOException {
+        if (capacity <= 0 || maxSamples <= 0) {
+            throw new IllegalArgumentException("capacity and maxSamples must be positive: " + capacity + ", " + maxSamples);
+        }
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(0);
+            mData = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mWindowUs = windowUs;
+        mOffsets = new int[maxSamples];
+        mSizes = new int[maxSamples];
+        mTimesUs = new long[maxSamples];
+        mFlags = new int[maxSamples];
+    }
+
+    public int getCapacity() {
+        return mData.capacity();
+    }
+
+    /**
+     * Samples kept.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Bytes of sample data kept.
+     */
+    public int getDataSize() {
+        int size = 0;
+        for (int i = 0; i < mCount; i++) {
+            size += mSizes[slot(i)];
+        }
+        return size;
+    }
+
+    /**
+     * From the oldest sample to the newest one.
+     */
+    public long getDurationUs() {
+        return mCount == 0 ? 0 : mTimesUs[slot(mCount - 1)] - mTimesUs[mFirst];
+    }
+
+    /**
+     * Samples that were not kept because they didn't follow a sync sample or didn't fit.
+     */
+    public long getDroppedSamples() {
+        return mDroppedSamples;
+    }
+
+    private int slot(int index) {
+        return (mFirst + index) % mOffsets.length;
+    }
+
+    /**
+     * Adds the sample in {@code data} from its position to its limit, dropping old GOPs as
+     * needed.
+     *
+     * @return false if the sample was dropped instead: the ring is empty and it isn't a sync
+     * sample, or it is bigger than the ring
+     */
+    public boolean write(ByteBuffer data, VideoCodec.BufferInfo info) {
+        int size = data.remaining();
+        boolean sync = (info.flags & VideoCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (size > mData.capacity()) {
+            // What follows up to the next sync sample can't be decoded without it
+            Log.w(TAG, "sample of " + size + " bytes doesn't fit in " + mData.capacity());
+            clear();
+            mDroppedSamples++;
+            return false;
+        }
+        while (mSyncCount > 1 && info.presentationTimeUs - mTimesUs[slot(findSecondGop())] >= mWindowUs) {
+            dropOldestGop();
+        }
+        int position;
+        while ((position = findRoom(size)) < 0 || mCount == mOffsets.length) {
+            dropOldestGop();
+        }
+        if (mCount == 0 && !sync) {
+            mDroppedSamples++;
+            return false;
+        }
+        ByteBuffer target = mData.duplicate();
+        target.limit(position + size).position(position);
+        target.put(data.duplicate());
+        int slot = slot(mCount);
+        mOffsets[slot] = position;
+        mSizes[slot] = size;
+        mTimesUs[slot] = info.presentationTimeUs;
+        mFlags[slot] = info.flags;
+        mCount++;
+        if (sync) {
+            mSyncCount++;
+        }
+        mWritePosition = position + size;
+        return true;
+    }
+
+    /**
+     * Where {@code size} bytes fit without overwriting kept samples, or -1.
+     */
+    private int findRoom(int size) {
+        if (mCount == 0) {
+            return size <= mData.capacity() ? 0 : -1;
+        }
+        int readPosition = mOffsets[mFirst];
+        if (mWritePosition > readPosition) {
+            // Free from the write position to the end, and from the start to the oldest sample
+            if (size <= mData.capacity() - mWritePosition) {
+                return mWritePosition;
+            }
+            return size <= readPosition ? 0 : -1;
+        }
+        // Wrapped, free from the write position to the oldest sample
+        return size <= readPosition - mWritePosition ? mWritePosition : -1;
+    }
+
+    /**
+     * Index of the second sync sample, there must be one.
+     */
+    private int findSecondGop() {
+        for (int i = 1; i < mCount; i++) {
+            if ((mFlags[slot(i)] & VideoCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("No second sync sample");
+    }
+
+    private void dropOldestGop() {
+        if (mCount == 0) {
+            return;
+        }
+        do {
+            if ((mFlags[mFirst] & VideoCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                mSyncCount--;
+            }
+            mFirst = (mFirst + 1) % mOffsets.length;
+            mCount--;
+        } while (mCount > 0 && (mFlags[mFirst] & VideoCodec.BUFFER_FLAG_KEY_FRAME) == 0);
+        if (mCount == 0) {
+            mFirst = 0;
+            mWritePosition = 0;
+        }
+    }
+
+    /**
+     * Returns sample {@code index}, 0 being the oldest, as a view of the mapping and fills in
+     * {@code info}. Valid until the next {@link #write}.
+     */
+    public ByteBuffer getSample(int index, VideoCodec.BufferInfo info) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Sample " + index + " of " + mCount);
+        }
+        int slot = slot(index);
+        info.set(0, mSizes[slot], mTimesUs[slot], mFlags[slot]);
+        ByteBuffer sample = mData.duplicate();
+        sample.limit(mOffsets[slot] + mSizes[slot]).position(mOffsets[slot]);
+        return sample.slice();
+    }
+
+    public void clear() {
+        mFirst = 0;
+        mCount = 0;
+        mSyncCount = 0;
+        mWritePosition = 0;
+    }
+
+    /**
+     * Closes the file. The mapping goes once the ring is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,152 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Splits a {@link MediaRecorder} recording into files of at most a given size, each one handed
+ * on as soon as it is closed.
+ *
+ * From Android O the recorder is given the next file with
+ * {@link MediaRecorder#setNextOutputFile(File)} when the current one nears the size limit, and
+ * switches over between two frames, so nothing is lost at the cut. Before O there is no next
+ * file and the recording is one segment, closed by {@link #finish()}.
+ *
+ * Segment {@code i} is {@code dir/NNN/video.mp4}, a directory each because processing writes its
+ * output next to its input.
+ */
+public class SegmentedRecording implements MediaRecorder.OnInfoListener {
+    private static final String TAG = "SegmentedRecording";
+    private static final String SEGMENT_FILE = "video.mp4";
+
+    /**
+     * Called on the thread the recorder reports info on, or the one calling {@link #finish()}.
+     */
+    public interface Listener {
+        void onSegmentClosed(String path, int index);
+    }
+
+    private final File mDir;
+    private final long mMaxSegmentBytes;
+    private final Listener mListener;
+    // Segments given to the recorder so far, the ones after mClosedCount are being written or
+    // waiting to be
+    private int mSegmentCount;
+    private int mClosedCount;
+
+    /**
+     * @param dir             where the segments go
+     * @param maxSegmentBytes size the recorder moves on to the next segment at
+     */
+    public SegmentedRecording(File dir, long maxSegmentBytes, Listener listener) {
+        mDir = dir;
+        mMaxSegmentBytes = maxSegmentBytes;
+        mListener = listener;
+    }
+
+    /**
+     * Whether recordings are split on this device, otherwise they are one segment.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    /**
+     * Sets the recorder's output to the first segment. Call it after
+     * {@link MediaRecorder#setOutputFormat} and before {@link MediaRecorder#prepare()}.
+     */
+    public void attach(MediaRecorder recorder) {
+        recorder.setOutputFile(nextSegment().getPath());
+        if (isSupported()) {
+            recorder.setMaxFileSize(mMaxSegmentBytes);
+            recorder.setOnInfoListener(this);
+        }
+    }
+
+    /**
+     * The file the recorder is given next.
+     */
+    synchronized File nextSegment() {
+        File segment = getSegment(mSegmentCount++);
+        if (!segment.getParentFile().mkdirs() && !segment.getParentFile().isDirectory()) {
+            Log.w(TAG, "Can't create " + segment.getParent());
+        }
+        return segment;
+    }
+
+    private File getSegment(int index) {
+        return new File(new File(mDir, String.format(Locale.US, "%03d", index)), SEGMENT_FILE);
+    }
+
+    @Override
+    public void onInfo(MediaRecorder recorder, int what, int extra) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return;
+        }
+        switch (what) {
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING:
+                try {
+                    recorder.setNextOutputFile(nextSegment());
+                } catch (IOException e) {
+                    // The recorder stops at the limit instead, with what it has
+                    Log.e(TAG, "Can't set the next segment", e);
+                }
+                break;
+            case MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED:
+                onNextSegmentStarted();
+                break;
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+                Log.w(TAG, "Segment size reached without a next segment, recording stopped");
+                break;
+        }
+    }
+
+    /**
+     * The recorder moved on to the next file, the one before it is complete.
+     */
+    void onNextSegmentStarted() {
+        int index;
+        synchronized (this) {
+            index = mClosedCount++;
+        }
+        closeSegment(index);
+    }
+
+    /**
+     * Closes the segments left, after {@link MediaRecorder#stop()}.
+     *
+     * The recorder may have moved on to a file without the event saying so being delivered, a
+     * reset drops it, so each file left is looked at: one with data is closed, one the recorder
+     * never wrote to is deleted.
+     */
+    public void finish() {
+        int first;
+        int given;
+        synchronized (this) {
+            first = mClosedCount;
+            given = mSegmentCount;
+            mClosedCount = given;
+        }
+        for (int i = first; i < given; i++) {
+            File segment = getSegment(i);
+            if (segment.length() > 0) {
+                closeSegment(i);
+            } else {
+                Log.d(TAG, "segment " + i + " never written, deleting " + segment);
+                segment.delete();
+                segment.getParentFile().delete();
+            }
+        }
+    }
+
+    private void closeSegment(int index) {
+        String path = getSegment(index).getPath();
+        Log.d(TAG, "segment " + index + " closed: " + path);
+        mListener.onSegmentClosed(path, index);
+    }
+}
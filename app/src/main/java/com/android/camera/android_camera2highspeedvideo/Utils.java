@@ -1,8 +1,8 @@
 package com.android.camera.android_camera2highspeedvideo;
 
 import android.graphics.ImageFormat;
-import android.graphics.Rect;
 import android.media.Image;
+import android.media.MediaCodecInfo;
 import android.util.Log;
 
 import java.io.DataInputStream;
@@ -11,6 +11,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Created by hzd on 2019/7/23.
@@ -18,6 +19,12 @@ import java.nio.ByteBuffer;
 
 public class Utils {
     private static final String TAG = "Utils";
+    // Low byte of every 16-bit lane
+    private static final long LANE_LOW_BYTES = 0x00FF00FF00FF00FFL;
+    // 0.5 in 8.8 fixed point, in every 16-bit lane
+    private static final long LANE_ROUNDING = 0x0080008000800080L;
+    /** Weights for {@link #blendFrames} are out of this */
+    static final int BLEND_WEIGHT_ONE = 256;
 
     static long getCurrentTimeMillis() {
         return System.currentTimeMillis();
@@ -66,7 +73,7 @@ public class Utils {
             for (File fileTmp : files) {
                 int pointIndex = fileTmp.toString().indexOf('.');
                 String fileSufix = fileTmp.toString().substring(pointIndex);
-                if (fileSufix.equals(".NV21") || fileSufix.equals(".nv21") || fileSufix.equals(".NV12") || fileSufix.equals(".nv12") || fileSufix.equals(".h264") || fileSufix.equals(".mp4")) {
+                if (fileSufix.equals(".NV21") || fileSufix.equals(".nv21") || fileSufix.equals(".NV12") || fileSufix.equals(".nv12") || fileSufix.equals(".h264") || fileSufix.equals(".mp4") || fileSufix.endsWith(FrameStore.FILE_SUFFIX)) {
                     boolean delete = fileTmp.delete();
                 }
             }
@@ -75,58 +82,343 @@ public class Utils {
 
     static byte[] transformNV21FromImage(Image image) {
         Log.d(TAG, "transformNV21FromImage: in");
-        Rect crop = image.getCropRect();    // CropRect specifies a rectangular area within the image, only pixels in this area are valid
-        int format = image.getFormat();
-        int width = crop.width();
-        int height = crop.height();
-        Image.Plane[] planes = image.getPlanes();   // plane #0 must be Y，#1 must be U，#2 must be V
-        byte[] data = new byte[width * height * ImageFormat.getBitsPerPixel(format) / 8];
-        byte[] rowData = new byte[planes[0].getRowStride()];
-        int channelOffset = 0;
-        int outputStride = 1;   // The interval at which data is written, that is, the step size, and 1 means no interval.
-
-        for (int i = 0; i < planes.length; i++) {
-            switch (i) {
-                case 0: // Y
-                    channelOffset = 0;
-                    outputStride = 1;
-                    break;
-                case 1: // U
-                    channelOffset = width * height + 1;     // Since the NV21 V component is in the front and the U component is in the back, the starting offset of U has to +1.
-                    outputStride = 2;
-                    break;
-                case 2: // V
-                    channelOffset = width * height;
-                    outputStride = 2;
-                    break;
+        YuvPlanes planes = new YuvPlanes().set(image);
+        byte[] data = new byte[planes.width * planes.height * ImageFormat.getBitsPerPixel(image.getFormat()) / 8];
+        transformNV21FromPlanes(planes, data, new byte[planes.rowStrides[0]]);
+        return data;
+    }
+
+    /**
+     * Same as {@link #transformNV21FromImage(Image)}, but reads from {@code src} and writes into
+     * {@code data}, which must hold at least width * height * 3 / 2 bytes of the crop rectangle.
+     * {@code rowData} is scratch space of at least one row stride of plane #0, only the per-pixel
+     * fallback touches it.
+     *
+     * Contiguous planes (rowStride == width) are copied with one bulk get, other rows with one get
+     * per row. When U and V alias one interleaved buffer, the chroma is copied the same way instead
+     * of byte by byte.
+     */
+    static void transformNV21FromPlanes(YuvPlanes src, byte[] data, byte[] rowData) {
+        transformNV21Rows(src, src.buffers, src.getChromaLayout(), 0, src.height, data, rowData);
+    }
+
+    /**
+     * Converts the crop rows [{@code top}, {@code bottom}) of {@code src} into the matching rows of
+     * {@code data}. {@code top} must be even. Reads through {@code buffers} instead of
+     * {@code src.buffers} so that several bands can run at once on their own buffer views.
+     */
+    static void transformNV21Rows(YuvPlanes src, ByteBuffer[] buffers, int layout, int top, int bottom,
+                                  byte[] data, byte[] rowData) {
+        int width = src.width;
+        int rows = bottom - top;
+
+        if (src.pixelStrides[0] == 1) {
+            copyPlaneRows(buffers[0], src.rowStrides[0] * (src.cropTop + top) + src.cropLeft,
+                    src.rowStrides[0], width, rows, data, top * width);
+        } else {
+            copyStridedPlane(src, 0, buffers[0], top, rows, data, top * width, 1, rowData);
+        }
+
+        int chromaTop = top >> 1;
+        int chromaRows = (bottom >> 1) - chromaTop;
+        int chromaWidth = width & ~1;
+        int chromaOffset = width * src.height + chromaTop * chromaWidth;
+        int chromaStart = src.rowStrides[1] * ((src.cropTop >> 1) + chromaTop) + 2 * (src.cropLeft >> 1);
+        switch (layout) {
+            case YuvPlanes.CHROMA_VU_INTERLEAVED:
+                // Already NV21, V comes first
+                copyInterleavedRows(buffers[2], buffers[1], chromaStart, src.rowStrides[2],
+                        chromaWidth, chromaRows, data, chromaOffset);
+                break;
+            case YuvPlanes.CHROMA_UV_INTERLEAVED:
+                // NV12, copy as is and swap each UV pair afterwards
+                copyInterleavedRows(buffers[1], buffers[2], chromaStart, src.rowStrides[1],
+                        chromaWidth, chromaRows, data, chromaOffset);
+                swapBytePairs(data, chromaOffset, data, chromaOffset, chromaWidth * chromaRows);
+                break;
+            default:
+                // Since the NV21 V component is in the front and the U component is in the back, the starting offset of U has to +1.
+                copyStridedPlane(src, 1, buffers[1], chromaTop, chromaRows, data, chromaOffset + 1, 2, rowData);
+                copyStridedPlane(src, 2, buffers[2], chromaTop, chromaRows, data, chromaOffset, 2, rowData);
+                break;
+        }
+    }
+
+    /**
+     * Copies {@code rows} rows of {@code rowLength} bytes starting at absolute {@code start}, in one
+     * get if the rows are contiguous.
+     */
+    private static void copyPlaneRows(ByteBuffer buffer, int start, int rowStride, int rowLength, int rows,
+                                      byte[] data, int offset) {
+        buffer.position(start);
+        if (rowStride == rowLength) {
+            buffer.get(data, offset, rowLength * rows);
+            return;
+        }
+        for (int row = 0; row < rows; row++) {
+            buffer.position(start + row * rowStride);
+            buffer.get(data, offset, rowLength);
+            offset += rowLength;
+        }
+    }
+
+    /**
+     * Like {@link #copyPlaneRows}, for a chroma buffer {@code first} that {@code second} aliases one
+     * byte further on. {@code first} ends one byte short of the last pair, that byte is taken from
+     * {@code second}.
+     */
+    private static void copyInterleavedRows(ByteBuffer first, ByteBuffer second, int start, int rowStride,
+                                            int rowLength, int rows, byte[] data, int offset) {
+        int limit = first.limit();
+        if (rowStride == rowLength) {
+            int total = rowLength * rows;
+            int length = Math.min(total, limit - start);
+            first.position(start);
+            first.get(data, offset, length);
+            if (length < total) {
+                second.position(start + length - 1);
+                second.get(data, offset + length, total - length);
             }
-            ByteBuffer buffer = planes[i].getBuffer();
-            int rowStride = planes[i].getRowStride();
-            int pixelStride = planes[i].getPixelStride();
-            int shift = (i == 0) ? 0 : 1;
-            int w = width >> shift;
-            int h = height >> shift;
-            buffer.position(rowStride * (crop.top >> shift) + pixelStride * (crop.left >> shift));
-            for (int row = 0; row < h; row++) {
-                int length;
-                if (pixelStride == 1 && outputStride == 1) {
-                    length = w;
-                    buffer.get(data, channelOffset, length);
-                    channelOffset += length;
-                } else {
-                    length = (w - 1) * pixelStride + 1;
-                    buffer.get(rowData, 0, length);
-                    for (int col = 0; col < w; col++) {
-                        data[channelOffset] = rowData[col * pixelStride];
-                        channelOffset += outputStride;
+            return;
+        }
+        for (int row = 0; row < rows; row++) {
+            int position = start + row * rowStride;
+            int length = Math.min(rowLength, limit - position);
+            first.position(position);
+            first.get(data, offset, length);
+            if (length < rowLength) {
+                second.position(position + length - 1);
+                second.get(data, offset + length, rowLength - length);
+            }
+            offset += rowLength;
+        }
+    }
+
+    /**
+     * Per-pixel fallback: copies {@code rows} rows of plane {@code index}, starting at plane row
+     * {@code firstRow}, into every {@code outputStride}-th byte of {@code data} from
+     * {@code channelOffset} on.
+     */
+    private static void copyStridedPlane(YuvPlanes src, int index, ByteBuffer buffer, int firstRow, int rows,
+                                         byte[] data, int channelOffset, int outputStride, byte[] rowData) {
+        int rowStride = src.rowStrides[index];
+        int pixelStride = src.pixelStrides[index];
+        int shift = (index == 0) ? 0 : 1;
+        int w = src.width >> shift;
+        buffer.position(rowStride * ((src.cropTop >> shift) + firstRow) + pixelStride * (src.cropLeft >> shift));
+        for (int row = 0; row < rows; row++) {
+            int length;
+            if (pixelStride == 1 && outputStride == 1) {
+                length = w;
+                buffer.get(data, channelOffset, length);
+                channelOffset += length;
+            } else {
+                length = (w - 1) * pixelStride + 1;
+                buffer.get(rowData, 0, length);
+                for (int col = 0; col < w; col++) {
+                    data[channelOffset] = rowData[col * pixelStride];
+                    channelOffset += outputStride;
+                }
+            }
+            if (row < rows - 1) {
+                buffer.position(buffer.position() + rowStride - length);
+            }
+        }
+    }
+
+    /**
+     * Writes the crop rectangle of {@code src} straight into an encoder input buffer in the
+     * encoder's color format, without going through an NV21 array first. Y rows and interleaved
+     * chroma rows are copied buffer to buffer; only planar sources going to a semi-planar encoder
+     * (or the reverse) are gathered pixel by pixel.
+     *
+     * @param colorFormat one of the YUV420 planar or semi-planar {@link MediaCodecInfo.CodecCapabilities} formats
+     * @param stride      bytes per Y row in {@code dst}, at least the crop width
+     * @param sliceHeight Y rows before the chroma starts in {@code dst}, at least the crop height
+     * @return the number of bytes to queue
+     */
+    static int writeEncoderInput(YuvPlanes src, ByteBuffer dst, int colorFormat, int stride, int sliceHeight) {
+        boolean semiPlanar = isSemiPlanar(colorFormat);
+        if (!semiPlanar && !isPlanar(colorFormat)) {
+            throw new IllegalArgumentException("Unsupported encoder color format 0x" + Integer.toHexString(colorFormat));
+        }
+        int width = src.width;
+        int height = src.height;
+        int chromaWidth = width >> 1;
+        int chromaHeight = height >> 1;
+        int lumaSize = stride * sliceHeight;
+
+        putPlaneRows(src.buffers[0], src.rowStrides[0] * src.cropTop + src.cropLeft, src.rowStrides[0],
+                width, height, dst, 0, stride);
+
+        ByteBuffer u = src.buffers[1];
+        ByteBuffer v = src.buffers[2];
+        int chromaRowStride = src.rowStrides[1];
+        int pixelStride = src.pixelStrides[1];
+        int chromaStart = chromaRowStride * (src.cropTop >> 1) + pixelStride * (src.cropLeft >> 1);
+        int layout = src.getChromaLayout();
+        if (semiPlanar) {
+            if (layout == YuvPlanes.CHROMA_UV_INTERLEAVED) {
+                putInterleavedRows(u, v, chromaStart, chromaRowStride, chromaWidth * 2, chromaHeight, dst, lumaSize, stride);
+            } else if (layout == YuvPlanes.CHROMA_VU_INTERLEAVED) {
+                putInterleavedRows(v, u, chromaStart, chromaRowStride, chromaWidth * 2, chromaHeight, dst, lumaSize, stride);
+                // Swap each VU pair into UV, the row is still in cache
+                for (int row = 0; row < chromaHeight; row++) {
+                    swapBytePairs(dst, lumaSize + row * stride, chromaWidth * 2);
+                }
+            } else {
+                int uPixelStride = src.pixelStrides[1];
+                int vPixelStride = src.pixelStrides[2];
+                int uStart = src.rowStrides[1] * (src.cropTop >> 1) + uPixelStride * (src.cropLeft >> 1);
+                int vStart = src.rowStrides[2] * (src.cropTop >> 1) + vPixelStride * (src.cropLeft >> 1);
+                for (int row = 0; row < chromaHeight; row++) {
+                    int uOffset = uStart + row * src.rowStrides[1];
+                    int vOffset = vStart + row * src.rowStrides[2];
+                    int offset = lumaSize + row * stride;
+                    for (int col = 0; col < chromaWidth; col++) {
+                        dst.put(offset++, u.get(uOffset + col * uPixelStride));
+                        dst.put(offset++, v.get(vOffset + col * vPixelStride));
                     }
                 }
-                if (row < h - 1) {
-                    buffer.position(buffer.position() + rowStride - length);
+            }
+            return lumaSize + stride * chromaHeight;
+        }
+
+        int chromaStride = stride >> 1;
+        int uOffset = lumaSize;
+        int vOffset = lumaSize + chromaStride * (sliceHeight >> 1);
+        for (int i = 1; i <= 2; i++) {
+            ByteBuffer buffer = src.buffers[i];
+            int rowStride = src.rowStrides[i];
+            int planePixelStride = src.pixelStrides[i];
+            int start = rowStride * (src.cropTop >> 1) + planePixelStride * (src.cropLeft >> 1);
+            int offset = (i == 1) ? uOffset : vOffset;
+            if (planePixelStride == 1) {
+                putPlaneRows(buffer, start, rowStride, chromaWidth, chromaHeight, dst, offset, chromaStride);
+            } else {
+                for (int row = 0; row < chromaHeight; row++) {
+                    int position = start + row * rowStride;
+                    int rowOffset = offset + row * chromaStride;
+                    for (int col = 0; col < chromaWidth; col++) {
+                        dst.put(rowOffset + col, buffer.get(position + col * planePixelStride));
+                    }
                 }
             }
         }
-        return data;
+        return vOffset + chromaStride * chromaHeight;
+    }
+
+    /**
+     * Writes a packed {@link YuvConverter} frame into an encoder input buffer whose rows are
+     * {@code stride} bytes apart and whose chroma starts {@code sliceHeight} rows in, as
+     * {@link #writeEncoderInput} does for images.
+     *
+     * @param format      a YUV420 {@link YuvConverter} format
+     * @param stride      bytes per Y row in {@code dst}, at least a row of {@code src}
+     * @param sliceHeight Y rows before the chroma starts in {@code dst}, at least {@code height}
+     * @return the number of bytes to queue
+     */
+    static int writePaddedFrame(byte[] src, int format, int width, int height, ByteBuffer dst, int stride, int sliceHeight) {
+        int rowLength = format == YuvConverter.FORMAT_P010 ? width * 2 : width;
+        stride = Math.max(stride, rowLength);
+        sliceHeight = Math.max(sliceHeight, height);
+        int lumaSize = stride * sliceHeight;
+        int chromaHeight = height >> 1;
+        if (stride == rowLength && sliceHeight == height) {
+            int size = YuvConverter.getFrameSize(format, width, height);
+            dst.position(0);
+            dst.put(src, 0, size);
+            return size;
+        }
+
+        putRows(src, 0, rowLength, height, dst, 0, stride);
+        if (format != YuvConverter.FORMAT_I420 && format != YuvConverter.FORMAT_YV12) {
+            // Semi-planar: one chroma plane with rows as long as the Y rows
+            putRows(src, rowLength * height, rowLength, chromaHeight, dst, lumaSize, stride);
+            return lumaSize + stride * chromaHeight;
+        }
+        int chromaWidth = width >> 1;
+        int chromaStride = stride >> 1;
+        int chromaSize = chromaWidth * chromaHeight;
+        int secondOffset = lumaSize + chromaStride * (sliceHeight >> 1);
+        putRows(src, width * height, chromaWidth, chromaHeight, dst, lumaSize, chromaStride);
+        putRows(src, width * height + chromaSize, chromaWidth, chromaHeight, dst, secondOffset, chromaStride);
+        return secondOffset + chromaStride * chromaHeight;
+    }
+
+    /**
+     * Copies {@code rows} packed rows of {@code src} into {@code dst}, {@code dstStride} apart.
+     */
+    private static void putRows(byte[] src, int start, int rowLength, int rows, ByteBuffer dst, int offset, int dstStride) {
+        for (int row = 0; row < rows; row++) {
+            dst.position(offset + row * dstStride);
+            dst.put(src, start + row * rowLength, rowLength);
+        }
+    }
+
+    static boolean isSemiPlanar(int colorFormat) {
+        switch (colorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static boolean isPlanar(int colorFormat) {
+        switch (colorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Buffer-to-buffer version of {@link #copyPlaneRows}, writing rows {@code dstStride} apart.
+     */
+    private static void putPlaneRows(ByteBuffer buffer, int start, int rowStride, int rowLength, int rows,
+                                     ByteBuffer dst, int offset, int dstStride) {
+        int limit = buffer.limit();
+        if (rowStride == rowLength && dstStride == rowLength) {
+            buffer.limit(start + rowLength * rows).position(start);
+            dst.position(offset);
+            dst.put(buffer);
+        } else {
+            for (int row = 0; row < rows; row++) {
+                int position = start + row * rowStride;
+                buffer.limit(position + rowLength).position(position);
+                dst.position(offset + row * dstStride);
+                dst.put(buffer);
+            }
+        }
+        buffer.limit(limit);
+    }
+
+    /**
+     * Buffer-to-buffer version of {@link #copyInterleavedRows}, writing rows {@code dstStride} apart.
+     */
+    private static void putInterleavedRows(ByteBuffer first, ByteBuffer second, int start, int rowStride,
+                                           int rowLength, int rows, ByteBuffer dst, int offset, int dstStride) {
+        int limit = first.limit();
+        int secondLimit = second.limit();
+        for (int row = 0; row < rows; row++) {
+            int position = start + row * rowStride;
+            int length = Math.min(rowLength, limit - position);
+            first.limit(position + length).position(position);
+            dst.position(offset + row * dstStride);
+            dst.put(first);
+            first.limit(limit);
+            if (length < rowLength) {
+                second.limit(position + rowLength - 1).position(position + length - 1);
+                dst.put(second);
+                second.limit(secondLimit);
+            }
+        }
     }
 
     static void guessFileWH(String strFile, int[] wh) {
@@ -194,10 +486,92 @@ public class Utils {
         int size = w * h;
         // Y
         System.arraycopy(data, 0, dstData, 0, size);
+        // VU -> UV
+        swapBytePairs(data, size, dstData, size, size / 2);
+    }
 
-        for (int i = 0; i < size / 4; i++) {
-            dstData[size + i * 2] = data[size + i * 2 + 1]; //U
-            dstData[size + i * 2 + 1] = data[size + i * 2]; //V
+    /**
+     * Turns an NV21 frame into NV12 without a second buffer, only the chroma is touched.
+     */
+    public static void Nv21ToNv12InPlace(byte[] data, int w, int h) {
+        int size = w * h;
+        swapBytePairs(data, size, data, size, size / 2);
+    }
+
+    /**
+     * Swaps the two bytes of every pair in {@code src[srcOffset, srcOffset + length)} into
+     * {@code dst} at {@code dstOffset}. {@code length} must be even, and both offsets must have the
+     * same parity as the pairs. {@code src} and {@code dst} may be the same array at the same
+     * offset.
+     *
+     * Works on 8 bytes at a time: a 64-bit word holds four pairs, and swapping the bytes inside
+     * each 16-bit lane is the same operation whichever byte order the word was loaded in.
+     */
+    static void swapBytePairs(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        ByteBuffer in = ByteBuffer.wrap(src).order(ByteOrder.nativeOrder());
+        ByteBuffer out = (src == dst) ? in : ByteBuffer.wrap(dst).order(ByteOrder.nativeOrder());
+        int words = length & ~7;
+        for (int i = 0; i < words; i += 8) {
+            long x = in.getLong(srcOffset + i);
+            out.putLong(dstOffset + i, ((x >>> 8) & LANE_LOW_BYTES) | ((x & LANE_LOW_BYTES) << 8));
+        }
+        for (int i = words; i < length; i += 2) {
+            byte first = src[srcOffset + i];
+            dst[dstOffset + i] = src[srcOffset + i + 1];
+            dst[dstOffset + i + 1] = first;
+        }
+    }
+
+    /**
+     * In-place {@link #swapBytePairs(byte[], int, byte[], int, int)} on a buffer, using absolute
+     * accesses so the position is left alone.
+     */
+    static void swapBytePairs(ByteBuffer buffer, int offset, int length) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.nativeOrder());
+        int words = length & ~7;
+        for (int i = offset; i < offset + words; i += 8) {
+            long x = buffer.getLong(i);
+            buffer.putLong(i, ((x >>> 8) & LANE_LOW_BYTES) | ((x & LANE_LOW_BYTES) << 8));
+        }
+        for (int i = offset + words; i < offset + length; i += 2) {
+            buffer.putShort(i, Short.reverseBytes(buffer.getShort(i)));
+        }
+        buffer.order(order);
+    }
+
+    /**
+     * The {@link #blendFrames} weight of the frame {@code numerator / denominator} of the way
+     * from the first frame to the second.
+     */
+    static int blendWeight(int numerator, int denominator) {
+        return (numerator * BLEND_WEIGHT_ONE + denominator / 2) / denominator;
+    }
+
+    /**
+     * {@code dst = (a * (256 - weight) + b * weight + 128) >> 8} for every byte in
+     * {@code [offset, offset + length)}. {@code dst} may be {@code a} or {@code b}.
+     *
+     * Works on 8 bytes at a time: the even and the odd bytes of a 64-bit word are spread over four
+     * 16-bit lanes each, where the weighted sum of two bytes (at most 255 * 256 + 128) cannot carry
+     * into the next lane.
+     */
+    static void blendFrames(byte[] a, byte[] b, byte[] dst, int offset, int length, int weight) {
+        ByteBuffer in1 = ByteBuffer.wrap(a).order(ByteOrder.nativeOrder());
+        ByteBuffer in2 = ByteBuffer.wrap(b).order(ByteOrder.nativeOrder());
+        ByteBuffer out = ByteBuffer.wrap(dst).order(ByteOrder.nativeOrder());
+        long wa = BLEND_WEIGHT_ONE - weight;
+        long wb = weight;
+        int end = offset + (length & ~7);
+        for (int i = offset; i < end; i += 8) {
+            long x = in1.getLong(i);
+            long y = in2.getLong(i);
+            long even = (x & LANE_LOW_BYTES) * wa + (y & LANE_LOW_BYTES) * wb + LANE_ROUNDING;
+            long odd = ((x >>> 8) & LANE_LOW_BYTES) * wa + ((y >>> 8) & LANE_LOW_BYTES) * wb + LANE_ROUNDING;
+            out.putLong(i, ((even >>> 8) & LANE_LOW_BYTES) | (odd & ~LANE_LOW_BYTES));
+        }
+        for (int i = end; i < offset + length; i++) {
+            dst[i] = (byte) (((a[i] & 0xFF) * wa + (b[i] & 0xFF) * wb + 128) >> 8);
         }
     }
 }
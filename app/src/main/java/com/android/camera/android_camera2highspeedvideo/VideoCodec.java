@@ -0,0 +1,108 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The parts of {@link MediaCodec} used here, for decoders and encoders alike. Constants have
+ * the same values as their MediaCodec counterparts.
+ *
+ * A codec comes from a {@link MediaBackend} already set up for its stream, so there is no
+ * configure step: {@link #start()} configures and starts it. Decoded frames are read with
+ * {@link #getOutputPlanes} instead of through an {@code Image}.
+ */
+public interface VideoCodec {
+    int INFO_TRY_AGAIN_LATER = MediaCodec.INFO_TRY_AGAIN_LATER;
+    int INFO_OUTPUT_FORMAT_CHANGED = MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+
+    int BUFFER_FLAG_KEY_FRAME = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+    int BUFFER_FLAG_CODEC_CONFIG = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+    int BUFFER_FLAG_END_OF_STREAM = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+
+    /**
+     * Same fields as {@link MediaCodec.BufferInfo}, which can't be created off-device.
+     */
+    class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int offset, int size, long presentationTimeUs, int flags) {
+            this.offset = offset;
+            this.size = size;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+
+    /**
+     * Asynchronous mode, see {@link MediaCodec.Callback}. Calls come on a thread owned by the
+     * codec, one at a time.
+     */
+    interface Callback {
+        void onInputBufferAvailable(VideoCodec codec, int index);
+
+        void onOutputBufferAvailable(VideoCodec codec, int index, BufferInfo info);
+
+        void onOutputFormatChanged(VideoCodec codec);
+
+        void onError(VideoCodec codec, RuntimeException e);
+    }
+
+    String getName();
+
+    /**
+     * Switches the codec to asynchronous mode. Must be called before {@link #start()}; the
+     * dequeue methods can't be used afterwards.
+     */
+    void setCallback(Callback callback);
+
+    void start();
+
+    /**
+     * Encoders: the MediaCodecInfo color format of the input buffers. Valid after {@link #start()}.
+     */
+    int getInputColorFormat();
+
+    /**
+     * Encoders: bytes between input rows, at least the width.
+     */
+    int getInputStride();
+
+    /**
+     * Encoders: rows between the input planes, at least the height.
+     */
+    int getInputSliceHeight();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * @return a buffer index, {@link #INFO_TRY_AGAIN_LATER} or {@link #INFO_OUTPUT_FORMAT_CHANGED}
+     */
+    int dequeueOutputBuffer(BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    /**
+     * Decoders: points {@code planes} at the decoded frame in an output buffer. The planes stay
+     * valid until the buffer is released.
+     */
+    YuvPlanes getOutputPlanes(int index, YuvPlanes planes);
+
+    /**
+     * The output stream as a track to mux, once {@link #INFO_OUTPUT_FORMAT_CHANGED} was seen.
+     */
+    VideoTrack getOutputTrack();
+
+    void releaseOutputBuffer(int index);
+
+    void stop();
+
+    void release();
+}
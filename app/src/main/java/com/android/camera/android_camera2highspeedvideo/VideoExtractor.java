@@ -0,0 +1,38 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.media.MediaExtractor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The parts of {@link MediaExtractor} used here. An extractor is opened on its video track,
+ * every read comes from that track.
+ */
+public interface VideoExtractor {
+    int SAMPLE_FLAG_SYNC = MediaExtractor.SAMPLE_FLAG_SYNC;
+
+    /**
+     * The selected video track, or null if the file has none.
+     */
+    VideoTrack getVideoTrack();
+
+    /**
+     * Reads the current sample into {@code buffer} at {@code offset}.
+     *
+     * @return the sample size, or -1 at the end of the track
+     */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    long getSampleTime();
+
+    int getSampleFlags();
+
+    boolean advance();
+
+    /**
+     * Moves to the last sync sample at or before {@code timeUs}.
+     */
+    void seekTo(long timeUs);
+
+    void release();
+}
@@ -0,0 +1,49 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * What the processing code needs to know about a compressed video track, independent of
+ * {@code MediaFormat} so it can be built off-device.
+ */
+public class VideoTrack {
+    public String mime;
+    public int width;
+    public int height;
+    /** 0 if the container doesn't say */
+    public int frameRate;
+    /** Clockwise degrees the frames are to be rotated for display */
+    public int rotation;
+    /** 0 if the container doesn't say */
+    public long durationUs;
+    /** Largest sample in the track, 0 if the container doesn't say */
+    public int maxInputSize;
+    /** Codec specific data, csd-0, csd-1 and so on, empty if there is none */
+    public ByteBuffer[] codecConfig = new ByteBuffer[0];
+    /**
+     * The backend's own description of the track, a {@code MediaFormat} for
+     * {@link AndroidMediaBackend}. Only the backend that made the track looks at it.
+     */
+    public Object platformFormat;
+
+    public VideoTrack(String mime, int width, int height) {
+        this.mime = mime;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Whether samples of {@code other} can be muxed into a track of this format: same codec,
+     * size and codec specific data.
+     */
+    public boolean isCompatible(VideoTrack other) {
+        return mime.equals(other.mime) && width == other.width && height == other.height
+                && Arrays.equals(codecConfig, other.codecConfig);
+    }
+
+    @Override
+    public String toString() {
+        return mime + " " + width + "x" + height + ", " + frameRate + "fps, rotation " + rotation;
+    }
+}
@@ -0,0 +1,317 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.media.MediaCodecInfo;
+
+import java.util.Locale;
+
+/**
+ * Conversions between the YUV 4:2:0 frame layouts used by the pipeline, on packed byte arrays
+ * with no row padding.
+ *
+ * <pre>
+ * I420  Y, U plane, V plane
+ * YV12  Y, V plane, U plane
+ * NV12  Y, interleaved UV
+ * NV21  Y, interleaved VU
+ * P010  16-bit little-endian samples with the 10 significant bits at the top, Y, interleaved UV
+ * </pre>
+ *
+ * Each source/destination pair maps to a dedicated loop, there is no per-sample format dispatch.
+ * 8-bit samples are widened to P010 by bit replication, so 8 bit -> P010 -> 8 bit is lossless.
+ */
+public class YuvConverter {
+    public static final int FORMAT_NV21 = 0x100;
+    public static final int FORMAT_I420 = 0x101;
+    public static final int FORMAT_NV12 = 0x102;
+    public static final int FORMAT_YV12 = 0x103;
+    public static final int FORMAT_P010 = 0x104;
+
+    /** MediaCodecInfo.CodecCapabilities.COLOR_FormatYUVP010, public from API 29 */
+    static final int COLOR_FormatYUVP010 = 54;
+
+    // Encoder input formats in order of preference
+    private static final int[] CODEC_COLOR_FORMATS = {
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar,
+            MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
+            MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar,
+            COLOR_FormatYUVP010,
+    };
+
+    public static int getFrameSize(int format, int width, int height) {
+        int size = width * height * 3 / 2;
+        return format == FORMAT_P010 ? size * 2 : size;
+    }
+
+    public static String getName(int format) {
+        switch (format) {
+            case FORMAT_NV21:
+                return "nv21";
+            case FORMAT_I420:
+                return "i420";
+            case FORMAT_NV12:
+                return "nv12";
+            case FORMAT_YV12:
+                return "yv12";
+            case FORMAT_P010:
+                return "p010";
+            default:
+                throw new IllegalArgumentException("Unknown format 0x" + Integer.toHexString(format));
+        }
+    }
+
+    /**
+     * The reverse of {@link #getName}, case insensitive. Returns -1 for unknown names.
+     */
+    public static int fromName(String name) {
+        switch (name.toLowerCase(Locale.US)) {
+            case "nv21":
+                return FORMAT_NV21;
+            case "i420":
+                return FORMAT_I420;
+            case "nv12":
+                return FORMAT_NV12;
+            case "yv12":
+                return FORMAT_YV12;
+            case "p010":
+                return FORMAT_P010;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Maps a {@link MediaCodecInfo.CodecCapabilities} color format to the FORMAT_* layout a
+     * ByteBuffer input of that format expects, or -1 if there is none.
+     */
+    public static int fromCodecColorFormat(int colorFormat) {
+        switch (colorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar:
+                return FORMAT_NV12;
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
+                return FORMAT_I420;
+            case COLOR_FormatYUVP010:
+                return FORMAT_P010;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Picks the preferred ByteBuffer input format out of a codec's
+     * {@link MediaCodecInfo.CodecCapabilities#colorFormats}, or -1 if it supports none of them.
+     */
+    public static int selectCodecColorFormat(int[] colorFormats) {
+        for (int preferred : CODEC_COLOR_FORMATS) {
+            for (int format : colorFormats) {
+                if (format == preferred) {
+                    return format;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Converts a {@code width} x {@code height} frame. Both dimensions must be even and the
+     * arrays at least {@link #getFrameSize} bytes.
+     */
+    public static void convert(byte[] src, int srcFormat, byte[] dst, int dstFormat, int width, int height) {
+        int size = width * height;
+        int quarter = size / 4;
+        if (srcFormat == dstFormat) {
+            System.arraycopy(src, 0, dst, 0, getFrameSize(srcFormat, width, height));
+            return;
+        }
+
+        // Y
+        if (srcFormat == FORMAT_P010) {
+            narrow(src, 0, dst, 0, size);
+        } else if (dstFormat == FORMAT_P010) {
+            widen(src, 0, dst, 0, size);
+        } else {
+            System.arraycopy(src, 0, dst, 0, size);
+        }
+
+        // U and V
+        switch (srcFormat) {
+            case FORMAT_I420:
+                fromPlanar(src, size, size + quarter, dst, dstFormat, size);
+                break;
+            case FORMAT_YV12:
+                fromPlanar(src, size + quarter, size, dst, dstFormat, size);
+                break;
+            case FORMAT_NV12:
+                fromSemiPlanar(src, false, dst, dstFormat, size);
+                break;
+            case FORMAT_NV21:
+                fromSemiPlanar(src, true, dst, dstFormat, size);
+                break;
+            case FORMAT_P010:
+                fromP010(src, dst, dstFormat, size);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown source format 0x" + Integer.toHexString(srcFormat));
+        }
+    }
+
+    private static void fromPlanar(byte[] src, int u, int v, byte[] dst, int dstFormat, int size) {
+        int quarter = size / 4;
+        switch (dstFormat) {
+            case FORMAT_I420:
+                System.arraycopy(src, u, dst, size, quarter);
+                System.arraycopy(src, v, dst, size + quarter, quarter);
+                break;
+            case FORMAT_YV12:
+                System.arraycopy(src, v, dst, size, quarter);
+                System.arraycopy(src, u, dst, size + quarter, quarter);
+                break;
+            case FORMAT_NV12:
+                interleave(src, u, v, dst, size, quarter);
+                break;
+            case FORMAT_NV21:
+                interleave(src, v, u, dst, size, quarter);
+                break;
+            case FORMAT_P010:
+                interleaveWiden(src, u, v, dst, size * 2, quarter);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown destination format 0x" + Integer.toHexString(dstFormat));
+        }
+    }
+
+    private static void fromSemiPlanar(byte[] src, boolean vFirst, byte[] dst, int dstFormat, int size) {
+        int quarter = size / 4;
+        switch (dstFormat) {
+            case FORMAT_I420:
+                deinterleave(src, size, dst, vFirst ? size + quarter : size, vFirst ? size : size + quarter, quarter);
+                break;
+            case FORMAT_YV12:
+                deinterleave(src, size, dst, vFirst ? size : size + quarter, vFirst ? size + quarter : size, quarter);
+                break;
+            case FORMAT_NV12:
+            case FORMAT_NV21:
+                // Only reached for NV12 <-> NV21, same formats are copied up front
+                swapPairs(src, size, dst, size, quarter);
+                break;
+            case FORMAT_P010:
+                if (vFirst) {
+                    swapWiden(src, size, dst, size * 2, quarter);
+                } else {
+                    widen(src, size, dst, size * 2, quarter * 2);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown destination format 0x" + Integer.toHexString(dstFormat));
+        }
+    }
+
+    private static void fromP010(byte[] src, byte[] dst, int dstFormat, int size) {
+        int quarter = size / 4;
+        int uv = size * 2;
+        switch (dstFormat) {
+            case FORMAT_I420:
+                deinterleaveNarrow(src, uv, dst, size, size + quarter, quarter);
+                break;
+            case FORMAT_YV12:
+                deinterleaveNarrow(src, uv, dst, size + quarter, size, quarter);
+                break;
+            case FORMAT_NV12:
+                narrow(src, uv, dst, size, quarter * 2);
+                break;
+            case FORMAT_NV21:
+                swapNarrow(src, uv, dst, size, quarter);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown destination format 0x" + Integer.toHexString(dstFormat));
+        }
+    }
+
+    /**
+     * dst = a0 b0 a1 b1 ...
+     */
+    private static void interleave(byte[] src, int a, int b, byte[] dst, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[offset++] = src[a + i];
+            dst[offset++] = src[b + i];
+        }
+    }
+
+    /**
+     * The even bytes of src go to {@code a}, the odd ones to {@code b}.
+     */
+    private static void deinterleave(byte[] src, int offset, byte[] dst, int a, int b, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[a + i] = src[offset++];
+            dst[b + i] = src[offset++];
+        }
+    }
+
+    private static void swapPairs(byte[] src, int srcOffset, byte[] dst, int dstOffset, int pairs) {
+        Utils.swapBytePairs(src, srcOffset, dst, dstOffset, pairs * 2);
+    }
+
+    /**
+     * 8 bit to 16 bit little endian, the 10 significant bits being v << 2 | v >> 6.
+     */
+    private static void widen(byte[] src, int srcOffset, byte[] dst, int dstOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            byte v = src[srcOffset + i];
+            dst[dstOffset++] = (byte) (v & 0xC0);
+            dst[dstOffset++] = v;
+        }
+    }
+
+    /**
+     * 16 bit little endian to 8 bit, keeping the high byte.
+     */
+    private static void narrow(byte[] src, int srcOffset, byte[] dst, int dstOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[dstOffset + i] = src[srcOffset + 2 * i + 1];
+        }
+    }
+
+    private static void interleaveWiden(byte[] src, int a, int b, byte[] dst, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            byte u = src[a + i];
+            byte v = src[b + i];
+            dst[offset++] = (byte) (u & 0xC0);
+            dst[offset++] = u;
+            dst[offset++] = (byte) (v & 0xC0);
+            dst[offset++] = v;
+        }
+    }
+
+    private static void swapWiden(byte[] src, int srcOffset, byte[] dst, int dstOffset, int pairs) {
+        for (int i = 0; i < pairs; i++) {
+            byte v = src[srcOffset++];
+            byte u = src[srcOffset++];
+            dst[dstOffset++] = (byte) (u & 0xC0);
+            dst[dstOffset++] = u;
+            dst[dstOffset++] = (byte) (v & 0xC0);
+            dst[dstOffset++] = v;
+        }
+    }
+
+    private static void deinterleaveNarrow(byte[] src, int offset, byte[] dst, int a, int b, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[a + i] = src[offset + 1];
+            dst[b + i] = src[offset + 3];
+            offset += 4;
+        }
+    }
+
+    private static void swapNarrow(byte[] src, int srcOffset, byte[] dst, int dstOffset, int pairs) {
+        for (int i = 0; i < pairs; i++) {
+            dst[dstOffset++] = src[srcOffset + 3];
+            dst[dstOffset++] = src[srcOffset + 1];
+            srcOffset += 4;
+        }
+    }
+}
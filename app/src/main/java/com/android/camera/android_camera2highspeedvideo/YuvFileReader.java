@@ -0,0 +1,237 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Random access to the frames of a raw YUV sequence, one frame after the other with no header,
+ * such as {@code output_1920x1080.nv21}.
+ *
+ * The file is mapped a window of whole frames at a time and {@link #getFrame(int)} returns a view
+ * of the mapping, so opening costs the same whatever the file size and nothing is copied onto the
+ * heap. When frames are read in order, the next window is mapped and paged in on a background
+ * thread while the current one is being read.
+ *
+ * The frame size comes from a sidecar {@code <file>.hdr} properties file (width, height and
+ * format) if there is one, otherwise from the file name through {@link Utils#guessFileWH} and the
+ * extension.
+ */
+public class YuvFileReader implements Closeable {
+    private static final String TAG = "YuvFileReader";
+    public static final String HEADER_SUFFIX = ".hdr";
+    private static final int WINDOW_BYTES = 32 * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private final int mFrameSize;
+    private final int mFrameCount;
+    private final int mFramesPerWindow;
+    private boolean mPrefetch = true;
+
+    private MappedByteBuffer mWindow;
+    private int mWindowIndex = -1;
+    private Future<MappedByteBuffer> mNextWindow;
+    private int mNextWindowIndex = -1;
+    private ExecutorService mPrefetcher;
+
+    private YuvFileReader(File file, int width, int height, int format, int framesPerWindow) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Unknown frame size for " + file);
+        }
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mFrameSize = YuvConverter.getFrameSize(format, width, height);
+        mFramesPerWindow = framesPerWindow > 0 ? framesPerWindow : Math.max(1, WINDOW_BYTES / mFrameSize);
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        mFrameCount = (int) (mChannel.size() / mFrameSize);
+    }
+
+    /**
+     * Opens {@code file}, taking the frame size from its sidecar header or its name.
+     */
+    public static YuvFileReader open(File file) throws IOException {
+        File header = new File(file.getPath() + HEADER_SUFFIX);
+        if (header.exists()) {
+            Properties properties = new Properties();
+            InputStream in = new FileInputStream(header);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            try {
+                int width = Integer.parseInt(properties.getProperty("width", "-1").trim());
+                int height = Integer.parseInt(properties.getProperty("height", "-1").trim());
+                String name = properties.getProperty("format");
+                int format = (name != null) ? YuvConverter.fromName(name.trim()) : formatFromExtension(file);
+                if (format < 0) {
+                    throw new IOException("Unknown format " + name + " in " + header);
+                }
+                return new YuvFileReader(file, width, height, format, 0);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad frame size in " + header, e);
+            }
+        }
+        int[] wh = new int[2];
+        Utils.guessFileWH(file.getName(), wh);
+        int format = formatFromExtension(file);
+        if (format < 0) {
+            throw new IOException("Unknown format for " + file);
+        }
+        return new YuvFileReader(file, wh[0], wh[1], format, 0);
+    }
+
+    /**
+     * Opens {@code file} with a known frame size.
+     *
+     * @param format one of the {@link YuvConverter} FORMAT_* constants
+     */
+    public static YuvFileReader open(File file, int width, int height, int format) throws IOException {
+        return new YuvFileReader(file, width, height, format, 0);
+    }
+
+    static YuvFileReader open(File file, int width, int height, int format, int framesPerWindow) throws IOException {
+        return new YuvFileReader(file, width, height, format, framesPerWindow);
+    }
+
+    /**
+     * .yuv is taken as I420, the way {@code dumpYUVFrame} used to name its I420 dumps.
+     */
+    private static int formatFromExtension(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return -1;
+        }
+        String extension = name.substring(dot + 1);
+        return extension.equalsIgnoreCase("yuv") ? YuvConverter.FORMAT_I420 : YuvConverter.fromName(extension);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * One of the {@link YuvConverter} FORMAT_* constants.
+     */
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * Number of whole frames in the file, a truncated last frame is not counted.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Enables or disables read-ahead of the next window, on by default. Turn it off for random
+     * access patterns, where it would only page in data that is never read.
+     */
+    public synchronized void setPrefetch(boolean prefetch) {
+        mPrefetch = prefetch;
+    }
+
+    /**
+     * Returns frame {@code index} as a read-only view of the mapping, without copying.
+     */
+    public synchronized ByteBuffer getFrame(int index) throws IOException {
+        if (index < 0 || index >= mFrameCount) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + mFrameCount);
+        }
+        int window = index / mFramesPerWindow;
+        if (window != mWindowIndex) {
+            boolean sequential = (window == mWindowIndex + 1);
+            mWindow = (window == mNextWindowIndex) ? awaitNextWindow() : map(window);
+            mWindowIndex = window;
+            mNextWindow = null;
+            mNextWindowIndex = -1;
+            if (mPrefetch && sequential && (window + 1) * mFramesPerWindow < mFrameCount) {
+                prefetch(window + 1);
+            }
+        }
+        ByteBuffer frame = mWindow.duplicate();
+        int offset = (index % mFramesPerWindow) * mFrameSize;
+        frame.limit(offset + mFrameSize).position(offset);
+        return frame.slice();
+    }
+
+    private MappedByteBuffer map(int window) throws IOException {
+        long offset = (long) window * mFramesPerWindow * mFrameSize;
+        int frames = Math.min(mFramesPerWindow, mFrameCount - window * mFramesPerWindow);
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, offset, (long) frames * mFrameSize);
+    }
+
+    private MappedByteBuffer awaitNextWindow() throws IOException {
+        try {
+            return mNextWindow.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading ahead", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private void prefetch(final int window) {
+        if (mPrefetcher == null) {
+            mPrefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        mNextWindowIndex = window;
+        mNextWindow = mPrefetcher.submit(new Callable<MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer call() throws IOException {
+                // load() touches every page, so they are resident by the time they are read
+                return map(window).load();
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mPrefetcher != null) {
+            mPrefetcher.shutdownNow();
+            mPrefetcher = null;
+        }
+        mWindow = null;
+        mNextWindow = null;
+        mChannel.close();
+        mFile.close();
+    }
+}
@@ -0,0 +1,123 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.graphics.Rect;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The three planes of a YUV 4:2:0 frame, decoupled from {@link Image} so the pixel kernels in
+ * {@link Utils} can be fed synthetic layouts off-device.
+ *
+ * Plane #0 is Y, #1 is U and #2 is V, with the same stride semantics as {@link Image.Plane}.
+ * An instance is meant to be reused for every frame of a stream: the chroma layout is detected
+ * once and cached for as long as the plane geometry stays the same.
+ */
+public class YuvPlanes {
+    /** Not detected yet */
+    public static final int CHROMA_UNKNOWN = 0;
+    /** U and V are separate planes, or interleaved in a way the fast paths don't handle */
+    public static final int CHROMA_PLANAR = 1;
+    /** V and U alias one interleaved VU buffer, V first (NV21 memory layout) */
+    public static final int CHROMA_VU_INTERLEAVED = 2;
+    /** U and V alias one interleaved UV buffer, U first (NV12 memory layout) */
+    public static final int CHROMA_UV_INTERLEAVED = 3;
+
+    private static final int UNIFORM_SAMPLES = 16;
+
+    public final ByteBuffer[] buffers = new ByteBuffer[3];
+    public final int[] rowStrides = new int[3];
+    public final int[] pixelStrides = new int[3];
+    public int cropLeft;
+    public int cropTop;
+    public int width;
+    public int height;
+
+    private int mChromaLayout = CHROMA_UNKNOWN;
+
+    public YuvPlanes set(Image image) {
+        Image.Plane[] planes = image.getPlanes();   // plane #0 must be Y, #1 must be U, #2 must be V
+        for (int i = 0; i < 3; i++) {
+            setPlane(i, planes[i].getBuffer(), planes[i].getRowStride(), planes[i].getPixelStride());
+        }
+        Rect crop = image.getCropRect();    // CropRect specifies a rectangular area within the image, only pixels in this area are valid
+        return setCrop(crop.left, crop.top, crop.width(), crop.height());
+    }
+
+    public YuvPlanes setPlane(int index, ByteBuffer buffer, int rowStride, int pixelStride) {
+        ByteBuffer old = buffers[index];
+        if (old == null || old.limit() != buffer.limit()
+                || rowStrides[index] != rowStride || pixelStrides[index] != pixelStride) {
+            mChromaLayout = CHROMA_UNKNOWN;
+        }
+        buffers[index] = buffer;
+        rowStrides[index] = rowStride;
+        pixelStrides[index] = pixelStride;
+        return this;
+    }
+
+    public YuvPlanes setCrop(int left, int top, int width, int height) {
+        cropLeft = left;
+        cropTop = top;
+        this.width = width;
+        this.height = height;
+        return this;
+    }
+
+    /**
+     * Returns one of the CHROMA_* constants. Aliasing can't be observed through the public
+     * ByteBuffer API, so it is inferred from the content: V shifted by one byte must equal U
+     * (or the reverse). A positive answer is only cached once it was made on non-uniform chroma,
+     * where separate planes can't pass the test by accident.
+     */
+    public int getChromaLayout() {
+        if (mChromaLayout != CHROMA_UNKNOWN) {
+            return mChromaLayout;
+        }
+        int layout = CHROMA_PLANAR;
+        ByteBuffer u = buffers[1];
+        ByteBuffer v = buffers[2];
+        if (pixelStrides[1] == 2 && pixelStrides[2] == 2 && rowStrides[1] == rowStrides[2]) {
+            if (isShiftedAlias(v, u)) {
+                layout = CHROMA_VU_INTERLEAVED;
+            } else if (isShiftedAlias(u, v)) {
+                layout = CHROMA_UV_INTERLEAVED;
+            }
+        }
+        if (layout == CHROMA_PLANAR || !isUniform(u)) {
+            mChromaLayout = layout;
+        }
+        return layout;
+    }
+
+    /**
+     * Whether {@code second} looks like {@code first} advanced by one byte.
+     */
+    private static boolean isShiftedAlias(ByteBuffer first, ByteBuffer second) {
+        if (first.limit() != second.limit() || first.limit() < 2) {
+            return false;
+        }
+        int firstPosition = first.position();
+        int secondPosition = second.position();
+        int limit = second.limit();
+        first.position(1);
+        second.position(0);
+        second.limit(limit - 1);
+        boolean alias = first.compareTo(second) == 0;
+        second.limit(limit);
+        first.position(firstPosition);
+        second.position(secondPosition);
+        return alias;
+    }
+
+    private static boolean isUniform(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        byte first = buffer.get(0);
+        for (int i = 1; i <= UNIFORM_SAMPLES; i++) {
+            if (buffer.get((int) ((long) limit * i / (UNIFORM_SAMPLES + 1))) != first) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
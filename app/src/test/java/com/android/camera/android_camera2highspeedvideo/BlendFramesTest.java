@@ -0,0 +1,71 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the packed blend against the per-byte formula, including unaligned ranges and the
+ * extreme weights.
+ */
+public class BlendFramesTest {
+    private static byte[] random(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] expected(byte[] a, byte[] b, byte[] dst, int offset, int length, int weight) {
+        byte[] out = dst.clone();
+        for (int i = offset; i < offset + length; i++) {
+            out[i] = (byte) (((a[i] & 0xFF) * (256 - weight) + (b[i] & 0xFF) * weight + 128) >> 8);
+        }
+        return out;
+    }
+
+    @Test
+    public void matchesScalarBlend() {
+        Random random = new Random(7);
+        byte[] a = random(random, 301);
+        byte[] b = random(random, 301);
+        int[] weights = {0, 1, 64, 85, 128, 192, 255, 256};
+        for (int weight : weights) {
+            for (int offset = 0; offset < 9; offset++) {
+                byte[] dst = random(random, 301);
+                byte[] want = expected(a, b, dst, offset, 283, weight);
+                Utils.blendFrames(a, b, dst, offset, 283, weight);
+                assertArrayEquals("weight " + weight + " offset " + offset, want, dst);
+            }
+        }
+    }
+
+    @Test
+    public void extremesCopyTheirFrame() {
+        Random random = new Random(11);
+        byte[] a = random(random, 64);
+        byte[] b = random(random, 64);
+        byte[] dst = new byte[64];
+        Utils.blendFrames(a, b, dst, 0, 64, 0);
+        assertArrayEquals(a, dst);
+        Utils.blendFrames(a, b, dst, 0, 64, Utils.BLEND_WEIGHT_ONE);
+        assertArrayEquals(b, dst);
+    }
+
+    @Test
+    public void stripedMatchesSerial() {
+        int w = 1920;
+        int h = 1088;
+        Random random = new Random(13);
+        byte[] a = random(random, w * h * 3 / 2);
+        byte[] b = random(random, w * h * 3 / 2);
+        byte[] serial = new byte[a.length];
+        byte[] striped = new byte[a.length];
+        int weight = Utils.blendWeight(1, 4);
+        assertEquals(64, weight);
+        Utils.blendFrames(a, b, serial, 0, a.length, weight);
+        ParallelYuv.blendFrames(a, b, striped, w, h, weight);
+        assertArrayEquals(serial, striped);
+    }
+}
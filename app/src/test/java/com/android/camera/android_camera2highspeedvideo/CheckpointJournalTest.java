@@ -0,0 +1,58 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reopens journals the way a restarted job does.
+ */
+public class CheckpointJournalTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("checkpoint", ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void reopenedJournalKeepsSegmentsOfSameJob() throws IOException {
+        CheckpointJournal journal = CheckpointJournal.open(mFile, "clip.mp4\t4");
+        journal.append(0, 0, 2000000, 120, "/out/segment_0.mp4");
+        journal.append(1, 2000000, 4000000, 120, "/out/segment_1.mp4");
+
+        journal = CheckpointJournal.open(mFile, "clip.mp4\t4");
+        assertEquals(2, journal.size());
+        assertNotNull(journal.find(1, 2000000, 4000000, "/out/segment_1.mp4"));
+        assertNull(journal.find(1, 2000000, -1, "/out/segment_1.mp4"));
+
+        journal = CheckpointJournal.open(mFile, "clip.mp4\t2");
+        assertEquals("other settings start over", 0, journal.size());
+        assertEquals(0, CheckpointJournal.open(mFile, "clip.mp4\t2").size());
+    }
+
+    @Test
+    public void tornLastLineIsIgnored() throws IOException {
+        CheckpointJournal journal = CheckpointJournal.open(mFile, "clip.mp4");
+        journal.append(0, 0, 2000000, 120, "/out/segment_0.mp4");
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        out.write("1\t2000000\t40".getBytes("UTF-8"));
+        out.close();
+
+        journal = CheckpointJournal.open(mFile, "clip.mp4");
+        assertEquals(1, journal.size());
+        journal.append(1, 2000000, -1, 60, "/out/segment_1.mp4");
+        assertNotNull(CheckpointJournal.open(mFile, "clip.mp4").find(1, 2000000, -1, "/out/segment_1.mp4"));
+    }
+}
@@ -0,0 +1,1072 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.media.MediaCodecInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * {@link MediaBackend} in plain Java, for tests and benchmarks off-device.
+ *
+ * Every path opens the same synthetic clip: {@code frameCount} frames at {@code frameRate}, with
+ * a sync sample once a second, except paths a {@link FakeMuxer} has finished writing, which
+ * play back what was written. A sample only carries its frame number; the fake decoder turns
+ * it into an NV12 frame whose content is a function of that number, see {@link #fillFrame}.
+ * The fake encoder turns every input frame into an 8 byte sample holding the CRC32 of the frame,
+ * and {@link FakeMuxer} records what it is given, so a test can check exactly which frames came
+ * out in which order.
+ *
+ * Codecs can be given a latency, the time from queueing an input to its output showing up, and
+ * a rate, the most frames per second they put out. Content and order are deterministic, timing
+ * follows the wall clock.
+ */
+public class FakeMediaBackend implements MediaBackend {
+    public static final String MIME_TYPE = "video/x-fake";
+    private static final int SAMPLE_SIZE = 4;
+    private static final int CHECKSUM_SIZE = 8;
+    private static final int INPUT_BUFFERS = 4;
+    private static final int OUTPUT_BUFFERS = 4;
+    private static final int MAX_CODEC_INSTANCES = 4;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameCount;
+    private final int mFrameRate;
+    private int mEncoderColorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+    private long mDecoderLatencyUs;
+    private int mDecoderRate;
+    private long mEncoderLatencyUs;
+    private int mEncoderRate;
+    private int mEncoderLimit;
+    private long mEncoderKeyFrameIntervalUs;
+    private volatile int mDecoderErrorFrame = -1;
+    private int mEncoderSamplePadding;
+    private int mEncoderStridePadding;
+    private int mEncoderSliceHeightPadding;
+    private volatile int mEncoderBitRate;
+    private final AtomicInteger mEncodersCreated = new AtomicInteger();
+    private final AtomicInteger mDecodersCreated = new AtomicInteger();
+    private volatile int mDecoderStartErrorAt;
+    private volatile int mDecoderCreateErrorAt;
+    private final List<FakeMuxer> mMuxers = Collections.synchronizedList(new ArrayList<FakeMuxer>());
+
+    /**
+     * @param frameCount frames in the clip
+     * @param frameRate  frames per second of the clip's timestamps
+     */
+    public FakeMediaBackend(int width, int height, int frameCount, int frameRate) {
+        mWidth = width;
+        mHeight = height;
+        mFrameCount = frameCount;
+        mFrameRate = frameRate;
+    }
+
+    /**
+     * @param latencyUs      time from queueing a sample to its frame being ready
+     * @param framesPerSecond most frames put out per second, 0 for no limit
+     */
+    public FakeMediaBackend setDecoderTiming(long latencyUs, int framesPerSecond) {
+        mDecoderLatencyUs = latencyUs;
+        mDecoderRate = framesPerSecond;
+        return this;
+    }
+
+    /**
+     * Same as {@link #setDecoderTiming} for the encoder.
+     */
+    public FakeMediaBackend setEncoderTiming(long latencyUs, int framesPerSecond) {
+        mEncoderLatencyUs = latencyUs;
+        mEncoderRate = framesPerSecond;
+        return this;
+    }
+
+    /**
+     * Makes {@link #createEncoder} fail once {@code count} encoders were created, as if the app
+     * had been killed. 0, the default, for no limit.
+     */
+    public FakeMediaBackend setEncoderLimit(int count) {
+        mEncoderLimit = count;
+        return this;
+    }
+
+    /**
+     * Makes decoders fail with an {@link IllegalStateException} when they would put out frame
+     * {@code frame}, the way a MediaCodec in error throws a CodecException in polling mode and
+     * reports it to onError in asynchronous mode. -1, the default, for no error.
+     */
+    public FakeMediaBackend setDecoderErrorAt(int frame) {
+        mDecoderErrorFrame = frame;
+        return this;
+    }
+
+    /**
+     * Makes the {@code n}-th decoder created, counting from 1, throw an
+     * {@link IllegalStateException} from {@link VideoCodec#start()}, the way MediaCodec's
+     * configure() does when no codec instance is free. 0, the default, for no error.
+     */
+    public FakeMediaBackend setDecoderStartErrorAt(int n) {
+        mDecoderStartErrorAt = n;
+        return this;
+    }
+
+    /**
+     * Makes the encoder take input rows {@code stridePadding} bytes longer than a frame's, and
+     * {@code sliceHeightPadding} more Y rows than the frame has, as hardware encoders aligning
+     * their input do. 0, the default, for packed input.
+     */
+    public FakeMediaBackend setEncoderInputPadding(int stridePadding, int sliceHeightPadding) {
+        mEncoderStridePadding = stridePadding;
+        mEncoderSliceHeightPadding = sliceHeightPadding;
+        return this;
+    }
+
+    /**
+     * Makes {@link #createDecoder} throw an {@link IllegalStateException} for the {@code n}-th
+     * decoder, counting from 1, the way MediaCodec's configure() does there. 0, the default,
+     * for no error.
+     */
+    public FakeMediaBackend setDecoderCreateErrorAt(int n) {
+        mDecoderCreateErrorAt = n;
+        return this;
+    }
+
+    /**
+     * Makes the encoder put out a key frame at the first frame and then at the first one
+     * {@code intervalUs} or more after the last. 0, the default, for a key frame at timestamp 0
+     * only.
+     */
+    public FakeMediaBackend setEncoderKeyFrameInterval(long intervalUs) {
+        mEncoderKeyFrameIntervalUs = intervalUs;
+        return this;
+    }
+
+    /**
+     * Pads the samples of the n-th encoder created, counting from 0, with {@code n * bytes}
+     * bytes, so files from different encoders have samples of different sizes. 0, the default,
+     * for no padding.
+     */
+    public FakeMediaBackend setEncoderSamplePadding(int bytes) {
+        mEncoderSamplePadding = bytes;
+        return this;
+    }
+
+    /**
+     * The bit rate the last encoder was created with, the fake encoder doesn't keep to it.
+     */
+    public int getEncoderBitRate() {
+        return mEncoderBitRate;
+    }
+
+    /**
+     * Encoders created so far, including ones that failed.
+     */
+    public int getEncodersCreated() {
+        return mEncodersCreated.get();
+    }
+
+    /**
+     * The MediaCodecInfo color format the encoder takes, YUV420SemiPlanar by default. Must be
+     * one {@link YuvConverter#fromCodecColorFormat} knows.
+     */
+    public FakeMediaBackend setEncoderColorFormat(int colorFormat) {
+        if (YuvConverter.fromCodecColorFormat(colorFormat) < 0) {
+            throw new IllegalArgumentException("Unsupported color format 0x" + Integer.toHexString(colorFormat));
+        }
+        mEncoderColorFormat = colorFormat;
+        return this;
+    }
+
+    /**
+     * Every muxer created so far, in order.
+     */
+    public List<FakeMuxer> getMuxers() {
+        synchronized (mMuxers) {
+            return new ArrayList<>(mMuxers);
+        }
+    }
+
+    public long getSampleTimeUs(int frame) {
+        return frame * 1000000L / mFrameRate;
+    }
+
+    /**
+     * Whether a frame is a sync sample, one per second.
+     */
+    public boolean isSyncFrame(int frame) {
+        return frame % Math.max(mFrameRate, 1) == 0;
+    }
+
+    /**
+     * The content of decoded frame {@code frame}, as NV12 into {@code dst}.
+     */
+    public static void fillFrame(int frame, byte[] dst, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                dst[y * width + x] = (byte) (x + 2 * y + 3 * frame);
+            }
+        }
+        int offset = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                dst[offset++] = (byte) (4 * x + y + frame);     // U
+                dst[offset++] = (byte) (x + 4 * y + 5 * frame); // V
+            }
+        }
+    }
+
+    /**
+     * Points {@code planes} at an NV12 frame the way decoders and cameras hand it out: U and V
+     * alias one interleaved buffer.
+     */
+    static YuvPlanes setNv12Planes(ByteBuffer frame, int width, int height, YuvPlanes planes) {
+        frame = frame.duplicate();
+        int size = width * height;
+        int chromaSize = size / 2 - 1;
+        frame.limit(size).position(0);
+        planes.setPlane(0, frame.slice(), width, 1);
+        frame.limit(size + chromaSize).position(size);
+        planes.setPlane(1, frame.slice(), width, 2);
+        frame.limit(size + 1 + chromaSize).position(size + 1);
+        planes.setPlane(2, frame.slice(), width, 2);
+        return planes.setCrop(0, 0, width, height);
+    }
+
+    /**
+     * The clip's frames as if they were being captured, see {@link FakeFrameSource}.
+     *
+     * @param realTime whether frames come at the clip's frame rate, otherwise as fast as they
+     *                 are taken
+     */
+    public FakeFrameSource createFrameSource(boolean realTime) {
+        return new FakeFrameSource(realTime);
+    }
+
+    /**
+     * What the fake encoder puts out for an input frame.
+     */
+    public static long checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    @Override
+    public VideoExtractor createExtractor(String path) {
+        List<FakeMuxer> muxers = getMuxers();
+        for (int i = muxers.size() - 1; i >= 0; i--) {
+            FakeMuxer muxer = muxers.get(i);
+            if (muxer.getPath().equals(path) && muxer.isFinished()) {
+                return new MuxedExtractor(muxer);
+            }
+        }
+        return new FakeExtractor();
+    }
+
+    @Override
+    public VideoCodec createDecoder(VideoTrack track) {
+        if (!MIME_TYPE.equals(track.mime)) {
+            throw new IllegalArgumentException("Not a fake track: " + track.mime);
+        }
+        int n = mDecodersCreated.incrementAndGet();
+        if (n == mDecoderCreateErrorAt) {
+            throw new IllegalStateException("fake.decoder: failed to configure");
+        }
+        FakeCodec decoder = new FakeCodec("fake.decoder", false, SAMPLE_SIZE, mWidth * mHeight * 3 / 2, mDecoderLatencyUs, mDecoderRate);
+        decoder.mFailStart = n == mDecoderStartErrorAt;
+        return decoder;
+    }
+
+    @Override
+    public VideoCodec createEncoder(int width, int height, int frameRate, int bitRate) throws IOException {
+        mEncoderBitRate = bitRate;
+        int created = mEncodersCreated.incrementAndGet();
+        if (created > mEncoderLimit && mEncoderLimit > 0) {
+            throw new IOException("Encoder limit of " + mEncoderLimit + " reached");
+        }
+        int format = YuvConverter.fromCodecColorFormat(mEncoderColorFormat);
+        int rowLength = format == YuvConverter.FORMAT_P010 ? width * 2 : width;
+        int stride = rowLength + mEncoderStridePadding;
+        int sliceHeight = height + mEncoderSliceHeightPadding;
+        FakeCodec encoder = new FakeCodec("fake.encoder", true, stride * sliceHeight * 3 / 2,
+                CHECKSUM_SIZE + (created - 1) * mEncoderSamplePadding, mEncoderLatencyUs, mEncoderRate);
+        encoder.setInputLayout(format, width, height, stride, sliceHeight);
+        return encoder;
+    }
+
+    @Override
+    public int getMaxCodecInstances(VideoTrack track) {
+        return MAX_CODEC_INSTANCES;
+    }
+
+    @Override
+    public SampleMuxer createMuxer(String path) {
+        FakeMuxer muxer = new FakeMuxer(path);
+        mMuxers.add(muxer);
+        return muxer;
+    }
+
+    private VideoTrack createTrack() {
+        VideoTrack track = new VideoTrack(MIME_TYPE, mWidth, mHeight);
+        track.frameRate = mFrameRate;
+        track.durationUs = getSampleTimeUs(mFrameCount);
+        track.maxInputSize = SAMPLE_SIZE;
+        return track;
+    }
+
+    private class FakeExtractor implements VideoExtractor {
+        private final VideoTrack mTrack = createTrack();
+        private int mFrame;
+
+        @Override
+        public VideoTrack getVideoTrack() {
+            return mTrack;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            if (mFrame >= mFrameCount) {
+                return -1;
+            }
+            buffer.clear();
+            buffer.putInt(offset, mFrame);
+            buffer.position(offset).limit(offset + SAMPLE_SIZE);
+            return SAMPLE_SIZE;
+        }
+
+        @Override
+        public long getSampleTime() {
+            return mFrame < mFrameCount ? getSampleTimeUs(mFrame) : -1;
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return mFrame < mFrameCount && isSyncFrame(mFrame) ? SAMPLE_FLAG_SYNC : 0;
+        }
+
+        @Override
+        public boolean advance() {
+            if (mFrame >= mFrameCount) {
+                return false;
+            }
+            mFrame++;
+            return mFrame < mFrameCount;
+        }
+
+        @Override
+        public void seekTo(long timeUs) {
+            mFrame = 0;
+            for (int i = 0; i < mFrameCount && getSampleTimeUs(i) <= timeUs; i++) {
+                if (isSyncFrame(i)) {
+                    mFrame = i;
+                }
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * Plays back the samples of a finished {@link FakeMuxer}'s first track.
+     */
+    private static class MuxedExtractor implements VideoExtractor {
+        private final VideoTrack mTrack;
+        private final List<Sample> mSamples;
+        private final List<byte[]> mData;
+        private int mSample;
+
+        MuxedExtractor(FakeMuxer muxer) {
+            mSamples = muxer.getSamples();
+            mData = muxer.getSampleData();
+            // The file's largest sample, as MP4 extractors report it
+            VideoTrack written = muxer.getTracks().get(0);
+            mTrack = new VideoTrack(written.mime, written.width, written.height);
+            mTrack.frameRate = written.frameRate;
+            mTrack.rotation = written.rotation;
+            mTrack.durationUs = written.durationUs;
+            mTrack.codecConfig = written.codecConfig;
+            for (byte[] data : mData) {
+                mTrack.maxInputSize = Math.max(mTrack.maxInputSize, data.length);
+            }
+        }
+
+        @Override
+        public VideoTrack getVideoTrack() {
+            return mTrack;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            if (mSample >= mSamples.size()) {
+                return -1;
+            }
+            byte[] data = mData.get(mSample);
+            buffer.clear();
+            buffer.position(offset);
+            buffer.put(data);
+            buffer.position(offset).limit(offset + data.length);
+            return data.length;
+        }
+
+        @Override
+        public long getSampleTime() {
+            return mSample < mSamples.size() ? mSamples.get(mSample).presentationTimeUs : -1;
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return mSample < mSamples.size() && (mSamples.get(mSample).flags & VideoCodec.BUFFER_FLAG_KEY_FRAME) != 0
+                    ? SAMPLE_FLAG_SYNC : 0;
+        }
+
+        @Override
+        public boolean advance() {
+            if (mSample >= mSamples.size()) {
+                return false;
+            }
+            mSample++;
+            return mSample < mSamples.size();
+        }
+
+        @Override
+        public void seekTo(long timeUs) {
+            mSample = 0;
+            for (int i = 0; i < mSamples.size() && mSamples.get(i).presentationTimeUs <= timeUs; i++) {
+                if ((mSamples.get(i).flags & VideoCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                    mSample = i;
+                }
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * An output on its way: the input it came from is already consumed.
+     */
+    private static class Pending {
+        final long readyAtNanos;
+        final long presentationTimeUs;
+        final int flags;
+        final int frame;        // Decoders: the frame number
+        final long checksum;    // Encoders: CRC32 of the input frame
+
+        Pending(long readyAtNanos, long presentationTimeUs, int flags, int frame, long checksum) {
+            this.readyAtNanos = readyAtNanos;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+            this.frame = frame;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * A decoder or an encoder. All state is guarded by the instance, threads waiting for a buffer
+     * wait on it.
+     */
+    private class FakeCodec implements VideoCodec {
+        private final String mName;
+        private final boolean mEncoder;
+        // Of a sample for encoders, a frame for decoders
+        private final int mOutputSize;
+        private final long mLatencyNanos;
+        private final long mFrameIntervalNanos;
+        private final ByteBuffer[] mInputBuffers = new ByteBuffer[INPUT_BUFFERS];
+        private final ByteBuffer[] mOutputBuffers = new ByteBuffer[OUTPUT_BUFFERS];
+        private final BufferInfo[] mOutputInfos = new BufferInfo[OUTPUT_BUFFERS];
+        private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<>();
+        private final ArrayDeque<Integer> mFreeOutputs = new ArrayDeque<>();
+        private final ArrayDeque<Pending> mPending = new ArrayDeque<>();
+        private byte[] mInputCopy;
+        private final byte[] mFrame;
+        // Encoders: the packed format and the padded layout of the input buffers
+        private int mInputFormat;
+        private int mInputWidth;
+        private int mInputHeight;
+        private int mStride;
+        private int mSliceHeight;
+        private long mLastReadyNanos;
+        private long mLastKeyFrameUs = -1;
+        private boolean mFormatChanged;
+        private boolean mStarted;
+        private boolean mFailStart;
+        private Callback mCallback;
+        private Thread mCallbackThread;
+
+        FakeCodec(String name, boolean encoder, int inputSize, int outputSize, long latencyUs, int framesPerSecond) {
+            mName = name;
+            mEncoder = encoder;
+            mOutputSize = outputSize;
+            mLatencyNanos = latencyUs * 1000;
+            mFrameIntervalNanos = framesPerSecond > 0 ? 1000000000L / framesPerSecond : 0;
+            for (int i = 0; i < INPUT_BUFFERS; i++) {
+                mInputBuffers[i] = ByteBuffer.allocateDirect(inputSize);
+            }
+            for (int i = 0; i < OUTPUT_BUFFERS; i++) {
+                mOutputBuffers[i] = ByteBuffer.allocateDirect(outputSize);
+                mOutputInfos[i] = new BufferInfo();
+            }
+            mFrame = new byte[encoder ? 0 : mWidth * mHeight * 3 / 2];
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public synchronized void setCallback(Callback callback) {
+            if (mStarted) {
+                throw new IllegalStateException("setCallback after start");
+            }
+            mCallback = callback;
+        }
+
+        @Override
+        public void start() {
+            synchronized (this) {
+                if (mStarted) {
+                    throw new IllegalStateException(mName + " already started");
+                }
+                if (mFailStart) {
+                    throw new IllegalStateException(mName + ": no codec instance free");
+                }
+                mStarted = true;
+                mFormatChanged = true;
+                for (int i = 0; i < INPUT_BUFFERS; i++) {
+                    mFreeInputs.add(i);
+                }
+                for (int i = 0; i < OUTPUT_BUFFERS; i++) {
+                    mFreeOutputs.add(i);
+                }
+            }
+            if (mCallback != null) {
+                mCallbackThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatchCallbacks();
+                    }
+                }, mName + "-callback");
+                mCallbackThread.start();
+            }
+        }
+
+        @Override
+        public int getInputColorFormat() {
+            return mEncoder ? mEncoderColorFormat : 0;
+        }
+
+        void setInputLayout(int format, int width, int height, int stride, int sliceHeight) {
+            mInputFormat = format;
+            mInputWidth = width;
+            mInputHeight = height;
+            mStride = stride;
+            mSliceHeight = sliceHeight;
+            mInputCopy = new byte[YuvConverter.getFrameSize(format, width, height)];
+        }
+
+        @Override
+        public int getInputStride() {
+            return mEncoder ? mStride : mWidth;
+        }
+
+        @Override
+        public int getInputSliceHeight() {
+            return mEncoder ? mSliceHeight : mHeight;
+        }
+
+        @Override
+        public synchronized int dequeueInputBuffer(long timeoutUs) {
+            checkStarted();
+            long deadline = System.nanoTime() + timeoutUs * 1000;
+            while (mFreeInputs.isEmpty()) {
+                if (!waitUntil(deadline)) {
+                    return INFO_TRY_AGAIN_LATER;
+                }
+            }
+            return mFreeInputs.poll();
+        }
+
+        @Override
+        public synchronized ByteBuffer getInputBuffer(int index) {
+            return mInputBuffers[index];
+        }
+
+        @Override
+        public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            checkStarted();
+            ByteBuffer input = mInputBuffers[index];
+            int frame = -1;
+            long checksum = 0;
+            if (size > 0) {
+                if (mEncoder) {
+                    unpad(input, offset);
+                    checksum = checksum(mInputCopy, 0, mInputCopy.length);
+                } else {
+                    frame = input.getInt(offset);
+                }
+            }
+            long ready = System.nanoTime() + mLatencyNanos;
+            if (size > 0) {
+                ready = Math.max(ready, mLastReadyNanos + mFrameIntervalNanos);
+            }
+            // Outputs come in input order
+            ready = Math.max(ready, mLastReadyNanos);
+            mLastReadyNanos = ready;
+            mPending.add(new Pending(ready, presentationTimeUs, flags, frame, checksum));
+            mFreeInputs.add(index);
+            notifyAll();
+        }
+
+        /**
+         * Packs the padded frame at {@code offset} into {@link #mInputCopy}, so a frame checksums
+         * the same whatever the input layout.
+         */
+        private void unpad(ByteBuffer input, int offset) {
+            ByteBuffer data = input.duplicate();
+            int rowLength = mInputFormat == YuvConverter.FORMAT_P010 ? mInputWidth * 2 : mInputWidth;
+            int chromaHeight = mInputHeight / 2;
+            int lumaSize = mStride * mSliceHeight;
+            int copied = getRows(data, offset, mStride, rowLength, mInputHeight, 0);
+            if (mInputFormat != YuvConverter.FORMAT_I420 && mInputFormat != YuvConverter.FORMAT_YV12) {
+                getRows(data, offset + lumaSize, mStride, rowLength, chromaHeight, copied);
+            } else {
+                int chromaStride = mStride / 2;
+                copied = getRows(data, offset + lumaSize, chromaStride, mInputWidth / 2, chromaHeight, copied);
+                getRows(data, offset + lumaSize + chromaStride * (mSliceHeight / 2), chromaStride, mInputWidth / 2, chromaHeight, copied);
+            }
+        }
+
+        private int getRows(ByteBuffer data, int start, int stride, int rowLength, int rows, int copied) {
+            for (int row = 0; row < rows; row++) {
+                data.position(start + row * stride);
+                data.get(mInputCopy, copied, rowLength);
+                copied += rowLength;
+            }
+            return copied;
+        }
+
+        @Override
+        public synchronized int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+            checkStarted();
+            long deadline = System.nanoTime() + timeoutUs * 1000;
+            while (true) {
+                if (mFormatChanged) {
+                    mFormatChanged = false;
+                    return INFO_OUTPUT_FORMAT_CHANGED;
+                }
+                long wait = nanosUntilOutput();
+                if (wait == 0) {
+                    int index = produceOutput();
+                    BufferInfo produced = mOutputInfos[index];
+                    info.set(produced.offset, produced.size, produced.presentationTimeUs, produced.flags);
+                    return index;
+                }
+                if (!waitUntil(wait < 0 ? deadline : Math.min(deadline, System.nanoTime() + wait))
+                        && System.nanoTime() >= deadline) {
+                    return INFO_TRY_AGAIN_LATER;
+                }
+            }
+        }
+
+        @Override
+        public synchronized ByteBuffer getOutputBuffer(int index) {
+            return mOutputBuffers[index];
+        }
+
+        @Override
+        public synchronized YuvPlanes getOutputPlanes(int index, YuvPlanes planes) {
+            if (mEncoder) {
+                throw new IllegalStateException("Encoders put out compressed samples");
+            }
+            return setNv12Planes(mOutputBuffers[index], mWidth, mHeight, planes);
+        }
+
+        @Override
+        public VideoTrack getOutputTrack() {
+            VideoTrack track = createTrack();
+            if (mEncoder) {
+                track.mime = "video/avc";
+                track.maxInputSize = mOutputSize;
+            }
+            return track;
+        }
+
+        @Override
+        public synchronized void releaseOutputBuffer(int index) {
+            mFreeOutputs.add(index);
+            notifyAll();
+        }
+
+        @Override
+        public void stop() {
+            Thread callbackThread;
+            synchronized (this) {
+                mStarted = false;
+                mFreeInputs.clear();
+                mFreeOutputs.clear();
+                mPending.clear();
+                callbackThread = mCallbackThread;
+                mCallbackThread = null;
+                notifyAll();
+            }
+            if (callbackThread != null && callbackThread != Thread.currentThread()) {
+                try {
+                    callbackThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void release() {
+            stop();
+        }
+
+        private void checkStarted() {
+            if (!mStarted) {
+                throw new IllegalStateException(mName + " not started");
+            }
+        }
+
+        /**
+         * 0 if an output can be made now, -1 if that depends on another thread, otherwise the
+         * nanoseconds until the next one is due.
+         */
+        private long nanosUntilOutput() {
+            Pending next = mPending.peek();
+            if (next == null || mFreeOutputs.isEmpty()) {
+                return -1;
+            }
+            return Math.max(next.readyAtNanos - System.nanoTime(), 0);
+        }
+
+        private int produceOutput() {
+            if (!mEncoder && mPending.peek().frame == mDecoderErrorFrame && mDecoderErrorFrame >= 0) {
+                mStarted = false;
+                throw new IllegalStateException("Decoder error at frame " + mDecoderErrorFrame);
+            }
+            Pending pending = mPending.poll();
+            int index = mFreeOutputs.poll();
+            ByteBuffer output = mOutputBuffers[index];
+            output.clear();
+            int size = 0;
+            if (pending.frame >= 0) {
+                fillFrame(pending.frame, mFrame, mWidth, mHeight);
+                output.put(mFrame);
+                size = mFrame.length;
+            } else if (mEncoder && (pending.flags & BUFFER_FLAG_END_OF_STREAM) == 0) {
+                // Padding past the checksum, see setEncoderSamplePadding()
+                output.putLong(pending.checksum).position(mOutputSize);
+                size = mOutputSize;
+            }
+            output.flip();
+            int flags = pending.flags & BUFFER_FLAG_END_OF_STREAM;
+            if (mEncoder && size > 0 && isKeyFrame(pending.presentationTimeUs)) {
+                flags |= BUFFER_FLAG_KEY_FRAME;
+                mLastKeyFrameUs = pending.presentationTimeUs;
+            }
+            mOutputInfos[index].set(0, size, pending.presentationTimeUs, flags);
+            return index;
+        }
+
+        private boolean isKeyFrame(long presentationTimeUs) {
+            if (mEncoderKeyFrameIntervalUs <= 0) {
+                return presentationTimeUs == 0;
+            }
+            return mLastKeyFrameUs < 0 || presentationTimeUs - mLastKeyFrameUs >= mEncoderKeyFrameIntervalUs;
+        }
+
+        /**
+         * Waits on the instance until notified or {@code deadline}.
+         *
+         * @return false if the deadline has passed
+         */
+        private boolean waitUntil(long deadline) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining / 1000000, (int) (remaining % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Asynchronous mode: hands out inputs and outputs as they become available, calling the
+         * callback outside the lock.
+         */
+        private void dispatchCallbacks() {
+            BufferInfo info = new BufferInfo();
+            while (true) {
+                int input = -1;
+                int output = -1;
+                boolean formatChanged = false;
+                RuntimeException error = null;
+                synchronized (this) {
+                    while (mStarted) {
+                        if (mFormatChanged) {
+                            mFormatChanged = false;
+                            formatChanged = true;
+                            break;
+                        }
+                        if (!mFreeInputs.isEmpty()) {
+                            input = mFreeInputs.poll();
+                            break;
+                        }
+                        long wait = nanosUntilOutput();
+                        if (wait == 0) {
+                            try {
+                                output = produceOutput();
+                            } catch (RuntimeException e) {
+                                error = e;
+                                break;
+                            }
+                            BufferInfo produced = mOutputInfos[output];
+                            info.set(produced.offset, produced.size, produced.presentationTimeUs, produced.flags);
+                            break;
+                        }
+                        try {
+                            if (wait < 0) {
+                                wait();
+                            } else {
+                                wait(wait / 1000000, (int) (wait % 1000000));
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (!mStarted && error == null) {
+                        return;
+                    }
+                }
+                if (error != null) {
+                    mCallback.onError(this, error);
+                    return;
+                }
+                try {
+                    if (formatChanged) {
+                        mCallback.onOutputFormatChanged(this);
+                    } else if (input >= 0) {
+                        mCallback.onInputBufferAvailable(this, input);
+                    } else {
+                        mCallback.onOutputBufferAvailable(this, output, info);
+                    }
+                } catch (RuntimeException e) {
+                    mCallback.onError(this, e);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A written sample, as {@link FakeMuxer} saw it.
+     */
+    public static class Sample {
+        public final int trackIndex;
+        public final long presentationTimeUs;
+        public final int flags;
+        public final int size;
+        /** The first 8 bytes, the frame checksum for samples from the fake encoder */
+        public final long checksum;
+
+        Sample(int trackIndex, long presentationTimeUs, int flags, int size, long checksum) {
+            this.trackIndex = trackIndex;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Records tracks and samples, and holds callers to the MediaMuxer call order.
+     */
+    public static class FakeMuxer implements SampleMuxer {
+        private final String mPath;
+        private final List<VideoTrack> mTracks = new ArrayList<>();
+        private final List<Sample> mSamples = new ArrayList<>();
+        private final List<byte[]> mSampleData = new ArrayList<>();
+        private int mOrientationHint;
+        private boolean mStarted;
+        private boolean mStopped;
+        private boolean mReleased;
+
+        FakeMuxer(String path) {
+            mPath = path;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public synchronized List<VideoTrack> getTracks() {
+            return new ArrayList<>(mTracks);
+        }
+
+        public synchronized List<Sample> getSamples() {
+            return new ArrayList<>(mSamples);
+        }
+
+        synchronized List<byte[]> getSampleData() {
+            return new ArrayList<>(mSampleData);
+        }
+
+        public synchronized int getOrientationHint() {
+            return mOrientationHint;
+        }
+
+        /**
+         * Whether the file was finished, stopped after a start.
+         */
+        public synchronized boolean isFinished() {
+            return mStopped;
+        }
+
+        public synchronized boolean isReleased() {
+            return mReleased;
+        }
+
+        @Override
+        public synchronized void setOrientationHint(int degrees) {
+            if (mStarted) {
+                throw new IllegalStateException("setOrientationHint after start");
+            }
+            mOrientationHint = degrees;
+        }
+
+        @Override
+        public synchronized int addTrack(VideoTrack track) {
+            if (mStarted) {
+                throw new IllegalStateException("addTrack after start");
+            }
+            mTracks.add(track);
+            return mTracks.size() - 1;
+        }
+
+        @Override
+        public synchronized void start() {
+            if (mStarted || mTracks.isEmpty()) {
+                throw new IllegalStateException("start with " + mTracks.size() + " tracks, started " + mStarted);
+            }
+            mStarted = true;
+        }
+
+        @Override
+        public synchronized void writeSampleData(int trackIndex, ByteBuffer buffer, VideoCodec.BufferInfo info) {
+            if (!mStarted || mStopped) {
+                throw new IllegalStateException("writeSampleData while not started");
+            }
+            if (trackIndex < 0 || trackIndex >= mTracks.size()) {
+                throw new IllegalArgumentException("No track " + trackIndex);
+            }
+            long checksum = info.size >= CHECKSUM_SIZE ? buffer.getLong(info.offset) : 0;
+            mSamples.add(new Sample(trackIndex, info.presentationTimeUs, info.flags, info.size, checksum));
+            byte[] data = new byte[info.size];
+            ByteBuffer sample = buffer.duplicate();
+            sample.limit(info.offset + info.size).position(info.offset);
+            sample.get(data);
+            mSampleData.add(data);
+        }
+
+        @Override
+        public synchronized void stop() {
+            if (!mStarted || mStopped) {
+                throw new IllegalStateException("stop while not started");
+            }
+            mStopped = true;
+        }
+
+        @Override
+        public synchronized void release() {
+            mReleased = true;
+        }
+    }
+
+    /**
+     * Hands out the frames {@link #fillFrame} makes, numbered from 0 and timed like the clip's
+     * samples, on a thread of its own. Ends after the last frame of the clip, or at the first
+     * frame after {@link #stop()}.
+     */
+    public class FakeFrameSource implements FrameSource {
+        private final boolean mRealTime;
+        private volatile boolean mStopped;
+        private volatile int mFramesDelivered;
+        private Thread mThread;
+
+        FakeFrameSource(boolean realTime) {
+            mRealTime = realTime;
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public synchronized void start(final Callback callback) {
+            if (mThread != null) {
+                throw new IllegalStateException("Already started");
+            }
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deliverFrames(callback);
+                }
+            }, "FakeFrameSource");
+            mThread.start();
+        }
+
+        @Override
+        public void stop() {
+            mStopped = true;
+        }
+
+        public int getFramesDelivered() {
+            return mFramesDelivered;
+        }
+
+        private void deliverFrames(Callback callback) {
+            byte[] frame = new byte[mWidth * mHeight * 3 / 2];
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            YuvPlanes planes = new YuvPlanes();
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < mFrameCount && !mStopped; i++) {
+                if (mRealTime) {
+                    long waitNanos = startNanos + getSampleTimeUs(i) * 1000 - System.nanoTime();
+                    if (waitNanos > 0) {
+                        try {
+                            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                fillFrame(i, frame, mWidth, mHeight);
+                callback.onFrame(setNv12Planes(buffer, mWidth, mHeight, planes), getSampleTimeUs(i));
+                mFramesDelivered = i + 1;
+            }
+            callback.onEnd();
+        }
+    }
+}
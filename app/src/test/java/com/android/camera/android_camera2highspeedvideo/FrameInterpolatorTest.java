@@ -0,0 +1,102 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Moves a noise picture by a known amount between two frames and checks that the in-between
+ * frames are the picture moved part of the way.
+ */
+public class FrameInterpolatorTest {
+    private static final int WIDTH = 128;
+    private static final int HEIGHT = 96;
+    // Motion from the previous frame to the next one, in luma pixels
+    private static final int DX = 8;
+    private static final int DY = -8;
+    private static final int MARGIN = 24;
+
+    private static int noise(int x, int y, int seed) {
+        int h = x * 73856093 ^ y * 19349663 ^ seed * 83492791;
+        h ^= h >>> 13;
+        h *= 0x5bd1e995;
+        return (h ^ (h >>> 15)) & 0xFF;
+    }
+
+    /**
+     * NV21 frame showing the picture moved by {@code (-x, -y)}, so {@code frame(x, y)} at
+     * {@code p} is {@code frame(0, 0)} at {@code p + (x, y)}.
+     */
+    private static byte[] frame(int x, int y) {
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                frame[row * WIDTH + col] = (byte) noise(col + x, row + y, 0);
+            }
+        }
+        int offset = WIDTH * HEIGHT;
+        for (int row = 0; row < HEIGHT / 2; row++) {
+            for (int col = 0; col < WIDTH / 2; col++) {
+                frame[offset++] = (byte) noise(col + x / 2, row + y / 2, 1);
+                frame[offset++] = (byte) noise(col + x / 2, row + y / 2, 2);
+            }
+        }
+        return frame;
+    }
+
+    private static void assertInteriorEquals(String message, byte[] expected, byte[] actual) {
+        for (int row = MARGIN; row < HEIGHT - MARGIN; row++) {
+            for (int col = MARGIN; col < WIDTH - MARGIN; col++) {
+                int i = row * WIDTH + col;
+                assertEquals(message + " luma at " + col + "," + row, expected[i], actual[i]);
+            }
+        }
+        for (int row = MARGIN / 2; row < (HEIGHT - MARGIN) / 2; row++) {
+            for (int col = MARGIN; col < WIDTH - MARGIN; col++) {
+                int i = WIDTH * HEIGHT + row * WIDTH + col;
+                assertEquals(message + " chroma at " + col + "," + row, expected[i], actual[i]);
+            }
+        }
+    }
+
+    @Test
+    public void followsTranslation() {
+        byte[] previous = frame(0, 0);
+        byte[] next = frame(DX, DY);
+        FrameInterpolator interpolator = new FrameInterpolator(WIDTH, HEIGHT);
+        interpolator.setFrames(previous, next);
+
+        byte[] out = new byte[previous.length];
+        interpolator.interpolate(1, 2, out);
+        assertInteriorEquals("1/2", frame(DX / 2, DY / 2), out);
+        interpolator.interpolate(1, 4, out);
+        assertInteriorEquals("1/4", frame(DX / 4, DY / 4), out);
+        interpolator.interpolate(0, 4, out);
+        assertArrayEquals(previous, out);
+        assertEquals(3, interpolator.getFrameCount());
+    }
+
+    @Test
+    public void reusesPreviousPyramid() {
+        byte[] first = frame(0, 0);
+        byte[] second = frame(DX, DY);
+        byte[] third = frame(2 * DX, 2 * DY);
+        FrameInterpolator interpolator = new FrameInterpolator(WIDTH, HEIGHT);
+        interpolator.setFrames(first, second);
+        interpolator.setFrames(second, third);
+
+        byte[] out = new byte[first.length];
+        interpolator.interpolate(1, 2, out);
+        assertInteriorEquals("second pair", frame(DX + DX / 2, DY + DY / 2), out);
+    }
+
+    @Test
+    public void staticSceneIsCopied() {
+        byte[] still = frame(3, 5);
+        FrameInterpolator interpolator = new FrameInterpolator(WIDTH, HEIGHT);
+        interpolator.setFrames(still, still.clone());
+        byte[] out = new byte[still.length];
+        interpolator.interpolate(1, 3, out);
+        assertArrayEquals(still, out);
+    }
+}
@@ -0,0 +1,144 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs frames through a few stages and checks order, content, timestamps, and that every pooled
+ * frame comes back to the pool.
+ */
+public class FramePipelineTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 4;
+    private static final int FRAMES = 5;
+
+    private static class Collector implements FrameProcessor {
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Integer> values = new ArrayList<>();
+        boolean ended;
+
+        @Override
+        public void onStart(int width, int height) {
+            assertEquals(WIDTH, width);
+            assertEquals(HEIGHT, height);
+        }
+
+        @Override
+        public void process(FramePool.Frame frame, long presentationTimeUs, Output output) {
+            timestamps.add(presentationTimeUs);
+            values.add(frame.data[frame.data.length - 1] & 0xFF);
+        }
+
+        @Override
+        public void onEnd(Output output) {
+            ended = true;
+        }
+    }
+
+    /**
+     * Adds one to every byte, on a copy.
+     */
+    private static class Increment implements FrameProcessor {
+        private final FramePool mPool;
+
+        Increment(FramePool pool) {
+            mPool = pool;
+        }
+
+        @Override
+        public void onStart(int width, int height) {
+        }
+
+        @Override
+        public void process(FramePool.Frame frame, long presentationTimeUs, Output output) {
+            FramePool.Frame copy = mPool.acquire(frame.data.length);
+            for (int i = 0; i < copy.data.length; i++) {
+                copy.data[i] = (byte) (frame.data[i] + 1);
+            }
+            output.emit(copy, presentationTimeUs);
+            copy.release();
+        }
+
+        @Override
+        public void onEnd(Output output) {
+        }
+    }
+
+    private static void submitFrames(FramePipeline pipeline, FramePool pool) {
+        for (int i = 0; i < FRAMES; i++) {
+            FramePool.Frame frame = pool.acquire(WIDTH * HEIGHT * 3 / 2);
+            Arrays.fill(frame.data, (byte) (i * 10));
+            pipeline.submit(frame, i * 100L);
+            frame.release();
+        }
+    }
+
+    private static void assertAllReturned(FramePool pool) {
+        long allocated = pool.getMissCount();
+        assertEquals(0, pool.getDiscardCount());
+        List<FramePool.Frame> frames = new ArrayList<>();
+        for (long i = 0; i < allocated; i++) {
+            frames.add(pool.acquire(WIDTH * HEIGHT * 3 / 2));
+        }
+        assertEquals("frames leaked", allocated, pool.getMissCount());
+    }
+
+    @Test
+    public void runsStagesInOrder() {
+        FramePool pool = new FramePool(64);
+        Collector collector = new Collector();
+        FramePipeline pipeline = new FramePipeline.Builder()
+                .setQueueDepth(1)
+                .addStage("increment", new Increment(pool))
+                .addStage("interpolate", new InterpolationProcessor(MediaCodecProc.PROCESSING_MODE_BLEND, 2,
+                        YuvConverter.FORMAT_NV21, pool))
+                .addStage("collect", collector)
+                .build();
+        pipeline.start(WIDTH, HEIGHT);
+        submitFrames(pipeline, pool);
+        pipeline.finish();
+
+        assertTrue(collector.ended);
+        assertFalse(pipeline.isFailed());
+        List<Long> timestamps = new ArrayList<>();
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 2 * FRAMES - 1; i++) {
+            timestamps.add(i * 50L);
+            values.add(i * 5 + 1);
+        }
+        assertEquals(timestamps, collector.timestamps);
+        assertEquals(values, collector.values);
+        assertAllReturned(pool);
+    }
+
+    @Test
+    public void failedStageDropsFrames() {
+        FramePool pool = new FramePool(64);
+        Collector collector = new Collector();
+        FramePipeline pipeline = new FramePipeline.Builder()
+                .addStage("fail", new Increment(pool) {
+                    @Override
+                    public void process(FramePool.Frame frame, long presentationTimeUs, Output output) {
+                        if (presentationTimeUs > 0) {
+                            throw new IllegalStateException("boom");
+                        }
+                        super.process(frame, presentationTimeUs, output);
+                    }
+                })
+                .addStage("collect", collector)
+                .build();
+        pipeline.start(WIDTH, HEIGHT);
+        submitFrames(pipeline, pool);
+        pipeline.finish();
+
+        assertTrue(pipeline.isFailed());
+        assertFalse(pipeline.submit(pool.acquire(1), 0));
+        assertEquals(1, collector.timestamps.size());
+        assertTrue(collector.ended);
+    }
+}
@@ -0,0 +1,130 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hands frames through {@link FrameRing} between two threads, and checks that either side
+ * waiting on the other is woken by {@link FrameRing#close()}.
+ */
+public class FrameRingTest {
+    private static final int FRAME_SIZE = 16;
+    private static final long WAIT_MS = 100;
+
+    /**
+     * Runs {@link FrameRing#obtain()} or {@link FrameRing#take()} on its own thread.
+     */
+    private static Thread startWaiting(final FrameRing ring, final boolean producer, final AtomicReference<byte[]> result) {
+        // Not null until the call returned
+        result.set(new byte[0]);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(producer ? ring.obtain() : ring.take());
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void fill(FrameRing ring) {
+        for (int i = 0; i < ring.getDepth(); i++) {
+            assertNotNull(ring.obtain());
+            ring.push();
+        }
+    }
+
+    @Test
+    public void framesArriveInOrder() throws InterruptedException {
+        final FrameRing ring = new FrameRing(3, FRAME_SIZE);
+        final int frames = 10000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < frames; i++) {
+                    byte[] slot = ring.obtain();
+                    slot[0] = (byte) i;
+                    slot[FRAME_SIZE - 1] = (byte) (i >> 8);
+                    ring.push();
+                }
+                ring.close();
+            }
+        });
+        producer.start();
+        int taken = 0;
+        byte[] slot;
+        while ((slot = ring.take()) != null) {
+            assertTrue(ring.size() <= ring.getDepth());
+            assertEquals("frame " + taken, (byte) taken, slot[0]);
+            assertEquals("frame " + taken, (byte) (taken >> 8), slot[FRAME_SIZE - 1]);
+            ring.release();
+            taken++;
+        }
+        producer.join();
+        assertEquals(frames, taken);
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void obtainWaitsWhileFull() throws InterruptedException {
+        FrameRing ring = new FrameRing(2, FRAME_SIZE);
+        fill(ring);
+        AtomicReference<byte[]> obtained = new AtomicReference<>();
+        Thread producer = startWaiting(ring, true, obtained);
+        producer.join(WAIT_MS);
+        assertTrue("obtain() returned on a full ring", producer.isAlive());
+
+        // Freeing the oldest slot hands it to the producer
+        byte[] oldest = ring.take();
+        ring.release();
+        producer.join(WAIT_MS * 10);
+        assertFalse(producer.isAlive());
+        assertSame(oldest, obtained.get());
+    }
+
+    @Test
+    public void closeWakesWaitingProducer() throws InterruptedException {
+        FrameRing ring = new FrameRing(2, FRAME_SIZE);
+        fill(ring);
+        AtomicReference<byte[]> obtained = new AtomicReference<>();
+        Thread producer = startWaiting(ring, true, obtained);
+        producer.join(WAIT_MS);
+        assertTrue(producer.isAlive());
+
+        ring.close();
+        producer.join(WAIT_MS * 10);
+        assertFalse(producer.isAlive());
+        assertNull(obtained.get());
+        // What was pushed before can still be consumed
+        assertEquals(2, ring.size());
+    }
+
+    @Test
+    public void closeWakesWaitingConsumer() throws InterruptedException {
+        FrameRing ring = new FrameRing(2, FRAME_SIZE);
+        AtomicReference<byte[]> taken = new AtomicReference<>();
+        Thread consumer = startWaiting(ring, false, taken);
+        consumer.join(WAIT_MS);
+        assertTrue("take() returned on an empty ring", consumer.isAlive());
+
+        ring.close();
+        consumer.join(WAIT_MS * 10);
+        assertFalse(consumer.isAlive());
+        assertNull(taken.get());
+    }
+
+    @Test
+    public void closedRingIsDrainedFirst() {
+        FrameRing ring = new FrameRing(2, FRAME_SIZE);
+        fill(ring);
+        ring.close();
+        for (int i = 0; i < ring.getDepth(); i++) {
+            assertNotNull(ring.take());
+            ring.release();
+        }
+        assertNull(ring.take());
+    }
+}
@@ -0,0 +1,111 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes frames across several regions and reads them back, from the writer and after reopening.
+ */
+public class FrameStoreTest {
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 16;
+    private static final int FRAMES = 7;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("store", FrameStore.FILE_SUFFIX);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static byte[] frame(int index, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 3 + index * 31);
+        }
+        return data;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    private static void fill(FrameStore store) throws IOException {
+        for (int i = 0; i < FRAMES; i++) {
+            if ((i & 1) == 0) {
+                store.append(frame(i, store.getFrameSize()), i * 4166L);
+            } else {
+                ByteBuffer buffer = store.obtain();
+                buffer.put(frame(i, store.getFrameSize()));
+                store.commit(i * 4166L);
+            }
+        }
+    }
+
+    @Test
+    public void readsBackAcrossRegions() throws IOException {
+        FrameStore store = FrameStore.create(mFile, WIDTH, HEIGHT, YuvConverter.FORMAT_NV21, 3);
+        fill(store);
+        assertEquals(FRAMES, store.getFrameCount());
+        for (int i = FRAMES - 1; i >= 0; i--) {
+            assertArrayEquals(frame(i, store.getFrameSize()), bytes(store.getFrame(i)));
+        }
+        store.close();
+
+        store = FrameStore.open(mFile);
+        assertEquals(WIDTH, store.getWidth());
+        assertEquals(HEIGHT, store.getHeight());
+        assertEquals(YuvConverter.FORMAT_NV21, store.getFormat());
+        assertEquals(FRAMES, store.getFrameCount());
+        for (int i = 0; i < FRAMES; i++) {
+            assertArrayEquals(frame(i, store.getFrameSize()), bytes(store.getFrame(i)));
+            assertEquals(i * 4166L, store.getPresentationTimeUs(i));
+        }
+        store.close();
+    }
+
+    @Test
+    public void createReplacesExistingStore() throws IOException {
+        FrameStore store = FrameStore.create(mFile, WIDTH, HEIGHT, YuvConverter.FORMAT_P010);
+        fill(store);
+        store.close();
+
+        store = FrameStore.create(mFile, WIDTH, HEIGHT, YuvConverter.FORMAT_I420);
+        assertEquals(0, store.getFrameCount());
+        store.close();
+        store = FrameStore.open(mFile);
+        assertEquals(YuvConverter.FORMAT_I420, store.getFormat());
+        assertEquals(0, store.getFrameCount());
+        store.close();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsUncommittedFrame() throws IOException {
+        FrameStore store = FrameStore.create(mFile, WIDTH, HEIGHT, YuvConverter.FORMAT_NV21);
+        try {
+            store.obtain();
+            store.getFrame(0);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        FrameStore.open(mFile);
+    }
+}
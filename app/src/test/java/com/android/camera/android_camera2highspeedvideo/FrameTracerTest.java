@@ -0,0 +1,58 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the event ring and the Chrome trace output.
+ */
+public class FrameTracerTest {
+    private static String toJson(FrameTracer tracer) throws IOException {
+        StringWriter writer = new StringWriter();
+        tracer.writeJson(writer);
+        return writer.toString();
+    }
+
+    private static int countOf(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void disabledRecordsNothing() throws IOException {
+        FrameTracer tracer = new FrameTracer(4);
+        long start = tracer.begin("decode");
+        assertEquals(0, start);
+        tracer.end("decode", 0, start);
+        assertEquals(0, tracer.getEventCount());
+        assertEquals("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n]}\n", toJson(tracer));
+    }
+
+    @Test
+    public void keepsMostRecentEvents() throws IOException {
+        FrameTracer tracer = new FrameTracer(4);
+        tracer.setEnabled(true);
+        for (int i = 0; i < 6; i++) {
+            tracer.end("con\"vert", i, tracer.begin("con\"vert"));
+        }
+        assertEquals(6, tracer.getEventCount());
+
+        String json = toJson(tracer);
+        assertEquals(1, countOf(json, "\"ph\":\"M\""));
+        assertEquals(4, countOf(json, "\"ph\":\"X\""));
+        assertEquals(4, countOf(json, "\"name\":\"con\\\"vert\""));
+        assertFalse(json.contains("\"frame\":1}"));
+        assertTrue(json.contains("\"frame\":2}"));
+        assertTrue(json.contains("\"frame\":5}"));
+
+        tracer.clear();
+        assertEquals(0, countOf(toJson(tracer), "\"ph\":\"X\""));
+    }
+}
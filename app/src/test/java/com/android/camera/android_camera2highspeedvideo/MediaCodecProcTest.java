@@ -0,0 +1,429 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import android.media.MediaCodecInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs whole jobs on {@link FakeMediaBackend} and checks what reaches the muxer: which frames,
+ * in which order, with which timestamps.
+ */
+public class MediaCodecProcTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 32;
+    private static final int FRAMES = 12;
+    private static final int CAPTURE_FPS = 120;
+    private static final int PLAYBACK_FPS = 30;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("proc").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mDir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private MediaCodecProc createProc(FakeMediaBackend backend, int upRatio) {
+        return new MediaCodecProc(new File(mDir, "clip.mp4").getPath(), CAPTURE_FPS, upRatio, backend);
+    }
+
+    private static FakeMediaBackend.FakeMuxer onlyMuxer(FakeMediaBackend backend) {
+        List<FakeMediaBackend.FakeMuxer> muxers = backend.getMuxers();
+        assertEquals(1, muxers.size());
+        FakeMediaBackend.FakeMuxer muxer = muxers.get(0);
+        assertTrue("muxer not finished", muxer.isFinished());
+        assertTrue(muxer.isReleased());
+        return muxer;
+    }
+
+    /**
+     * Every decoded frame reaches the NV12 encoder unchanged, in order, at 30fps.
+     */
+    private static void assertFramesEncoded(FakeMediaBackend backend) {
+        List<FakeMediaBackend.Sample> samples = onlyMuxer(backend).getSamples();
+        assertEquals(FRAMES, samples.size());
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < FRAMES; i++) {
+            FakeMediaBackend.fillFrame(i, frame, WIDTH, HEIGHT);
+            FakeMediaBackend.Sample sample = samples.get(i);
+            assertEquals("frame " + i, FakeMediaBackend.checksum(frame, 0, frame.length), sample.checksum);
+            assertEquals(i * 1000000L / PLAYBACK_FPS, sample.presentationTimeUs);
+        }
+    }
+
+    @Test
+    public void pollingDecodeEncodesEveryFrame() {
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS)
+                .setDecoderTiming(2000, 0)
+                .setEncoderTiming(5000, 0);
+        MediaCodecProc proc = createProc(backend, 1);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_NONE);
+        proc.process();
+        assertFramesEncoded(backend);
+        assertTrue(proc.getDecodeFps() > 0);
+
+        PipelineMetrics metrics = proc.getMetrics();
+        assertEquals(FRAMES, metrics.getFramesDecoded());
+        assertEquals(FRAMES, metrics.getFramesEncoded());
+        assertEquals(0, metrics.getFramesDropped());
+        assertEquals(FRAMES, metrics.getStage(PipelineMetrics.STAGE_EXTRACT).getCount());
+        assertEquals(FRAMES, metrics.getStage(PipelineMetrics.STAGE_MUX).getCount());
+        // The fake encoder holds every frame for 5ms
+        assertEquals(FRAMES, metrics.getStage(PipelineMetrics.STAGE_ENCODE).getCount());
+        assertTrue(metrics.getStage(PipelineMetrics.STAGE_ENCODE).getMeanNanos() >= 5000 * 1000);
+    }
+
+    @Test
+    public void asyncDecodeEncodesEveryFrame() {
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS)
+                .setDecoderTiming(2000, 0)
+                .setEncoderTiming(5000, 0);
+        MediaCodecProc proc = createProc(backend, 1);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_NONE);
+        proc.setAsyncDecode(true);
+        proc.setTracing(true);
+        proc.process();
+        assertFramesEncoded(backend);
+        assertTrue(proc.getTracer().getEventCount() > 0);
+        assertTrue(new File(mDir, "trace.json").isFile());
+    }
+
+    @Test
+    public void pollingAndAsyncDecodeCompareOnTheSameClip() {
+        // A decoder that takes 3ms per frame, with the encoder no bottleneck
+        double[] fps = new double[2];
+        for (int i = 0; i < 2; i++) {
+            FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS)
+                    .setDecoderTiming(3000, 0);
+            MediaCodecProc proc = createProc(backend, 1);
+            proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_NONE);
+            proc.setAsyncDecode(i == 1);
+            assertTrue(proc.process());
+            assertFramesEncoded(backend);
+            fps[i] = proc.getDecodeFps();
+            assertTrue(fps[i] > 0);
+        }
+        System.out.println(String.format(Locale.US, "decode fps with 3ms decoder latency: polling %.1f, async %.1f", fps[0], fps[1]));
+    }
+
+    @Test
+    public void decoderErrorFailsTheJob() {
+        for (boolean async : new boolean[]{false, true}) {
+            FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS)
+                    .setDecoderErrorAt(FRAMES / 2);
+            MediaCodecProc proc = createProc(backend, 1);
+            proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_NONE);
+            proc.setAsyncDecode(async);
+            assertFalse(async ? "async" : "polling", proc.process());
+            assertEquals(FRAMES / 2, proc.getMetrics().getFramesDecoded());
+        }
+    }
+
+    @Test
+    public void decoderStartFailureReleasesTheEncoder() {
+        for (boolean async : new boolean[]{false, true}) {
+            FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS)
+                    .setDecoderStartErrorAt(1);
+            MediaCodecProc proc = createProc(backend, 1);
+            proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_NONE);
+            proc.setAsyncDecode(async);
+            assertFalse(async ? "async" : "polling", proc.process());
+            assertEquals(0, proc.getMetrics().getFramesDecoded());
+            for (FakeMediaBackend.FakeMuxer muxer : backend.getMuxers()) {
+                assertTrue(muxer.isReleased());
+            }
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                assertFalse(thread.getName(), thread.getName().startsWith("MediaCodecProc"));
+            }
+        }
+    }
+
+    @Test
+    public void directEncodeEncodesEveryFrame() {
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS);
+        MediaCodecProc proc = createProc(backend, 1);
+        proc.setDirectEncode(true);
+        proc.process();
+        assertFramesEncoded(backend);
+    }
+
+    @Test
+    public void framesAreWrittenInTheFormatTheyAreUsedIn() {
+        // Processed frames are I420 from the decoder on and converted once more for the encoder
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS);
+        MediaCodecProc proc = createProc(backend, 1);
+        proc.setFrameFormat(YuvConverter.FORMAT_I420);
+        final byte[] nv12 = new byte[WIDTH * HEIGHT * 3 / 2];
+        final byte[] i420 = new byte[nv12.length];
+        final int[] processed = new int[1];
+        proc.addFrameProcessor(new FrameProcessor() {
+            @Override
+            public void onStart(int width, int height) {
+            }
+
+            @Override
+            public void process(FramePool.Frame frame, long presentationTimeUs, Output output) {
+                FakeMediaBackend.fillFrame(processed[0]++, nv12, WIDTH, HEIGHT);
+                YuvConverter.convert(nv12, YuvConverter.FORMAT_NV12, i420, YuvConverter.FORMAT_I420, WIDTH, HEIGHT);
+                assertArrayEquals(i420, Arrays.copyOf(frame.data, i420.length));
+                output.emit(frame, presentationTimeUs);
+            }
+
+            @Override
+            public void onEnd(Output output) {
+            }
+        });
+        proc.process();
+        assertEquals(FRAMES, processed[0]);
+        assertFramesEncoded(backend);
+
+        // Unprocessed frames go from the decoder straight into the I420 encoder's layout
+        backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS)
+                .setEncoderColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar);
+        proc = createProc(backend, 1);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_NONE);
+        proc.process();
+        List<FakeMediaBackend.Sample> samples = onlyMuxer(backend).getSamples();
+        assertEquals(FRAMES, samples.size());
+        for (int i = 0; i < FRAMES; i++) {
+            FakeMediaBackend.fillFrame(i, nv12, WIDTH, HEIGHT);
+            YuvConverter.convert(nv12, YuvConverter.FORMAT_NV12, i420, YuvConverter.FORMAT_I420, WIDTH, HEIGHT);
+            assertEquals("frame " + i, FakeMediaBackend.checksum(i420, 0, i420.length), samples.get(i).checksum);
+        }
+    }
+
+    @Test
+    public void framesAreLaidOutInTheEncodersStrideAndSliceHeight() {
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS)
+                .setEncoderInputPadding(32, 16);
+        MediaCodecProc proc = createProc(backend, 1);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_NONE);
+        proc.process();
+        assertFramesEncoded(backend);
+
+        backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS)
+                .setEncoderColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar)
+                .setEncoderInputPadding(32, 16);
+        proc = createProc(backend, 1);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_NONE);
+        proc.process();
+        List<FakeMediaBackend.Sample> samples = onlyMuxer(backend).getSamples();
+        assertEquals(FRAMES, samples.size());
+        byte[] nv12 = new byte[WIDTH * HEIGHT * 3 / 2];
+        byte[] i420 = new byte[nv12.length];
+        for (int i = 0; i < FRAMES; i++) {
+            FakeMediaBackend.fillFrame(i, nv12, WIDTH, HEIGHT);
+            YuvConverter.convert(nv12, YuvConverter.FORMAT_NV12, i420, YuvConverter.FORMAT_I420, WIDTH, HEIGHT);
+            assertEquals("frame " + i, FakeMediaBackend.checksum(i420, 0, i420.length), samples.get(i).checksum);
+        }
+    }
+
+    @Test
+    public void blendAddsFramesBetweenPairs() {
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS)
+                .setEncoderColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar);
+        MediaCodecProc proc = createProc(backend, 2);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_BLEND);
+        proc.process();
+        List<FakeMediaBackend.Sample> samples = onlyMuxer(backend).getSamples();
+        assertEquals(2 * FRAMES - 1, samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            assertEquals(i * 1000000L / PLAYBACK_FPS, samples.get(i).presentationTimeUs);
+        }
+    }
+
+    @Test
+    public void parallelSegmentsMatchSerialOutput() {
+        // A sync sample every 8 frames, so 40 frames split into several segments
+        int frames = 40;
+        int frameRate = 8;
+        FakeMediaBackend serialBackend = new FakeMediaBackend(WIDTH, HEIGHT, frames, frameRate);
+        MediaCodecProc serial = createProc(serialBackend, 2);
+        serial.setProcessingMode(MediaCodecProc.PROCESSING_MODE_BLEND);
+        serial.process();
+        List<FakeMediaBackend.Sample> expected = onlyMuxer(serialBackend).getSamples();
+        assertEquals(2 * frames - 1, expected.size());
+
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, frames, frameRate);
+        MediaCodecProc proc = createProc(backend, 2);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_BLEND);
+        proc.setParallelSegments(3);
+        proc.process();
+        List<FakeMediaBackend.FakeMuxer> muxers = backend.getMuxers();
+        assertEquals("3 segments and the stitched file", 4, muxers.size());
+        FakeMediaBackend.FakeMuxer stitched = muxers.get(3);
+        assertEquals(new File(mDir, "output.mp4").getPath(), stitched.getPath());
+        assertTrue(stitched.isFinished());
+        List<FakeMediaBackend.Sample> samples = stitched.getSamples();
+        assertEquals(expected.size(), samples.size());
+        int keyFrames = 0;
+        for (int i = 0; i < samples.size(); i++) {
+            assertEquals("frame " + i, expected.get(i).checksum, samples.get(i).checksum);
+            assertEquals(i * 1000000L / PLAYBACK_FPS, samples.get(i).presentationTimeUs);
+            if ((samples.get(i).flags & VideoCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                keyFrames++;
+            }
+        }
+        assertEquals("one key frame per segment", 3, keyFrames);
+    }
+
+    @Test
+    public void segmentThrowingFallsBackToSerial() {
+        int frames = 40;
+        int frameRate = 8;
+        // One of the three segments fails, the serial pass after them gets the fourth decoder
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, frames, frameRate)
+                .setDecoderCreateErrorAt(3);
+        MediaCodecProc proc = createProc(backend, 1);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_NONE);
+        proc.setParallelSegments(3);
+        final AtomicReference<Throwable> uncaught = new AtomicReference<>();
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e) {
+                uncaught.set(e);
+            }
+        });
+        try {
+            assertTrue(proc.process());
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+        assertNull("a worker died", uncaught.get());
+        List<FakeMediaBackend.FakeMuxer> muxers = backend.getMuxers();
+        FakeMediaBackend.FakeMuxer serial = muxers.get(muxers.size() - 1);
+        assertEquals(new File(mDir, "output.mp4").getPath(), serial.getPath());
+        assertTrue(serial.isFinished());
+        assertEquals(frames, serial.getSamples().size());
+    }
+
+    @Test
+    public void checkpointedJobResumesAfterFailure() {
+        int frames = 40;
+        int frameRate = 8;
+        FakeMediaBackend serialBackend = new FakeMediaBackend(WIDTH, HEIGHT, frames, frameRate);
+        MediaCodecProc serial = createProc(serialBackend, 2);
+        serial.setProcessingMode(MediaCodecProc.PROCESSING_MODE_BLEND);
+        serial.process();
+        List<FakeMediaBackend.Sample> expected = onlyMuxer(serialBackend).getSamples();
+
+        // Segments of two sync intervals: 0-16, 16-32, 32-40. The third one fails.
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, frames, frameRate).setEncoderLimit(2);
+        MediaCodecProc proc = createProc(backend, 2);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_BLEND);
+        proc.setCheckpointInterval(2 * 1000000L);
+        proc.process();
+        File journal = new File(mDir, "checkpoint.journal");
+        assertTrue(journal.isFile());
+        assertEquals(3, backend.getEncodersCreated());
+
+        // Restarted, only the last segment is processed again
+        backend.setEncoderLimit(0);
+        proc = createProc(backend, 2);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_BLEND);
+        proc.setCheckpointInterval(2 * 1000000L);
+        proc.process();
+        assertEquals(4, backend.getEncodersCreated());
+        assertFalse(journal.exists());
+        List<FakeMediaBackend.FakeMuxer> muxers = backend.getMuxers();
+        FakeMediaBackend.FakeMuxer stitched = muxers.get(muxers.size() - 1);
+        assertEquals(new File(mDir, "output.mp4").getPath(), stitched.getPath());
+        List<FakeMediaBackend.Sample> samples = stitched.getSamples();
+        assertEquals(expected.size(), samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            assertEquals("frame " + i, expected.get(i).checksum, samples.get(i).checksum);
+            assertEquals(i * 1000000L / PLAYBACK_FPS, samples.get(i).presentationTimeUs);
+        }
+    }
+
+    @Test
+    public void stitchesSegmentsWithBiggerSamplesThanTheFirst() {
+        // Segments 0-16, 16-32 and 32-40 one after the other, each encoder's samples 100 bytes
+        // bigger than the last one's
+        int frames = 40;
+        int frameRate = 8;
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, frames, frameRate).setEncoderSamplePadding(100);
+        MediaCodecProc proc = createProc(backend, 1);
+        proc.setCheckpointInterval(2 * 1000000L);
+        proc.process();
+        List<FakeMediaBackend.FakeMuxer> muxers = backend.getMuxers();
+        assertEquals("3 segments and the stitched file", 4, muxers.size());
+        FakeMediaBackend.FakeMuxer stitched = muxers.get(3);
+        assertEquals(new File(mDir, "output.mp4").getPath(), stitched.getPath());
+        assertTrue(stitched.isFinished());
+        List<FakeMediaBackend.Sample> samples = stitched.getSamples();
+        assertEquals(frames, samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            assertEquals("frame " + i, 8 + i / 16 * 100, samples.get(i).size);
+        }
+    }
+
+    @Test
+    public void streamedFramesAreEncodedAsTheyArrive() {
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS)
+                .setEncoderTiming(1000, 0);
+        MediaCodecProc proc = createProc(backend, 1);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_NONE);
+        FakeMediaBackend.FakeFrameSource source = backend.createFrameSource(true);
+        assertTrue(proc.processStream(source));
+        assertEquals(FRAMES, source.getFramesDelivered());
+        assertFramesEncoded(backend);
+        assertEquals(FRAMES, proc.getMetrics().getFramesDecoded());
+    }
+
+    @Test
+    public void streamedFramesAreInterpolated() {
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, FRAMES, CAPTURE_FPS);
+        MediaCodecProc proc = createProc(backend, 2);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_BLEND);
+        assertTrue(proc.processStream(backend.createFrameSource(false)));
+        List<FakeMediaBackend.Sample> samples = onlyMuxer(backend).getSamples();
+        assertEquals(2 * FRAMES - 1, samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            assertEquals(i * 1000000L / PLAYBACK_FPS, samples.get(i).presentationTimeUs);
+        }
+    }
+
+    @Test
+    public void remuxStretchesTimestamps() {
+        FakeMediaBackend backend = new FakeMediaBackend(WIDTH, HEIGHT, 2 * CAPTURE_FPS + 1, CAPTURE_FPS);
+        MediaCodecProc proc = createProc(backend, 1);
+        assertEquals(new File(mDir, "output_remux.mp4").getPath(), proc.remux());
+        FakeMediaBackend.FakeMuxer muxer = onlyMuxer(backend);
+        assertEquals(PLAYBACK_FPS, muxer.getTracks().get(0).frameRate);
+        List<FakeMediaBackend.Sample> samples = muxer.getSamples();
+        assertEquals(2 * CAPTURE_FPS + 1, samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            FakeMediaBackend.Sample sample = samples.get(i);
+            assertEquals(backend.getSampleTimeUs(i) * CAPTURE_FPS / PLAYBACK_FPS, sample.presentationTimeUs);
+            assertEquals(backend.isSyncFrame(i), (sample.flags & VideoCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        }
+    }
+}
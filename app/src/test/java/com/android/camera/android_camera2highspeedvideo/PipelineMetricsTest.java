@@ -0,0 +1,61 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bucket boundaries, percentiles and the JSON export.
+ */
+public class PipelineMetricsTest {
+
+    @Test
+    public void bucketsArePowersOfTwo() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(1, LatencyHistogram.bucketOf(1));
+        assertEquals(2, LatencyHistogram.bucketOf(2));
+        assertEquals(2, LatencyHistogram.bucketOf(3));
+        assertEquals(11, LatencyHistogram.bucketOf(1024));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE / 1000));
+    }
+
+    @Test
+    public void percentilesFollowBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100 * 1000);       // 100us, bucket up to 128us
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(5 * 1000 * 1000);  // 5ms, bucket up to 8192us
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(128, histogram.getPercentileUs(50));
+        assertEquals(128, histogram.getPercentileUs(90));
+        assertEquals(8192, histogram.getPercentileUs(99));
+        assertEquals(5 * 1000 * 1000, histogram.getMaxNanos());
+        assertEquals((90 * 100 + 10 * 5000) * 1000L / 100, histogram.getMeanNanos());
+        histogram.reset();
+        assertEquals(0, histogram.getPercentileUs(50));
+    }
+
+    @Test
+    public void exportsJson() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.record(PipelineMetrics.STAGE_ENCODE, 3000 * 1000);
+        metrics.record(PipelineMetrics.STAGE_CONVERT, 1000 * 1000);
+        metrics.record(PipelineMetrics.STAGE_QUEUE_WAIT, 9000 * 1000);
+        metrics.recordQueueDepth(PipelineMetrics.QUEUE_ENCODER, 1);
+        metrics.recordQueueDepth(PipelineMetrics.QUEUE_ENCODER, 4);
+        metrics.countDecoded();
+        metrics.countDropped();
+        assertEquals(PipelineMetrics.STAGE_ENCODE, metrics.getBusiestStage());
+        assertEquals(2.5, metrics.getMeanQueueDepth(PipelineMetrics.QUEUE_ENCODER), 0);
+
+        String json = metrics.toJson();
+        assertTrue(json, json.contains("\"frames\":{\"decoded\":1,\"encoded\":0,\"dropped\":1}"));
+        assertTrue(json, json.contains("\"encode\":{\"count\":1,\"total_us\":3000"));
+        assertTrue(json, json.contains("\"buckets\":{\"4096\":1}"));
+        assertTrue(json, json.contains("\"encoder\":{\"mean_depth\":2.50,\"max_depth\":4}"));
+        assertTrue(json, json.endsWith("\"busiest_stage\":\"encode\"}"));
+    }
+}
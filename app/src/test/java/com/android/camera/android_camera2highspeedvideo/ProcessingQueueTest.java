@@ -0,0 +1,139 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs jobs on {@link FakeMediaBackend} and checks the order they start in and the limits.
+ */
+public class ProcessingQueueTest {
+    private static final long TIMEOUT_MS = 20000;
+
+    private File mDir;
+    private FakeMediaBackend mBackend;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("queue").toFile();
+        mBackend = new FakeMediaBackend(64, 32, 24, 120).setEncoderTiming(1000, 0);
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mDir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private ProcessingQueue createQueue(int maxJobs) {
+        return new ProcessingQueue(new File(mDir, "jobs.txt"), mBackend, maxJobs, new ProcessingQueue.ProcessorFactory() {
+            @Override
+            public MediaCodecProc create(ProcessingJob job) {
+                MediaCodecProc proc = new MediaCodecProc(job.getPath(), 120, 1, mBackend);
+                proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_NONE);
+                return proc;
+            }
+        });
+    }
+
+    private String clipPath(String name) {
+        File dir = new File(mDir, name);
+        assertTrue(dir.mkdir());
+        return new File(dir, "clip.mp4").getPath();
+    }
+
+    /**
+     * Records when jobs start and how many of each codec type run at once.
+     */
+    private static class Recorder implements ProcessingQueue.Listener {
+        final List<Long> started = Collections.synchronizedList(new ArrayList<Long>());
+        final Map<String, Integer> running = new HashMap<>();
+        final Map<String, Integer> maxRunning = new HashMap<>();
+
+        @Override
+        public synchronized void onJobChanged(ProcessingJob job) {
+            String type = job.getCodecType();
+            if (job.getState() == ProcessingJob.STATE_RUNNING) {
+                started.add(job.getId());
+                int count = (running.containsKey(type) ? running.get(type) : 0) + 1;
+                running.put(type, count);
+                maxRunning.put(type, Math.max(count, maxRunning.containsKey(type) ? maxRunning.get(type) : 0));
+            } else if (job.isFinished() && type != null) {
+                running.put(type, running.get(type) - 1);
+            }
+        }
+    }
+
+    @Test
+    public void runsByPriorityWithinCodecLimits() throws InterruptedException {
+        ProcessingQueue queue = createQueue(3);
+        Recorder recorder = new Recorder();
+        queue.setListener(recorder);
+        ProcessingJob low = queue.enqueue(clipPath("low"), ProcessingJob.TYPE_SLOW_MOTION, 0);
+        ProcessingJob high = queue.enqueue(clipPath("high"), ProcessingJob.TYPE_SLOW_MOTION, 5);
+        ProcessingJob remux = queue.enqueue(clipPath("remux"), ProcessingJob.TYPE_REMUX, 0);
+        queue.start();
+        assertTrue(queue.awaitIdle(TIMEOUT_MS));
+        queue.stop();
+
+        for (ProcessingJob job : new ProcessingJob[]{low, high, remux}) {
+            assertEquals(job.toString(), ProcessingJob.STATE_DONE, job.getState());
+            assertEquals(1, job.getProgress(), 0);
+        }
+        assertEquals(FakeMediaBackend.MIME_TYPE, high.getCodecType());
+        assertEquals(ProcessingQueue.CODEC_TYPE_NONE, remux.getCodecType());
+        List<Long> slowMotion = new ArrayList<>(recorder.started);
+        slowMotion.remove(remux.getId());
+        assertEquals(java.util.Arrays.asList(high.getId(), low.getId()), slowMotion);
+        assertEquals(Integer.valueOf(1), recorder.maxRunning.get(FakeMediaBackend.MIME_TYPE));
+    }
+
+    @Test
+    public void restoresUnfinishedJobs() throws InterruptedException {
+        ProcessingQueue queue = createQueue(1);
+        ProcessingJob first = queue.enqueue(clipPath("first"), ProcessingJob.TYPE_SLOW_MOTION, 0);
+        ProcessingJob cancelled = queue.enqueue(clipPath("cancelled"), ProcessingJob.TYPE_SLOW_MOTION, 0);
+        assertTrue(queue.cancel(cancelled.getId()));
+        assertFalse(queue.cancel(cancelled.getId()));
+        queue.stop();
+
+        // As if the app had been killed before the queue ran anything
+        queue = createQueue(1);
+        assertEquals(1, queue.getJobs().size());
+        queue.start();
+        assertTrue(queue.awaitIdle(TIMEOUT_MS));
+        queue.stop();
+        List<ProcessingJob> jobs = queue.getJobs();
+        assertEquals(1, jobs.size());
+        assertEquals(first.getId(), jobs.get(0).getId());
+        assertEquals(first.getPath(), jobs.get(0).getPath());
+        assertEquals(ProcessingJob.STATE_DONE, jobs.get(0).getState());
+        assertEquals(1, mBackend.getEncodersCreated());
+
+        ProcessingQueue restarted = createQueue(1);
+        restarted.start();
+        assertTrue(restarted.awaitIdle(TIMEOUT_MS));
+        assertTrue("finished jobs are not kept", restarted.getJobs().isEmpty());
+        restarted.stop();
+    }
+}
@@ -0,0 +1,162 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks what {@link SampleRing} keeps, and {@link PreRollRecorder} on top of it.
+ */
+public class SampleRingTest {
+    private static final int GOP = 10;
+    private static final long FRAME_US = 1000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("ring", ".samples");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /**
+     * Sample {@code i} holds {@code size} bytes of {@code i}, with a sync sample every GOP.
+     */
+    private static boolean write(SampleRing ring, int i, int size) {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        while (data.hasRemaining()) {
+            data.put((byte) i);
+        }
+        data.flip();
+        VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+        info.set(0, size, i * FRAME_US, i % GOP == 0 ? VideoCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        return ring.write(data, info);
+    }
+
+    /**
+     * Samples first to last are kept, each with its own content.
+     */
+    private static void assertKept(SampleRing ring, int first, int last) {
+        assertEquals(last - first + 1, ring.size());
+        VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+        for (int i = 0; i < ring.size(); i++) {
+            ByteBuffer sample = ring.getSample(i, info);
+            assertEquals((first + i) * FRAME_US, info.presentationTimeUs);
+            while (sample.hasRemaining()) {
+                assertEquals("sample " + (first + i), (byte) (first + i), sample.get());
+            }
+        }
+        ring.getSample(0, info);
+        assertTrue((info.flags & VideoCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+    }
+
+    @Test
+    public void keepsWholeGopsCoveringTheWindow() throws IOException {
+        SampleRing ring = new SampleRing(mFile, 1 << 20, 1000, 15 * FRAME_US);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(write(ring, i, 100));
+        }
+        // Sync samples are every 10th, 80 is the newest one at least 15 samples back
+        assertKept(ring, 80, 99);
+        ring.close();
+    }
+
+    @Test
+    public void dropsOldGopsWhenFull() throws IOException {
+        // Two and a half GOPs of data, the wrap leaves a gap at the end
+        SampleRing ring = new SampleRing(mFile, 2500, 1000, Long.MAX_VALUE);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(write(ring, i, 97 + i % 7));
+            assertTrue(ring.getDataSize() <= ring.getCapacity());
+        }
+        assertKept(ring, 980, 999);
+
+        // A sample that needs the whole ring takes the place of everything, until the next GOP
+        assertTrue(write(ring, 1000, 2500));
+        assertKept(ring, 1000, 1000);
+        assertFalse(write(ring, 1001, 100));
+        assertEquals(0, ring.size());
+        assertFalse(write(ring, 1005, 100));
+        assertTrue(write(ring, 1010, 100));
+        assertFalse(write(ring, 1020, 2501));
+        assertEquals(3, ring.getDroppedSamples());
+        ring.close();
+    }
+
+    @Test
+    public void indexLimitDropsGops() throws IOException {
+        SampleRing ring = new SampleRing(mFile, 1 << 20, 25, Long.MAX_VALUE);
+        for (int i = 0; i < 95; i++) {
+            assertTrue(write(ring, i, 10));
+        }
+        assertKept(ring, 70, 94);
+        ring.close();
+    }
+
+    @Test
+    public void preRollClipStartsAtSyncSample() throws Exception {
+        int width = 32;
+        int height = 16;
+        int frames = 100;
+        int frameRate = 10;
+        FakeMediaBackend backend = new FakeMediaBackend(width, height, frames, frameRate)
+                .setEncoderKeyFrameInterval(1000000);
+        // 3s of pre-roll and 1s of post-roll, triggered at 6s
+        PreRollRecorder recorder = new PreRollRecorder(backend, mFile, 1 << 16, 3000000, 1000000, frameRate);
+        final String[] saved = new String[1];
+        recorder.setListener(new PreRollRecorder.Listener() {
+            @Override
+            public void onClipSaved(String path, boolean success) {
+                synchronized (saved) {
+                    saved[0] = success ? path : "failed";
+                    saved.notifyAll();
+                }
+            }
+        });
+        FakeMediaBackend.FakeFrameSource source = backend.createFrameSource(true);
+        recorder.start(source);
+        while (source.getFramesDelivered() < 61) {
+            Thread.sleep(1);
+        }
+        assertTrue(recorder.trigger("clip.mp4"));
+        synchronized (saved) {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (saved[0] == null && System.currentTimeMillis() < deadline) {
+                saved.wait(100);
+            }
+        }
+        recorder.stop();
+        assertEquals("clip.mp4", saved[0]);
+        // 64KB for 3s of pre-roll and a 1s GOP, less headroom
+        assertEquals(65536 * 8 / 4 * 75 / 100, backend.getEncoderBitRate());
+
+        List<FakeMediaBackend.FakeMuxer> muxers = backend.getMuxers();
+        assertEquals(1, muxers.size());
+        assertTrue(muxers.get(0).isFinished());
+        List<FakeMediaBackend.Sample> samples = muxers.get(0).getSamples();
+        assertTrue((samples.get(0).flags & VideoCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        assertEquals(0, samples.get(0).presentationTimeUs);
+        // The trigger came at frame 60 or a frame or two later, the sync sample before 3s earlier
+        // is frame 30, and the post-roll runs a second past the trigger
+        int first = 30;
+        byte[] frame = new byte[width * height * 3 / 2];
+        for (int i = 0; i < samples.size(); i++) {
+            FakeMediaBackend.fillFrame(first + i, frame, width, height);
+            assertEquals("frame " + (first + i), FakeMediaBackend.checksum(frame, 0, frame.length), samples.get(i).checksum);
+            assertEquals(i * 1000000L / frameRate, samples.get(i).presentationTimeUs);
+        }
+        assertTrue(samples.size() >= 41 && samples.size() <= 44);
+        assertFalse(mFile.exists());
+    }
+}
@@ -0,0 +1,102 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays the recorder's side with files, as {@link SegmentedRecording#onInfo} would see it.
+ */
+public class SegmentedRecordingTest {
+    private File mDir;
+    private final List<String> mClosed = new ArrayList<>();
+    private SegmentedRecording mRecording;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("segments").toFile();
+        mRecording = new SegmentedRecording(mDir, 1024, new SegmentedRecording.Listener() {
+            @Override
+            public void onSegmentClosed(String path, int index) {
+                assertEquals(mClosed.size(), index);
+                mClosed.add(path);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mDir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * What the recorder does to a file it is given: creates it, and writes to it once it
+     * switches to it.
+     */
+    private static void write(File segment, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(segment, true);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void closesSegmentsAsTheRecorderMovesOn() throws IOException {
+        File first = mRecording.nextSegment();
+        write(first, 1000);
+        File second = mRecording.nextSegment();
+        write(second, 0);
+        assertTrue(mClosed.isEmpty());
+
+        mRecording.onNextSegmentStarted();
+        write(second, 1000);
+        assertEquals(1, mClosed.size());
+        assertEquals(first.getPath(), mClosed.get(0));
+
+        // Stopped between the size warning and the switch
+        File third = mRecording.nextSegment();
+        write(third, 0);
+        mRecording.finish();
+        assertEquals(2, mClosed.size());
+        assertEquals(second.getPath(), mClosed.get(1));
+        assertFalse(third.exists());
+        assertFalse(third.getParentFile().exists());
+        assertFalse(first.getParent().equals(second.getParent()));
+    }
+
+    @Test
+    public void keepsASegmentWhoseStartWasNeverReported() throws IOException {
+        File first = mRecording.nextSegment();
+        write(first, 1000);
+        File second = mRecording.nextSegment();
+        // Switched to, the event dropped by the reset after stop
+        write(second, 500);
+
+        mRecording.finish();
+        assertEquals(2, mClosed.size());
+        assertEquals(first.getPath(), mClosed.get(0));
+        assertEquals(second.getPath(), mClosed.get(1));
+        assertTrue(second.exists());
+    }
+}
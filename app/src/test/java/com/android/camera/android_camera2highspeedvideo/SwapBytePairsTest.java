@@ -0,0 +1,98 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks both {@code Utils.swapBytePairs} against a pair-by-pair swap, over lengths that leave a
+ * tail after the 8-byte words and at offsets that are not word aligned.
+ */
+public class SwapBytePairsTest {
+    private static final int SIZE = 101;
+    private static final int MAX_LENGTH = 42;
+
+    private static byte[] random(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] expected(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        byte[] out = dst.clone();
+        for (int i = 0; i < length; i += 2) {
+            out[dstOffset + i] = src[srcOffset + i + 1];
+            out[dstOffset + i + 1] = src[srcOffset + i];
+        }
+        return out;
+    }
+
+    @Test
+    public void matchesScalarSwap() {
+        Random random = new Random(11);
+        byte[] src = random(random, SIZE);
+        for (int length = 0; length <= MAX_LENGTH; length += 2) {
+            for (int srcOffset = 0; srcOffset < 9; srcOffset++) {
+                for (int dstOffset = 0; dstOffset < 9; dstOffset++) {
+                    byte[] dst = random(random, SIZE);
+                    byte[] want = expected(src, srcOffset, dst, dstOffset, length);
+                    Utils.swapBytePairs(src, srcOffset, dst, dstOffset, length);
+                    assertArrayEquals("length " + length + " offsets " + srcOffset + "/" + dstOffset, want, dst);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void swapsInPlaceAndBack() {
+        Random random = new Random(12);
+        for (int length = 0; length <= MAX_LENGTH; length += 2) {
+            for (int offset = 0; offset < 9; offset++) {
+                byte[] original = random(random, SIZE);
+                byte[] data = original.clone();
+                byte[] want = expected(original, offset, original, offset, length);
+                Utils.swapBytePairs(data, offset, data, offset, length);
+                assertArrayEquals("length " + length + " offset " + offset, want, data);
+                Utils.swapBytePairs(data, offset, data, offset, length);
+                assertArrayEquals("length " + length + " offset " + offset, original, data);
+            }
+        }
+    }
+
+    @Test
+    public void bufferMatchesScalarSwapAndKeepsItsState() {
+        Random random = new Random(13);
+        ByteOrder[] orders = {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN};
+        for (boolean direct : new boolean[]{false, true}) {
+            for (ByteOrder order : orders) {
+                for (int length = 0; length <= MAX_LENGTH; length += 2) {
+                    for (int offset = 0; offset < 9; offset++) {
+                        byte[] original = random(random, SIZE);
+                        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(SIZE) : ByteBuffer.allocate(SIZE);
+                        buffer.put(original).position(3);
+                        buffer.order(order);
+                        String message = (direct ? "direct " : "heap ") + order + " length " + length + " offset " + offset;
+
+                        Utils.swapBytePairs(buffer, offset, length);
+                        assertEquals(message, order, buffer.order());
+                        assertEquals(message, 3, buffer.position());
+                        byte[] data = new byte[SIZE];
+                        for (int i = 0; i < SIZE; i++) {
+                            data[i] = buffer.get(i);
+                        }
+                        assertArrayEquals(message, expected(original, offset, original, offset, length), data);
+
+                        Utils.swapBytePairs(buffer, offset, length);
+                        for (int i = 0; i < SIZE; i++) {
+                            assertEquals(message, original[i], buffer.get(i));
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
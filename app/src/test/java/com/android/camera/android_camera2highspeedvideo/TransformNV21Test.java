@@ -0,0 +1,187 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds {@link Utils#transformNV21FromPlanes} the plane layouts decoders produce and checks the
+ * result against NV21 built pixel by pixel.
+ */
+public class TransformNV21Test {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private static int lumaAt(int x, int y, int seed) {
+        return (x * 7 + y * 13 + seed) & 0xFF;
+    }
+
+    private static int uAt(int x, int y, int seed) {
+        return (x * 3 + y * 5 + 50 + seed) & 0xFF;
+    }
+
+    private static int vAt(int x, int y, int seed) {
+        return (x * 11 + y * 2 + 100 + seed) & 0xFF;
+    }
+
+    private static byte[] expectedNV21(int left, int top, int width, int height, int seed) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                nv21[y * width + x] = (byte) lumaAt(left + x, top + y, seed);
+            }
+        }
+        int offset = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                nv21[offset++] = (byte) vAt((left >> 1) + x, (top >> 1) + y, seed);
+                nv21[offset++] = (byte) uAt((left >> 1) + x, (top >> 1) + y, seed);
+            }
+        }
+        return nv21;
+    }
+
+    private static ByteBuffer lumaPlane(int rowStride, int seed) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * (HEIGHT - 1) + WIDTH);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                buffer.put(y * rowStride + x, (byte) lumaAt(x, y, seed));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Separate U and V planes, {@code pixelStride} apart.
+     */
+    private static YuvPlanes planar(int rowStride, int chromaRowStride, int pixelStride, int seed) {
+        YuvPlanes planes = new YuvPlanes();
+        fillPlanar(planes, rowStride, chromaRowStride, pixelStride, seed);
+        return planes.setCrop(0, 0, WIDTH, HEIGHT);
+    }
+
+    private static void fillPlanar(YuvPlanes planes, int rowStride, int chromaRowStride, int pixelStride, int seed) {
+        int size = chromaRowStride * (HEIGHT / 2 - 1) + (WIDTH / 2 - 1) * pixelStride + 1;
+        ByteBuffer u = ByteBuffer.allocateDirect(size);
+        ByteBuffer v = ByteBuffer.allocateDirect(size);
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                u.put(y * chromaRowStride + x * pixelStride, (byte) uAt(x, y, seed));
+                v.put(y * chromaRowStride + x * pixelStride, (byte) vAt(x, y, seed));
+            }
+        }
+        planes.setPlane(0, lumaPlane(rowStride, seed), rowStride, 1);
+        planes.setPlane(1, u, chromaRowStride, pixelStride);
+        planes.setPlane(2, v, chromaRowStride, pixelStride);
+    }
+
+    /**
+     * U and V as two views of one interleaved buffer, the way most hardware decoders hand out
+     * YUV_420_888.
+     */
+    private static YuvPlanes interleaved(int rowStride, boolean vFirst, int seed) {
+        byte[] chroma = new byte[rowStride * (HEIGHT / 2)];
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                int first = vFirst ? vAt(x, y, seed) : uAt(x, y, seed);
+                int second = vFirst ? uAt(x, y, seed) : vAt(x, y, seed);
+                chroma[y * rowStride + 2 * x] = (byte) first;
+                chroma[y * rowStride + 2 * x + 1] = (byte) second;
+            }
+        }
+        int size = rowStride * (HEIGHT / 2 - 1) + WIDTH - 1;
+        ByteBuffer direct = ByteBuffer.allocateDirect(chroma.length);
+        direct.put(chroma);
+        direct.position(0).limit(size);
+        ByteBuffer first = direct.slice();
+        direct.position(1).limit(size + 1);
+        ByteBuffer second = direct.slice();
+
+        YuvPlanes planes = new YuvPlanes();
+        planes.setPlane(0, lumaPlane(rowStride, seed), rowStride, 1);
+        planes.setPlane(1, vFirst ? second : first, rowStride, 2);
+        planes.setPlane(2, vFirst ? first : second, rowStride, 2);
+        return planes.setCrop(0, 0, WIDTH, HEIGHT);
+    }
+
+    private static byte[] transform(YuvPlanes planes) {
+        byte[] data = new byte[planes.width * planes.height * 3 / 2];
+        Utils.transformNV21FromPlanes(planes, data, new byte[planes.rowStrides[0]]);
+        return data;
+    }
+
+    @Test
+    public void planarContiguous() {
+        YuvPlanes planes = planar(WIDTH, WIDTH / 2, 1, 0);
+        assertEquals(YuvPlanes.CHROMA_PLANAR, planes.getChromaLayout());
+        assertArrayEquals(expectedNV21(0, 0, WIDTH, HEIGHT, 0), transform(planes));
+    }
+
+    @Test
+    public void planarPadded() {
+        YuvPlanes planes = planar(WIDTH + 32, WIDTH / 2 + 16, 1, 0);
+        assertArrayEquals(expectedNV21(0, 0, WIDTH, HEIGHT, 0), transform(planes));
+    }
+
+    @Test
+    public void vuInterleavedContiguous() {
+        YuvPlanes planes = interleaved(WIDTH, true, 0);
+        assertEquals(YuvPlanes.CHROMA_VU_INTERLEAVED, planes.getChromaLayout());
+        assertArrayEquals(expectedNV21(0, 0, WIDTH, HEIGHT, 0), transform(planes));
+    }
+
+    @Test
+    public void vuInterleavedPadded() {
+        YuvPlanes planes = interleaved(WIDTH + 64, true, 0);
+        assertEquals(YuvPlanes.CHROMA_VU_INTERLEAVED, planes.getChromaLayout());
+        assertArrayEquals(expectedNV21(0, 0, WIDTH, HEIGHT, 0), transform(planes));
+    }
+
+    @Test
+    public void uvInterleaved() {
+        YuvPlanes planes = interleaved(WIDTH, false, 0);
+        assertEquals(YuvPlanes.CHROMA_UV_INTERLEAVED, planes.getChromaLayout());
+        assertArrayEquals(expectedNV21(0, 0, WIDTH, HEIGHT, 0), transform(planes));
+
+        planes = interleaved(WIDTH + 16, false, 0);
+        assertArrayEquals(expectedNV21(0, 0, WIDTH, HEIGHT, 0), transform(planes));
+    }
+
+    @Test
+    public void croppedInterleaved() {
+        YuvPlanes planes = interleaved(WIDTH, true, 0).setCrop(8, 4, 32, 24);
+        assertArrayEquals(expectedNV21(8, 4, 32, 24, 0), transform(planes));
+    }
+
+    @Test
+    public void croppedPlanar() {
+        YuvPlanes planes = planar(WIDTH + 8, WIDTH / 2 + 4, 1, 0).setCrop(16, 8, 40, 32);
+        assertArrayEquals(expectedNV21(16, 8, 40, 32, 0), transform(planes));
+    }
+
+    @Test
+    public void separatePlanesWithPixelStrideTwo() {
+        YuvPlanes planes = planar(WIDTH, WIDTH, 2, 0);
+        assertEquals(YuvPlanes.CHROMA_PLANAR, planes.getChromaLayout());
+        assertArrayEquals(expectedNV21(0, 0, WIDTH, HEIGHT, 0), transform(planes));
+    }
+
+    @Test
+    public void uniformFrameDoesNotPinLayout() {
+        // Flat chroma in separate planes passes the alias test, it must not be cached
+        YuvPlanes planes = planar(WIDTH, WIDTH, 2, 0);
+        for (int i = 1; i < 3; i++) {
+            ByteBuffer buffer = planes.buffers[i];
+            for (int j = 0; j < buffer.limit(); j++) {
+                buffer.put(j, (byte) 128);
+            }
+        }
+        transform(planes);
+
+        fillPlanar(planes, WIDTH, WIDTH, 2, 9);
+        assertEquals(YuvPlanes.CHROMA_PLANAR, planes.getChromaLayout());
+        assertArrayEquals(expectedNV21(0, 0, WIDTH, HEIGHT, 9), transform(planes));
+    }
+}
@@ -0,0 +1,120 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Builds the same picture in every layout by hand and checks that every conversion pair maps one
+ * onto the other exactly, in both directions.
+ */
+public class YuvConverterTest {
+    private static final int WIDTH = 48;
+    private static final int HEIGHT = 32;
+    private static final int[] FORMATS = {
+            YuvConverter.FORMAT_I420,
+            YuvConverter.FORMAT_YV12,
+            YuvConverter.FORMAT_NV12,
+            YuvConverter.FORMAT_NV21,
+            YuvConverter.FORMAT_P010,
+    };
+
+    private static int y(int x, int y) {
+        return (x * 5 + y * 17) & 0xFF;
+    }
+
+    private static int u(int x, int y) {
+        return (x * 29 + y * 3 + 7) & 0xFF;
+    }
+
+    private static int v(int x, int y) {
+        return (255 - x * 13 - y * 11) & 0xFF;
+    }
+
+    private static void put16(byte[] frame, int offset, int sample) {
+        int p010 = ((sample << 2) | (sample >> 6)) << 6;
+        frame[offset] = (byte) p010;
+        frame[offset + 1] = (byte) (p010 >> 8);
+    }
+
+    private static byte[] build(int format) {
+        int size = WIDTH * HEIGHT;
+        int quarter = size / 4;
+        byte[] frame = new byte[YuvConverter.getFrameSize(format, WIDTH, HEIGHT)];
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                int i = row * WIDTH + col;
+                if (format == YuvConverter.FORMAT_P010) {
+                    put16(frame, 2 * i, y(col, row));
+                } else {
+                    frame[i] = (byte) y(col, row);
+                }
+            }
+        }
+        for (int row = 0; row < HEIGHT / 2; row++) {
+            for (int col = 0; col < WIDTH / 2; col++) {
+                int i = row * (WIDTH / 2) + col;
+                byte cu = (byte) u(col, row);
+                byte cv = (byte) v(col, row);
+                switch (format) {
+                    case YuvConverter.FORMAT_I420:
+                        frame[size + i] = cu;
+                        frame[size + quarter + i] = cv;
+                        break;
+                    case YuvConverter.FORMAT_YV12:
+                        frame[size + i] = cv;
+                        frame[size + quarter + i] = cu;
+                        break;
+                    case YuvConverter.FORMAT_NV12:
+                        frame[size + 2 * i] = cu;
+                        frame[size + 2 * i + 1] = cv;
+                        break;
+                    case YuvConverter.FORMAT_NV21:
+                        frame[size + 2 * i] = cv;
+                        frame[size + 2 * i + 1] = cu;
+                        break;
+                    case YuvConverter.FORMAT_P010:
+                        put16(frame, 2 * size + 4 * i, u(col, row));
+                        put16(frame, 2 * size + 4 * i + 2, v(col, row));
+                        break;
+                }
+            }
+        }
+        return frame;
+    }
+
+    @Test
+    public void everyPairConvertsExactly() {
+        for (int src : FORMATS) {
+            for (int dst : FORMATS) {
+                byte[] out = new byte[YuvConverter.getFrameSize(dst, WIDTH, HEIGHT)];
+                YuvConverter.convert(build(src), src, out, dst, WIDTH, HEIGHT);
+                assertArrayEquals(YuvConverter.getName(src) + " -> " + YuvConverter.getName(dst), build(dst), out);
+            }
+        }
+    }
+
+    @Test
+    public void everyPairRoundTrips() {
+        for (int src : FORMATS) {
+            for (int dst : FORMATS) {
+                byte[] original = build(src);
+                byte[] converted = new byte[YuvConverter.getFrameSize(dst, WIDTH, HEIGHT)];
+                byte[] back = new byte[original.length];
+                YuvConverter.convert(original, src, converted, dst, WIDTH, HEIGHT);
+                YuvConverter.convert(converted, dst, back, src, WIDTH, HEIGHT);
+                assertArrayEquals(YuvConverter.getName(src) + " <-> " + YuvConverter.getName(dst), original, back);
+            }
+        }
+    }
+
+    @Test
+    public void selectsPreferredCodecFormat() {
+        assertEquals(19, YuvConverter.selectCodecColorFormat(new int[]{0x7F420888, 19}));
+        assertEquals(21, YuvConverter.selectCodecColorFormat(new int[]{19, 21}));
+        assertEquals(YuvConverter.COLOR_FormatYUVP010, YuvConverter.selectCodecColorFormat(new int[]{0x7F420888, 54}));
+        assertEquals(-1, YuvConverter.selectCodecColorFormat(new int[]{0x7F420888}));
+        assertEquals(YuvConverter.FORMAT_I420, YuvConverter.fromCodecColorFormat(20));
+        assertEquals(YuvConverter.FORMAT_NV12, YuvConverter.fromCodecColorFormat(0x7fa30c00));
+    }
+}
@@ -0,0 +1,111 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads a raw sequence back frame by frame, in order and out of order, across window boundaries.
+ */
+public class YuvFileReaderTest {
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 16;
+    private static final int FRAMES = 10;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("reader", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    private static byte[] frame(int index, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 7 + index * 13);
+        }
+        return data;
+    }
+
+    private File write(String name, int frameSize, int extraBytes) throws IOException {
+        File file = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        for (int i = 0; i < FRAMES; i++) {
+            out.write(frame(i, frameSize));
+        }
+        out.write(new byte[extraBytes]);
+        out.close();
+        return file;
+    }
+
+    private static void assertFrame(YuvFileReader reader, int index) throws IOException {
+        ByteBuffer buffer = reader.getFrame(index);
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        assertArrayEquals("frame " + index, frame(index, reader.getFrameSize()), data);
+    }
+
+    @Test
+    public void sizeFromFileName() throws IOException {
+        File file = write("seq_" + WIDTH + "x" + HEIGHT + ".nv21", WIDTH * HEIGHT * 3 / 2, 100);
+        YuvFileReader reader = YuvFileReader.open(file);
+        assertEquals(WIDTH, reader.getWidth());
+        assertEquals(HEIGHT, reader.getHeight());
+        assertEquals(YuvConverter.FORMAT_NV21, reader.getFormat());
+        assertEquals(FRAMES, reader.getFrameCount());   // The partial frame at the end is left out
+        assertFrame(reader, 0);
+        assertFrame(reader, FRAMES - 1);
+        reader.close();
+    }
+
+    @Test
+    public void sizeFromSidecarHeader() throws IOException {
+        int frameSize = YuvConverter.getFrameSize(YuvConverter.FORMAT_P010, WIDTH, HEIGHT);
+        File file = write("capture.raw", frameSize, 0);
+        FileOutputStream header = new FileOutputStream(file.getPath() + YuvFileReader.HEADER_SUFFIX);
+        header.write(("width=" + WIDTH + "\nheight=" + HEIGHT + "\nformat=p010\n").getBytes("US-ASCII"));
+        header.close();
+
+        YuvFileReader reader = YuvFileReader.open(file);
+        assertEquals(YuvConverter.FORMAT_P010, reader.getFormat());
+        assertEquals(frameSize, reader.getFrameSize());
+        assertEquals(FRAMES, reader.getFrameCount());
+        assertFrame(reader, 3);
+        reader.close();
+    }
+
+    @Test
+    public void sequentialAndRandomAccessAcrossWindows() throws IOException {
+        File file = write("seq.nv12", WIDTH * HEIGHT * 3 / 2, 0);
+        YuvFileReader reader = YuvFileReader.open(file, WIDTH, HEIGHT, YuvConverter.FORMAT_NV12, 3);
+        for (int i = 0; i < FRAMES; i++) {
+            assertFrame(reader, i);
+        }
+        int[] order = {7, 2, 9, 0, 5, 6, 3};
+        for (int index : order) {
+            assertFrame(reader, index);
+        }
+        reader.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownSize() throws IOException {
+        YuvFileReader.open(write("frames.nv21", 64, 0));
+    }
+}
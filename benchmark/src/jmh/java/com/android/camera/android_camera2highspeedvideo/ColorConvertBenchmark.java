@@ -0,0 +1,70 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NV21 to the encoder input layouts, serial and striped.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ColorConvertBenchmark {
+    @Param({Resolution.R480P, Resolution.R720P, Resolution.R1080P, Resolution.R2160P})
+    public String resolution;
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mSrc;
+    private byte[] mDst;
+
+    @Setup
+    public void setUp() {
+        Resolution r = Resolution.parse(resolution);
+        mWidth = r.width;
+        mHeight = r.height;
+        mSrc = new byte[r.frameSize()];
+        new Random(42).nextBytes(mSrc);
+        mDst = new byte[r.frameSize()];
+    }
+
+    @Benchmark
+    public byte[] nv21ToYuv420SP() {
+        Utils.Nv21ToYuv420SP(mSrc, mDst, mWidth, mHeight);
+        return mDst;
+    }
+
+    @Benchmark
+    public byte[] nv21ToYuv420SPParallel() {
+        ParallelYuv.Nv21ToYuv420SP(mSrc, mDst, mWidth, mHeight);
+        return mDst;
+    }
+
+    @Benchmark
+    public byte[] nv21ToNv12InPlace() {
+        // The source flips between NV21 and NV12 every op, the cost is the same either way
+        Utils.Nv21ToNv12InPlace(mSrc, mWidth, mHeight);
+        return mSrc;
+    }
+
+    @Benchmark
+    public byte[] nv21ToI420() {
+        Utils.Nv21ToI420(mSrc, mDst, mWidth, mHeight);
+        return mDst;
+    }
+
+    @Benchmark
+    public byte[] nv21ToI420Parallel() {
+        ParallelYuv.Nv21ToI420(mSrc, mDst, mWidth, mHeight);
+        return mDst;
+    }
+}
@@ -0,0 +1,63 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw frame dumps to and from disk, one frame per op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FileIoBenchmark {
+    @Param({Resolution.R480P, Resolution.R720P, Resolution.R1080P, Resolution.R2160P})
+    public String resolution;
+
+    private File mDir;
+    private String mWritePath;
+    private String mReadPath;
+    private byte[] mFrame;
+
+    @Setup
+    public void setUp() throws IOException {
+        Resolution r = Resolution.parse(resolution);
+        mDir = File.createTempFile("yuv", "bench");
+        if (!mDir.delete() || !mDir.mkdir()) {
+            throw new IOException("Cannot create " + mDir);
+        }
+        mFrame = new byte[r.frameSize()];
+        new Random(42).nextBytes(mFrame);
+        mWritePath = new File(mDir, "write_" + resolution + ".nv21").getPath();
+        mReadPath = new File(mDir, "read_" + resolution + ".nv21").getPath();
+        Utils.saveYUVFile(mReadPath, mFrame, false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        new File(mWritePath).delete();
+        new File(mReadPath).delete();
+        mDir.delete();
+    }
+
+    @Benchmark
+    public boolean saveYUVFile() {
+        return Utils.saveYUVFile(mWritePath, mFrame, false);
+    }
+
+    @Benchmark
+    public byte[] loadFromFile() {
+        return Utils.LoadFromFile(mReadPath);
+    }
+}
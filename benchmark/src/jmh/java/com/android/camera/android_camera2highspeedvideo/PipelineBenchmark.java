@@ -0,0 +1,77 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole {@link MediaCodecProc#process()} job on {@link FakeMediaBackend}, one clip per op, so
+ * the threading and queueing around the codecs can be measured without a device. The codecs'
+ * latency and rate stand in for hardware ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PipelineBenchmark {
+    private static final int FRAMES = 60;
+    private static final int CAPTURE_FPS = 120;
+
+    @Param({Resolution.R720P})
+    public String resolution;
+
+    /** Time from queueing a sample to its frame being ready, in microseconds */
+    @Param({"0", "2000"})
+    public long decoderLatencyUs;
+
+    /** Most frames the decoder puts out per second, 0 for no limit */
+    @Param({"0", "240"})
+    public int decoderRate;
+
+    @Param({"0", "5000"})
+    public long encoderLatencyUs;
+
+    @Param({"0", "240"})
+    public int encoderRate;
+
+    @Param({"false", "true"})
+    public boolean asyncDecode;
+
+    private Resolution mResolution;
+    private File mDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        mResolution = Resolution.parse(resolution);
+        mDir = File.createTempFile("pipeline", "bench");
+        if (!mDir.delete() || !mDir.mkdir()) {
+            throw new IOException("Cannot create " + mDir);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        new File(mDir, "output.mp4").delete();
+        mDir.delete();
+    }
+
+    @Benchmark
+    public boolean process() {
+        FakeMediaBackend backend = new FakeMediaBackend(mResolution.width, mResolution.height, FRAMES, CAPTURE_FPS)
+                .setDecoderTiming(decoderLatencyUs, decoderRate)
+                .setEncoderTiming(encoderLatencyUs, encoderRate);
+        MediaCodecProc proc = new MediaCodecProc(new File(mDir, "clip.mp4").getPath(), CAPTURE_FPS, 1, backend);
+        proc.setProcessingMode(MediaCodecProc.PROCESSING_MODE_NONE);
+        proc.setAsyncDecode(asyncDecode);
+        return proc.process();
+    }
+}
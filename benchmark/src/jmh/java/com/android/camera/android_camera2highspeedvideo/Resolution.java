@@ -0,0 +1,28 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+/**
+ * Frame sizes the benchmarks run at, as JMH {@code @Param} values.
+ */
+final class Resolution {
+    static final String R480P = "640x480";
+    static final String R720P = "1280x720";
+    static final String R1080P = "1920x1080";
+    static final String R2160P = "3840x2160";
+
+    final int width;
+    final int height;
+
+    private Resolution(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    static Resolution parse(String value) {
+        int x = value.indexOf('x');
+        return new Resolution(Integer.parseInt(value.substring(0, x)), Integer.parseInt(value.substring(x + 1)));
+    }
+
+    int frameSize() {
+        return width * height * 3 / 2;
+    }
+}
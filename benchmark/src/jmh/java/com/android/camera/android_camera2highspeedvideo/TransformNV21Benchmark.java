@@ -0,0 +1,85 @@
+package com.android.camera.android_camera2highspeedvideo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoder plane layouts to NV21, through {@link YuvPlanes} instead of an {@code Image}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransformNV21Benchmark {
+    private static final int ROW_PADDING = 64;
+
+    @Param({Resolution.R480P, Resolution.R720P, Resolution.R1080P, Resolution.R2160P})
+    public String resolution;
+
+    /** vu: aliased VU buffer, uv: aliased UV buffer, planar: separate U and V planes */
+    @Param({"vu", "uv", "planar"})
+    public String layout;
+
+    private YuvPlanes mPlanes;
+    private byte[] mData;
+    private byte[] mRowData;
+
+    @Setup
+    public void setUp() {
+        Resolution r = Resolution.parse(resolution);
+        Random random = new Random(42);
+        int rowStride = r.width + ROW_PADDING;
+        mPlanes = new YuvPlanes();
+        mPlanes.setPlane(0, randomBuffer(random, rowStride * r.height), rowStride, 1);
+        if (layout.equals("planar")) {
+            int chromaStride = rowStride / 2;
+            int size = chromaStride * (r.height / 2);
+            mPlanes.setPlane(1, randomBuffer(random, size), chromaStride, 1);
+            mPlanes.setPlane(2, randomBuffer(random, size), chromaStride, 1);
+        } else {
+            ByteBuffer chroma = randomBuffer(random, rowStride * (r.height / 2));
+            int size = rowStride * (r.height / 2 - 1) + r.width - 1;
+            chroma.limit(size);
+            ByteBuffer first = chroma.slice();
+            chroma.limit(size + 1);
+            chroma.position(1);
+            ByteBuffer second = chroma.slice();
+            boolean vFirst = layout.equals("vu");
+            mPlanes.setPlane(1, vFirst ? second : first, rowStride, 2);
+            mPlanes.setPlane(2, vFirst ? first : second, rowStride, 2);
+        }
+        mPlanes.setCrop(0, 0, r.width, r.height);
+        mData = new byte[r.frameSize()];
+        mRowData = new byte[rowStride];
+    }
+
+    private static ByteBuffer randomBuffer(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes);
+        buffer.clear();
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] transformNV21FromPlanes() {
+        Utils.transformNV21FromPlanes(mPlanes, mData, mRowData);
+        return mData;
+    }
+
+    @Benchmark
+    public byte[] transformNV21FromPlanesParallel() {
+        ParallelYuv.transformNV21FromPlanes(mPlanes, mData, mRowData);
+        return mData;
+    }
+}